@@ -28,5 +28,18 @@ import static java.lang.annotation.ElementType.TYPE;
 @Retention(RetentionPolicy.CLASS)
 @Target(TYPE)
 public @interface CrumbIndex {
-  byte[] value();
+  /**
+   * The index payload as raw bytes. Empty if the payload is stored in {@link #packed()} instead,
+   * which is always the case for payloads larger than the 65535 elements the class file format
+   * allows in an annotation array.
+   */
+  byte[] value() default {};
+
+  /**
+   * The index payload packed six bits per char into strings of URL-safe base64 characters, which is
+   * considerably more compact than {@link #value()} in both generated sources and class files. Each
+   * string is one part of the payload, in order, so that no single constant exceeds class file
+   * limits. Empty if the payload is stored in {@link #value()} instead.
+   */
+  String[] packed() default {};
 }
@@ -19,6 +19,7 @@ package com.uber.crumb.compiler.api
 import com.uber.crumb.annotations.CrumbConsumer
 import com.uber.crumb.annotations.CrumbQualifier
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType
+import javax.annotation.processing.Filer
 import javax.annotation.processing.ProcessingEnvironment
 import javax.lang.model.element.AnnotationMirror
 import javax.lang.model.element.TypeElement
@@ -31,6 +32,9 @@ interface CrumbConsumerExtension : CrumbExtension {
   /**
    * Supported consumer annotations, if any, that the CrumbProcessor should collect on this
    * extension's behalf. Empty by default.
+   *
+   * Types are only offered to [isConsumerApplicable] if they have one of these annotations. Extensions that
+   * support none are offered every type annotated with another extension's supported consumer annotations instead.
    */
   @JvmDefault
   fun supportedConsumerAnnotations(): Set<Class<out Annotation>> {
@@ -68,6 +72,77 @@ interface CrumbConsumerExtension : CrumbExtension {
       annotations: Collection<AnnotationMirror>,
       metadata: Set<ConsumerMetadata>)
 
+  /**
+   * Determines whether this extension consumes metadata through [consumeStreaming] rather than [consume]. False by
+   * default.
+   *
+   * Streaming consumers don't need the metadata of every producer in memory at once, so the CrumbProcessor loads and
+   * decodes it one index at a time as they iterate it instead of loading and holding all of it up front. Each index is
+   * still read in full, so this keeps peak memory bounded by the largest index rather than by the whole classpath, at
+   * the cost of decoding the metadata again for each consuming type.
+   */
+  @JvmDefault
+  fun isStreamingConsumer(): Boolean {
+    return false
+  }
+
+  /**
+   * Invoked instead of [consume] for [streaming consumers][isStreamingConsumer], to tell this extension to consume the
+   * collected [ConsumerMetadata] as a [Sequence] that's lazy per index. The sequence decodes metadata as it's iterated
+   * and can be iterated more than once, decoding it again each time. Metadata of distinct producers isn't
+   * deduplicated, so it may contain equal entries. By default, this collects the sequence into a set and invokes
+   * [consume].
+   *
+   * @param context the [CrumbContext].
+   * @param type the type this is consuming on.
+   * @param annotations collected [CrumbQualifier]-annotated annotations on [type].
+   * @param metadata collected metadata associated with this extension.
+   */
+  @JvmDefault
+  fun consumeStreaming(context: CrumbContext,
+      type: TypeElement,
+      annotations: Collection<AnnotationMirror>,
+      metadata: Sequence<ConsumerMetadata>) {
+    consume(context, type, annotations, metadata.toSet())
+  }
+
+  /**
+   * Determines whether this extension consumes metadata through [planConsume] rather than [consume]. False by default.
+   *
+   * Planning consumers only plan the files they generate, and leave building and writing them to the CrumbProcessor.
+   * This lets the CPU-bound work of [building][CrumbGeneratedFile.build] them run in parallel across consuming types
+   * and extensions, on up to as many threads as the `crumb.options.threads` option allows, while all element reads and
+   * [Filer] writes still happen serially on the processing thread. Planning consumers are given their metadata up
+   * front, and are never [streamed][isStreamingConsumer].
+   */
+  @JvmDefault
+  fun isPlanningConsumer(): Boolean {
+    return false
+  }
+
+  /**
+   * Invoked instead of [consume] for [planning consumers][isPlanningConsumer], to plan the files generated from the
+   * set of collected [ConsumerMetadata]. The CrumbProcessor builds the returned files afterwards, possibly in parallel,
+   * and then writes them in order.
+   *
+   * This runs on the processing thread, so it should resolve everything it needs from [type] and other elements here,
+   * such as class and package names, and capture only immutable data in the returned files. It must not use the
+   * [Filer].
+   *
+   * @param context the [CrumbContext].
+   * @param type the type this is consuming on.
+   * @param annotations collected [CrumbQualifier]-annotated annotations on [type].
+   * @param metadata collected metadata associated with this extension.
+   * @return the files to generate.
+   */
+  @JvmDefault
+  fun planConsume(context: CrumbContext,
+      type: TypeElement,
+      annotations: Collection<AnnotationMirror>,
+      metadata: Set<ConsumerMetadata>): List<CrumbGeneratedFile> {
+    return emptyList()
+  }
+
   /**
    * Determines the incremental type of this Extension.
    *
@@ -24,6 +24,8 @@ import javax.annotation.processing.RoundEnvironment
  *
  * @param processingEnv The ProcessingEnvironment
  * @param roundEnv the RoundEnvironment
+ * @param types memoized type lookups, shared by all extensions in the current round.
  */
-class CrumbContext(val processingEnv: ProcessingEnvironment,
-    val roundEnv: RoundEnvironment)
+class CrumbContext @JvmOverloads constructor(val processingEnv: ProcessingEnvironment,
+    val roundEnv: RoundEnvironment,
+    val types: CrumbTypes = CrumbTypes(processingEnv))
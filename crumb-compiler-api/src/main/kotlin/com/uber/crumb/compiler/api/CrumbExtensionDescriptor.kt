@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.compiler.api
+
+import com.uber.crumb.annotations.CrumbConsumer
+import com.uber.crumb.annotations.CrumbProducer
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.UNKNOWN
+import kotlin.reflect.KClass
+
+/**
+ * Describes a [CrumbProducerExtension] or [CrumbConsumerExtension] ahead of time, so that the CrumbProcessor can
+ * defer instantiating and initializing it until one of its annotations appears in a compilation.
+ *
+ * With `crumb-extension-processor` on the extension's annotation processor path, these are written into the
+ * [CRUMB_EXTENSION_DESCRIPTORS_RESOURCE] resource in the extension's jar, which the CrumbProcessor reads instead of
+ * loading the extension. The extension still needs to be registered in `META-INF/services`, and its descriptor only
+ * applies to the kinds of extension it's registered as there. The values given here must match what the extension
+ * itself returns, or the descriptor will activate it for the wrong annotations, or report the wrong incremental type
+ * while it's inactive. Extensions described without any annotations are offered every annotation, so they're loaded
+ * eagerly like undescribed ones.
+ *
+ * @property producerAnnotations the same as the extension's
+ *           [supportedProducerAnnotations][CrumbProducerExtension.supportedProducerAnnotations]. These must be
+ *           [CrumbProducer]-annotated.
+ * @property consumerAnnotations the same as the extension's
+ *           [supportedConsumerAnnotations][CrumbConsumerExtension.supportedConsumerAnnotations]. These must be
+ *           [CrumbConsumer]-annotated.
+ * @property producerIncrementalType the extension's
+ *           [producerIncrementalType][CrumbProducerExtension.producerIncrementalType], if it's a producer.
+ * @property consumerIncrementalType the extension's
+ *           [consumerIncrementalType][CrumbConsumerExtension.consumerIncrementalType], if it's a consumer.
+ */
+@Retention(AnnotationRetention.BINARY)
+@Target(AnnotationTarget.CLASS)
+annotation class CrumbExtensionDescriptor(
+  val producerAnnotations: Array<KClass<out Annotation>> = [],
+  val consumerAnnotations: Array<KClass<out Annotation>> = [],
+  val producerIncrementalType: IncrementalExtensionType = UNKNOWN,
+  val consumerIncrementalType: IncrementalExtensionType = UNKNOWN
+)
+
+/**
+ * The resource that [CrumbExtensionDescriptor]s are written to, which is read from every jar on the processor path.
+ * This is separate from the `META-INF/crumb` directory that indices may be stored in.
+ */
+const val CRUMB_EXTENSION_DESCRIPTORS_RESOURCE = "META-INF/crumb-extensions"
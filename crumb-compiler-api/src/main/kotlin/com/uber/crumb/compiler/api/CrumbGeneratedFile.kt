@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.compiler.api
+
+import java.io.IOException
+import javax.annotation.processing.Filer
+
+/**
+ * A file planned by a [planning consumer][CrumbConsumerExtension.isPlanningConsumer], such as a JavaPoet `JavaFile`
+ * or KotlinPoet `FileSpec` to build. The CrumbProcessor [builds][build] these in parallel once all planning is done,
+ * and then writes them itself on the processing thread.
+ */
+interface CrumbGeneratedFile {
+
+  /**
+   * Builds the contents of this file ahead of [writeTo]. Does nothing by default.
+   *
+   * This may run on another thread, concurrently with other files. Javac isn't thread-safe, so this must only use
+   * immutable data that was resolved when the file was planned, and not read any elements or types, or use the
+   * [Filer] or `Messager`. Exceptions thrown here are reported as errors on the consuming type.
+   */
+  @JvmDefault
+  fun build() {
+  }
+
+  /**
+   * Writes this file.
+   *
+   * @param filer the [Filer] to write with.
+   */
+  @Throws(IOException::class)
+  fun writeTo(filer: Filer)
+}
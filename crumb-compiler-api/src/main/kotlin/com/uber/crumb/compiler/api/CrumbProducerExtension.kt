@@ -31,6 +31,9 @@ interface CrumbProducerExtension : CrumbExtension {
   /**
    * Supported producer annotations, if any, that the CrumbProcessor should collect on this
    * extension's behalf. Empty by default.
+   *
+   * Types are only offered to [isProducerApplicable] if they have one of these annotations. Extensions that
+   * support none are offered every type annotated with another extension's supported producer annotations instead.
    */
   @JvmDefault
   fun supportedProducerAnnotations(): Set<Class<out Annotation>> {
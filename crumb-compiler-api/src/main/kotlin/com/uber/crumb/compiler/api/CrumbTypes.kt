@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.compiler.api
+
+import javax.annotation.processing.ProcessingEnvironment
+import javax.lang.model.element.Element
+import javax.lang.model.element.TypeElement
+import javax.lang.model.type.TypeMirror
+
+/**
+ * Memoized type lookups, shared by all extensions for the duration of a processing round.
+ *
+ * Consumers typically resolve the type named in every metadata entry they collect, and then check whether it's
+ * assignable to some target type or list its members. Each of these forces the compiler to complete the type's symbol,
+ * so resolving them through this instead means that types shared by several consumers, or several consuming types, are
+ * only completed once.
+ *
+ * Elements aren't guaranteed to remain valid across rounds, so the CrumbProcessor creates a new instance for each
+ * one, and extensions shouldn't hold on to it either. Only types that could be found are remembered, since a type
+ * that can't be found yet may still be generated later in the round.
+ *
+ * This isn't thread-safe, like the javac APIs it wraps, so it must only be used on the processing thread. Planning
+ * consumers resolve their types in [CrumbConsumerExtension.planConsume], which the CrumbProcessor calls there, and not
+ * in [CrumbGeneratedFile.build], which may run concurrently.
+ *
+ * @param processingEnv The ProcessingEnvironment
+ */
+class CrumbTypes(private val processingEnv: ProcessingEnvironment) {
+
+  private val typeElements = HashMap<String, TypeElement>()
+  private val assignability = HashMap<Pair<TypeMirror, TypeMirror>, Boolean>()
+  private val enclosedElements = HashMap<TypeElement, List<Element>>()
+
+  /**
+   * @param qualifiedName the canonical name of the type, such as one collected in producer metadata.
+   * @return the type with the given [qualifiedName], or null if it can't be found.
+   */
+  fun typeElement(qualifiedName: String): TypeElement? {
+    typeElements[qualifiedName]?.let { return it }
+    return processingEnv.elementUtils.getTypeElement(qualifiedName)
+        ?.also { typeElements[qualifiedName] = it }
+  }
+
+  /**
+   * Resolves several types at once, looking up each distinct name only once.
+   *
+   * @param qualifiedNames the canonical names of the types.
+   * @return the found types by their name, in the order of [qualifiedNames]. Names that can't be found are omitted.
+   */
+  fun typeElements(qualifiedNames: Iterable<String>): Map<String, TypeElement> {
+    val resolved = LinkedHashMap<String, TypeElement>()
+    qualifiedNames.forEach { name ->
+      if (name !in resolved) {
+        typeElement(name)?.let { resolved[name] = it }
+      }
+    }
+    return resolved
+  }
+
+  /**
+   * @param type the type to check.
+   * @param target the type to check against.
+   * @return whether [type] is assignable to [target], as per [Types.isAssignable][javax.lang.model.util.Types].
+   */
+  fun isAssignable(type: TypeMirror, target: TypeMirror): Boolean {
+    return assignability.getOrPut(type to target) { processingEnv.typeUtils.isAssignable(type, target) }
+  }
+
+  /**
+   * @param type the type whose members to return.
+   * @return the [enclosed elements][TypeElement.getEnclosedElements] of [type].
+   */
+  fun enclosedElements(type: TypeElement): List<Element> {
+    return enclosedElements.getOrPut(type) { type.enclosedElements.toList() }
+  }
+}
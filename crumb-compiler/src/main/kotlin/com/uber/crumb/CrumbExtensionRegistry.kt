@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb
+
+import com.uber.crumb.compiler.api.CRUMB_EXTENSION_DESCRIPTORS_RESOURCE
+import com.uber.crumb.compiler.api.CrumbConsumerExtension
+import com.uber.crumb.compiler.api.CrumbExtension
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor
+import com.uber.crumb.compiler.api.CrumbProducerExtension
+import okio.buffer
+import okio.source
+import java.io.IOException
+import java.util.ServiceConfigurationError
+
+/**
+ * Finds the Crumb extensions on a processor path without instantiating them.
+ *
+ * Like [java.util.ServiceLoader], extensions are registered in `META-INF/services` files, but these are read here
+ * directly so that extensions with a [CrumbExtensionDescriptor] aren't instantiated until they're
+ * [activated][CrumbProcessor]. Descriptors only apply to the kinds of extension that their class is also registered as
+ * in `META-INF/services`, so a stray descriptor can't load a class that isn't registered. Each extension class is only
+ * instantiated once, even if it's registered as both a producer and a consumer. Failures are reported as
+ * [ServiceConfigurationError]s, as [java.util.ServiceLoader] would.
+ */
+internal class CrumbExtensionRegistry(private val classLoader: ClassLoader) {
+
+  /** An extension described by a [CrumbExtensionDescriptor], read from its descriptors resource. */
+  class Descriptor(
+    val className: String,
+    val producerAnnotations: Set<String>,
+    val consumerAnnotations: Set<String>,
+    val producerIncrementalType: IncrementalExtensionType?,
+    val consumerIncrementalType: IncrementalExtensionType?
+  )
+
+  private val instances = mutableMapOf<String, CrumbExtension>()
+
+  /**
+   * @return the descriptors of every described extension that's also registered in `META-INF/services`, limited to the
+   *         kinds of extension it's registered as. Only the first descriptor of each class is used.
+   */
+  fun descriptors(): List<Descriptor> {
+    val producers = serviceClassNames(CrumbProducerExtension::class.java, emptySet())
+    val consumers = serviceClassNames(CrumbConsumerExtension::class.java, emptySet())
+    return readLines(CRUMB_EXTENSION_DESCRIPTORS_RESOURCE)
+        .map(::parseDescriptor)
+        .distinctBy { it.className }
+        .mapNotNull { descriptor ->
+          val producer = descriptor.className in producers
+          val consumer = descriptor.className in consumers
+          when {
+            !producer && !consumer -> null
+            producer && consumer -> descriptor
+            else -> Descriptor(
+              className = descriptor.className,
+              producerAnnotations = if (producer) descriptor.producerAnnotations else emptySet(),
+              consumerAnnotations = if (consumer) descriptor.consumerAnnotations else emptySet(),
+              producerIncrementalType = if (producer) descriptor.producerIncrementalType else null,
+              consumerIncrementalType = if (consumer) descriptor.consumerIncrementalType else null
+            )
+          }
+        }
+  }
+
+  /** @return the class names registered for the given [service] that aren't [excluded], in order. */
+  fun serviceClassNames(service: Class<out CrumbExtension>, excluded: Set<String>): Set<String> {
+    return readLines("META-INF/services/${service.name}")
+        .filterNotTo(LinkedHashSet()) { it in excluded }
+  }
+
+  /**
+   * @param className the binary name of the extension class.
+   * @param service the type the extension must implement.
+   * @return the single instance of the extension with the given [className].
+   */
+  fun <T : CrumbExtension> load(className: String, service: Class<T>): T {
+    val extension = instances.getOrPut(className) {
+      try {
+        Class.forName(className, true, classLoader)
+            .asSubclass(CrumbExtension::class.java)
+            .getDeclaredConstructor()
+            .newInstance()
+      } catch (e: ReflectiveOperationException) {
+        throw ServiceConfigurationError("Crumb extension $className could not be instantiated", e)
+      } catch (e: ClassCastException) {
+        throw ServiceConfigurationError("Crumb extension $className isn't a ${CrumbExtension::class.java.name}", e)
+      }
+    }
+    if (!service.isInstance(extension)) {
+      throw ServiceConfigurationError("Crumb extension $className isn't a ${service.name}")
+    }
+    return service.cast(extension)
+  }
+
+  /** @return the non-blank lines of every resource with the given [name], without `#` comments. */
+  private fun readLines(name: String): List<String> {
+    val lines = mutableListOf<String>()
+    try {
+      classLoader.getResources(name).asSequence().forEach { url ->
+        url.openStream().source().buffer().use { source ->
+          while (true) {
+            val line = source.readUtf8Line() ?: break
+            line.substringBefore('#').trim().takeIf(String::isNotEmpty)?.let { lines += it }
+          }
+        }
+      }
+    } catch (e: IOException) {
+      throw ServiceConfigurationError("Could not read $name", e)
+    }
+    return lines
+  }
+
+  private fun parseDescriptor(line: String): Descriptor {
+    val tokens = line.split(WHITESPACE)
+    val attributes = tokens.drop(1).associate { it.substringBefore('=') to it.substringAfter('=', "") }
+    val annotations = { name: String ->
+      attributes[name].orEmpty().split(',').filterTo(LinkedHashSet(), String::isNotEmpty)
+    }
+    val incrementalType = { name: String ->
+      attributes[name]?.let { value ->
+        IncrementalExtensionType.values().find { it.name == value }
+            ?: throw ServiceConfigurationError("Unrecognized $name '$value' for Crumb extension ${tokens[0]}")
+      }
+    }
+    return Descriptor(
+      className = tokens[0],
+      producerAnnotations = annotations("producerAnnotations"),
+      consumerAnnotations = annotations("consumerAnnotations"),
+      producerIncrementalType = incrementalType("producerIncrementalType"),
+      consumerIncrementalType = incrementalType("consumerIncrementalType")
+    )
+  }
+
+  private companion object {
+    val WHITESPACE = Regex("\\s+")
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb
+
+import com.uber.crumb.internal.model.Crumb
+import okio.Buffer
+import okio.ByteString
+import java.security.MessageDigest
+
+/**
+ * A process-wide cache of decoded [Crumb] models, keyed by the SHA-256 hash of their index payload and the extension
+ * keys they were decoded with. Build daemons reuse annotation processor classloaders across builds, so this lets later
+ * compilations skip decoding indices that were already decoded before.
+ *
+ * Entries are spread across independently locked LRU segments so that concurrent compilations in the same process
+ * don't contend on a single lock. Each segment gets an even share of the byte budget, and entries are weighed by the
+ * size of their index payload. This is only a rough approximation of their retained size, but it's known up front
+ * rather than by walking each decoded model.
+ */
+internal object CrumbModelCache {
+
+  private const val SEGMENT_COUNT = 16
+
+  private val segments = Array(SEGMENT_COUNT) { Segment() }
+
+  /**
+   * @param payload the raw index payload to decode.
+   * @param extensionKeys the extension keys that [decode] decodes metadata for.
+   * @param maxBytes the byte budget of the whole cache. Since this is shared by all compilations in the process, the
+   *                 most recent budget is applied when adding entries.
+   * @param decode decodes the given payload if it isn't cached yet.
+   * @return the cached or newly decoded [Crumb].
+   */
+  fun getOrDecode(
+      payload: ByteArray,
+      extensionKeys: Set<String>,
+      maxBytes: Long,
+      decode: (ByteArray) -> Crumb): Crumb {
+    val key = Buffer()
+        .write(MessageDigest.getInstance("SHA-256").digest(payload))
+        .apply { extensionKeys.sorted().forEach { writeUtf8(it).writeByte(0) } }
+        .sha256()
+    val segment = segments[(key.hashCode() and Int.MAX_VALUE) % SEGMENT_COUNT]
+    segment[key]?.let { return it }
+    val crumb = decode(payload)
+    segment.put(key, crumb, payload.size.toLong(), maxBytes / SEGMENT_COUNT)
+    return crumb
+  }
+
+  private class Segment {
+    private val entries = LinkedHashMap<ByteString, Entry>(16, 0.75f, true)
+    private var size = 0L
+
+    @Synchronized
+    operator fun get(key: ByteString): Crumb? = entries[key]?.crumb
+
+    @Synchronized
+    fun put(key: ByteString, crumb: Crumb, weight: Long, maxSize: Long) {
+      if (weight > maxSize) {
+        return
+      }
+      entries.put(key, Entry(crumb, weight))?.let { size -= it.weight }
+      size += weight
+      val iterator = entries.values.iterator()
+      while (size > maxSize && iterator.hasNext()) {
+        size -= iterator.next().weight
+        iterator.remove()
+      }
+    }
+  }
+
+  private class Entry(val crumb: Crumb, val weight: Long)
+}
@@ -16,40 +16,59 @@
 
 package com.uber.crumb
 
+import com.google.auto.common.AnnotationMirrors
 import com.google.auto.service.AutoService
 import com.google.common.annotations.VisibleForTesting
 import com.uber.crumb.annotations.CrumbConsumable
 import com.uber.crumb.annotations.CrumbConsumer
 import com.uber.crumb.annotations.CrumbProducer
 import com.uber.crumb.annotations.CrumbQualifier
+import com.uber.crumb.compiler.api.ConsumerMetadata
 import com.uber.crumb.compiler.api.CrumbConsumerExtension
 import com.uber.crumb.compiler.api.CrumbContext
 import com.uber.crumb.compiler.api.CrumbExtension
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.AGGREGATING
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.ISOLATING
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.UNKNOWN
+import com.uber.crumb.compiler.api.CrumbGeneratedFile
 import com.uber.crumb.compiler.api.CrumbProducerExtension
+import com.uber.crumb.compiler.api.CrumbTypes
 import com.uber.crumb.compiler.api.ExtensionKey
 import com.uber.crumb.compiler.api.ProducerMetadata
+import com.uber.crumb.core.CrumbCodec
+import com.uber.crumb.core.CrumbDictionary
+import com.uber.crumb.core.CrumbIndexContainer
+import com.uber.crumb.core.CrumbIndexEncoding
+import com.uber.crumb.core.CrumbKeyFilter
 import com.uber.crumb.core.CrumbLog
 import com.uber.crumb.core.CrumbLog.Client.MessagerClient
 import com.uber.crumb.core.CrumbManager
 import com.uber.crumb.core.CrumbOutputLanguage
+import com.uber.crumb.internal.model.CompactCrumbs
+import com.uber.crumb.internal.model.CompactMetadataMap
 import com.uber.crumb.internal.model.Crumb
 import com.uber.crumb.internal.model.CrumbMetadata
+import com.uber.crumb.internal.model.CrumbModelAdapters
+import com.uber.crumb.internal.model.SelectiveCrumbAdapter
 import net.ltgt.gradle.incap.IncrementalAnnotationProcessor
 import net.ltgt.gradle.incap.IncrementalAnnotationProcessorType
 import net.ltgt.gradle.incap.IncrementalAnnotationProcessorType.DYNAMIC
-import okio.GzipSink
-import okio.GzipSource
-import okio.buffer
+import okio.BufferedSource
+import java.io.File
+import java.io.IOException
+import java.net.URLClassLoader
 import java.util.ServiceConfigurationError
-import java.util.ServiceLoader
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ForkJoinPool
+import java.util.stream.Collectors
+import java.util.zip.Deflater
 import javax.annotation.processing.AbstractProcessor
 import javax.annotation.processing.ProcessingEnvironment
 import javax.annotation.processing.Processor
 import javax.annotation.processing.RoundEnvironment
 import javax.lang.model.SourceVersion
+import javax.lang.model.element.AnnotationMirror
 import javax.lang.model.element.Element
 import javax.lang.model.element.TypeElement
 import javax.lang.model.util.Elements
@@ -74,7 +93,113 @@ class CrumbProcessor : AbstractProcessor {
      */
     const val OPTION_VERBOSE = "crumb.options.verbose"
 
+    /**
+     * Option to override the [CrumbOutputLanguage] used for writing indices, such as `bytecode` to write index holders
+     * directly as class files. By default, this matches the source language of each producer.
+     */
+    const val OPTION_OUTPUT_LANGUAGE = "crumb.options.outputLanguage"
+
+    /**
+     * Option to set the [CrumbIndexEncoding] used for writing indices, such as `packed` to store them as compact
+     * strings. Default is `bytes`.
+     */
+    const val OPTION_INDEX_ENCODING = "crumb.options.indexEncoding"
+
+    /**
+     * Option to store and load indices as resources under `META-INF/crumb` rather than as holder types. This skips
+     * generating holder types entirely. Consumers read the resources from the compile classpath, taken from
+     * [OPTION_CLASSPATH] if set or otherwise looked up from javac (see [OPTION_CLASSPATH_SCANNING]). If neither is
+     * available, they fall back to the annotation processor's classloader, where producer modules are invisible unless
+     * they're on the processor path as well. All modules must agree on this option, as consumers only read resources
+     * when it's enabled.
+     */
+    const val OPTION_RESOURCE_INDICES = "crumb.options.resourceIndices"
+
+    /**
+     * Option to load indices by scanning the class files of the compile classpath directly rather than through javac's
+     * element APIs, which avoids completing every holder type on large classpaths. The compile classpath is taken from
+     * [OPTION_CLASSPATH] if set, or otherwise looked up from javac on a best-effort basis, which only works on JDK 8
+     * through 15 (see [CrumbManager.findCompileClasspath]). If neither is available, indices are loaded as usual.
+     */
+    const val OPTION_CLASSPATH_SCANNING = "crumb.options.classpathScanning"
+
+    /**
+     * Option to explicitly set the compile classpath to scan for indices, separated by the platform path separator.
+     * Setting this implies [OPTION_CLASSPATH_SCANNING].
+     */
+    const val OPTION_CLASSPATH = "crumb.options.classpath"
+
+    /**
+     * Option to set the number of threads used to scan the classpath, decode indices and build the files planned by
+     * [planning consumers][CrumbConsumerExtension.isPlanningConsumer] when consuming. Default is the number of
+     * available processors, and `1` disables parallelism entirely.
+     */
+    const val OPTION_THREADS = "crumb.options.threads"
+
+    /**
+     * Option to enable a process-wide cache of decoded indices with the given budget in bytes of their payloads, such
+     * as `67108864` for 64MB. This is shared across compilations in long-lived processes like the Gradle daemon, so
+     * indices of unchanged dependencies are only decoded once. Disabled by default.
+     */
+    const val OPTION_CACHE_SIZE = "crumb.options.cacheSize"
+
+    /**
+     * Option to set the version of the index format to write. Version `2` writes a [CrumbIndexContainer] with a section
+     * per extension, so consumers only decompress and decode the metadata of extensions they use. Version `3` writes
+     * the same container, but stores every distinct string of the index once in a string table that the sections refer
+     * to, and decoded strings are interned across indices. Default is `1`, a single gzip stream, as older consumers can
+     * only read that. Consumers always read all versions.
+     */
+    const val OPTION_INDEX_VERSION = "crumb.options.indexVersion"
+
+    /**
+     * Option to write a [CrumbKeyFilter] of the extension keys and metadata keys of each version 1 index into an extra
+     * field of its gzip header, so consumers can skip indices without metadata for their extensions before
+     * decompressing them. Gzip readers skip unknown extra fields, so older consumers still read these indices. Versions
+     * 2 and 3 ignore this, as their uncompressed table of contents already lists their extension keys. Disabled by
+     * default. Consumers always check filters when they're present.
+     */
+    const val OPTION_KEY_FILTERS = "crumb.options.keyFilters"
+
+    /**
+     * Option to write a separate index per extension, each in a partition derived from its [ExtensionKey]. Consumers
+     * then only read the partitions of extensions that apply to them. Consumers always read both partitioned and
+     * unpartitioned indices.
+     */
+    const val OPTION_PARTITION_INDICES = "crumb.options.partitionIndices"
+
+    /**
+     * Option to set the [CrumbCodec] of the sections of version 2 and 3 indices by name, such as `stored`, `deflate`,
+     * `gzip`, `dictionary`, or the name of a custom codec. Default is `deflate`. The codec is recorded in each section,
+     * so consumers don't need to be configured the same way. Version 1 indices are always gzip.
+     */
+    const val OPTION_CODEC = "crumb.options.codec"
+
+    /**
+     * Option to set the deflate compression level from `0` to `9`, for the `deflate`, `gzip`, and `dictionary` codecs
+     * of version 2 and 3 indices and for version 1 indices. Other codecs ignore it. Default is `9` for versions 2 and
+     * 3, and `6` for version 1.
+     */
+    const val OPTION_CODEC_LEVEL = "crumb.options.codecLevel"
+
+    /**
+     * Option to set the path of a [CrumbDictionary] file for the `dictionary` codec, such as one trained with
+     * [com.uber.crumb.core.CrumbDictionaryTrainer]. Default is [CrumbDictionary.DEFAULT]. Consumers need this option
+     * as well to read indices that were written with it.
+     */
+    const val OPTION_DICTIONARY = "crumb.options.dictionary"
+
+    /**
+     * Option to defer consumers until a round without any new producers, so that they see the producers that other
+     * processors generated in the rounds before, and to load indices from the classpath only once for all consumers
+     * deferred together. Files generated by consumers are then still processed in the following round. Consumers that
+     * only appear in the final round run there as a fallback, where files they generate aren't processed by other
+     * annotation processors. Disabled by default, so consumers run in the round they appear in.
+     */
+    const val OPTION_DEFER_CONSUMERS = "crumb.options.deferConsumers"
+
     private const val CRUMB_INDICES_PACKAGE = "com.uber.crumb.indices"
+    private const val CRUMB_RESOURCES_DIRECTORY = "META-INF/crumb"
   }
 
   // Depending on how this CrumbProcessor was constructed, we might already have a list of
@@ -87,9 +212,46 @@ class CrumbProcessor : AbstractProcessor {
   private lateinit var elementUtils: Elements
   private lateinit var crumbLog: CrumbLog
   private lateinit var crumbManager: CrumbManager
+  private lateinit var types: CrumbTypes
+  private var outputLanguage: CrumbOutputLanguage? = null
+  private var indexEncoding = CrumbIndexEncoding.BYTES
+  private var resourceIndices = false
+  private var classpathScanning = false
+  private var threads = Runtime.getRuntime().availableProcessors()
+  private var cacheSize = 0L
+  private var indexVersion = 1
+  private var keyFilters = false
+  private var partitionIndices = false
+  private var codec: CrumbCodec? = null
+  private var codecLevel: Int? = null
+  private var dictionary = CrumbDictionary.DEFAULT
+  private var deferConsumers = false
+
+  // Qualified names of the consumer types that haven't run yet, if deferConsumers is enabled. Types are resolved again
+  // in the round they run in, rather than holding on to elements from earlier rounds.
+  private val deferredConsumers = LinkedHashSet<String>()
+
+  // Decoded models are cached across rounds, as the classpath can't change within a compilation. Holder-based models
+  // are keyed by the qualified name of their holder type, so that holders generated in earlier rounds are only read if
+  // they weren't already produced locally. Classpath models only contain metadata for decodedExtensionKeys.
+  private val localModelCache = mutableMapOf<String, Crumb>()
+  private val holderModelCache = mutableMapOf<String, Crumb?>()
+  private var classpathModelCache: List<Crumb?>? = null
+  private var resourceLoader: URLClassLoader? = null
+  private var decodedExtensionKeys = emptySet<ExtensionKey>()
 
   private lateinit var supportedTypes: Set<String>
 
+  // Described extensions that haven't been instantiated yet, since none of their annotations have appeared so far.
+  private var extensionRegistry: CrumbExtensionRegistry? = null
+  private var pendingExtensions = emptyList<CrumbExtensionRegistry.Descriptor>()
+
+  // Built in init(), and again whenever described extensions are activated: each supported @CrumbProducer- or
+  // @CrumbConsumer-annotated annotation, mapped to the extensions that declared it. Annotated elements are only offered
+  // to the extensions interested in them.
+  private var producerDispatch = emptyMap<Class<out Annotation>, List<CrumbProducerExtension>>()
+  private var consumerDispatch = emptyMap<Class<out Annotation>, List<CrumbConsumerExtension>>()
+
   @Suppress("unused")
   constructor() : this(CrumbProcessor::class.java.classLoader)
 
@@ -119,16 +281,63 @@ class CrumbProcessor : AbstractProcessor {
   override fun getSupportedOptions(): Set<String> {
     val producerIncrementalType = producerExtensions.asSequence()
         .map { it.producerIncrementalType(processingEnv) }
+        .plus(pendingExtensions.asSequence().mapNotNull { it.producerIncrementalType })
         .min()
         ?: ISOLATING
     val consumerIncrementalType = consumerExtensions.asSequence()
         .map { it.consumerIncrementalType(processingEnv) }
+        .plus(pendingExtensions.asSequence().mapNotNull { it.consumerIncrementalType })
         .min()
         ?: ISOLATING
-    return arrayOf(OPTION_VERBOSE, producerIncrementalType.toOption(), consumerIncrementalType.toOption())
+    return arrayOf(OPTION_VERBOSE,
+        OPTION_OUTPUT_LANGUAGE,
+        OPTION_INDEX_ENCODING,
+        OPTION_RESOURCE_INDICES,
+        OPTION_CLASSPATH_SCANNING,
+        OPTION_CLASSPATH,
+        OPTION_THREADS,
+        OPTION_CACHE_SIZE,
+        OPTION_INDEX_VERSION,
+        OPTION_KEY_FILTERS,
+        OPTION_PARTITION_INDICES,
+        OPTION_CODEC,
+        OPTION_CODEC_LEVEL,
+        OPTION_DICTIONARY,
+        OPTION_DEFER_CONSUMERS,
+        producerIncrementalType.toOption(),
+        consumerIncrementalType.toOption())
         .filterNotNullTo(mutableSetOf())
   }
 
+  private inline fun <reified T : Enum<T>> enumOption(name: String): T? {
+    val option = processingEnv.options[name] ?: return null
+    return enumValues<T>().find { it.name.equals(option, ignoreCase = true) }
+        ?: run {
+          error(null, "Unrecognized $name: '$option'. Must be one of ${enumValues<T>().joinToString()}")
+          null
+        }
+  }
+
+  private fun compileClasspath(): List<File>? {
+    return processingEnv.options[OPTION_CLASSPATH]
+        ?.split(File.pathSeparator)
+        ?.filter(String::isNotBlank)
+        ?.map(::File)
+        ?: crumbManager.findCompileClasspath()
+  }
+
+  /**
+   * @return the [ClassLoader] to find resource indices with. This only covers the compile classpath where it's known,
+   *         and otherwise falls back to the processor's own, which only sees producers on the processor path.
+   */
+  private fun resourceClassLoader(): ClassLoader {
+    resourceLoader?.let { return it }
+    val classpath = compileClasspath() ?: return CrumbProcessor::class.java.classLoader
+    // No parent, as resources must only come from the compile classpath and not from the processor path.
+    return URLClassLoader(classpath.map { it.toURI().toURL() }.toTypedArray(), null)
+        .also { resourceLoader = it }
+  }
+
   private fun CrumbExtension.IncrementalExtensionType.toOption(): String? {
     return when (this) {
       ISOLATING -> IncrementalAnnotationProcessorType.ISOLATING.processorOption
@@ -148,16 +357,79 @@ class CrumbProcessor : AbstractProcessor {
       CrumbLog("CrumbProcessor")
     }
     crumbManager = CrumbManager(processingEnv, crumbLog)
+    outputLanguage = enumOption<CrumbOutputLanguage>(OPTION_OUTPUT_LANGUAGE)
+    indexEncoding = enumOption<CrumbIndexEncoding>(OPTION_INDEX_ENCODING) ?: CrumbIndexEncoding.BYTES
+    resourceIndices = processingEnv.options[OPTION_RESOURCE_INDICES]?.toBoolean() == true
+    classpathScanning = processingEnv.options[OPTION_CLASSPATH_SCANNING]?.toBoolean() == true ||
+        OPTION_CLASSPATH in processingEnv.options
+    keyFilters = processingEnv.options[OPTION_KEY_FILTERS]?.toBoolean() == true
+    partitionIndices = processingEnv.options[OPTION_PARTITION_INDICES]?.toBoolean() == true
+    deferConsumers = processingEnv.options[OPTION_DEFER_CONSUMERS]?.toBoolean() == true
+    processingEnv.options[OPTION_THREADS]?.let { option ->
+      val value = option.toIntOrNull()
+      if (value == null || value < 1) {
+        error(null, "Unrecognized $OPTION_THREADS: '$option'. Must be a positive integer")
+      } else {
+        threads = value
+      }
+    }
+    processingEnv.options[OPTION_CACHE_SIZE]?.let { option ->
+      val value = option.toLongOrNull()
+      if (value == null || value < 0) {
+        error(null, "Unrecognized $OPTION_CACHE_SIZE: '$option'. Must be a non-negative number of bytes")
+      } else {
+        cacheSize = value
+      }
+    }
+    processingEnv.options[OPTION_INDEX_VERSION]?.let { option ->
+      val value = option.toIntOrNull()
+      if (value == null || value !in 1..3) {
+        error(null, "Unrecognized $OPTION_INDEX_VERSION: '$option'. Must be 1, 2, or 3")
+      } else {
+        indexVersion = value
+      }
+    }
+    processingEnv.options[OPTION_CODEC]?.let { option ->
+      codec = CrumbCodec.forName(option) ?: run {
+        error(null, "Unrecognized $OPTION_CODEC: '$option'. Must be one of ${CrumbCodec.names().joinToString()}")
+        null
+      }
+    }
+    processingEnv.options[OPTION_CODEC_LEVEL]?.let { option ->
+      val value = option.toIntOrNull()
+      if (value == null || value !in 0..9) {
+        error(null, "Unrecognized $OPTION_CODEC_LEVEL: '$option'. Must be between 0 and 9")
+      } else {
+        codecLevel = value
+      }
+    }
+    processingEnv.options[OPTION_DICTIONARY]?.let { option ->
+      try {
+        dictionary = CrumbDictionary.read(File(option)).also(CrumbDictionary.Companion::register)
+      } catch (e: IOException) {
+        error(null, "Unreadable $OPTION_DICTIONARY: '$option'. ${e.message}")
+      } catch (e: IllegalArgumentException) {
+        error(null, "Unusable $OPTION_DICTIONARY: '$option'. ${e.message}")
+      }
+    }
     try {
-      if (loaderForExtensions != null) {
-        // ServiceLoader.load returns a lazily-evaluated Iterable, so evaluate it eagerly now
-        // to discover any exceptions.
-        producerExtensions = ServiceLoader.load(CrumbProducerExtension::class.java,
-            loaderForExtensions)
-            .iterator().asSequence().toSet()
-        consumerExtensions = ServiceLoader.load(CrumbConsumerExtension::class.java,
-            loaderForExtensions)
-            .iterator().asSequence().toSet()
+      loaderForExtensions?.let { loader ->
+        // Described extensions are only instantiated once their annotations appear, and all others eagerly now to
+        // discover any exceptions. Those described without any annotations are offered every annotation like
+        // extensions that support none, so they're instantiated eagerly too.
+        val registry = CrumbExtensionRegistry(loader)
+        val (eager, descriptors) = registry.descriptors().partition {
+          it.producerAnnotations.isEmpty() && it.consumerAnnotations.isEmpty()
+        }
+        val described = descriptors.mapTo(mutableSetOf()) { it.className }
+        producerExtensions = registry.serviceClassNames(CrumbProducerExtension::class.java, described)
+            .plus(eager.filter { it.producerIncrementalType != null }.map { it.className })
+            .mapTo(LinkedHashSet()) { registry.load(it, CrumbProducerExtension::class.java) }
+        consumerExtensions = registry.serviceClassNames(CrumbConsumerExtension::class.java, described)
+            .plus(eager.filter { it.consumerIncrementalType != null }.map { it.className })
+            .mapTo(LinkedHashSet()) { registry.load(it, CrumbConsumerExtension::class.java) }
+        extensionRegistry = registry
+        pendingExtensions = descriptors
       }
     } catch (t: Throwable) {
       val warning = buildString {
@@ -172,58 +444,158 @@ class CrumbProcessor : AbstractProcessor {
       processingEnv.messager.printMessage(WARNING, warning, null)
       producerExtensions = setOf()
       consumerExtensions = setOf()
+      pendingExtensions = emptyList()
     }
     producerExtensions.plus(consumerExtensions).forEach { it.init(processingEnv) }
-    val producerAnnotatedAnnotations = producerExtensions.flatMap { it.supportedProducerAnnotations() }
-        .filter { it.getAnnotation(CrumbProducer::class.java) != null }
-    val consumerAnnotatedAnnotations = consumerExtensions.flatMap { it.supportedConsumerAnnotations() }
-        .filter { it.getAnnotation(CrumbConsumer::class.java) != null }
+    buildDispatchTables()
     val baseCrumbAnnotations = listOf(CrumbConsumer::class, CrumbProducer::class,
         CrumbConsumable::class)
         .map { it.java }
-    supportedTypes = (baseCrumbAnnotations + producerAnnotatedAnnotations + consumerAnnotatedAnnotations)
+    supportedTypes = (baseCrumbAnnotations + producerDispatch.keys + consumerDispatch.keys)
         .map { it.name }
+        .plus(pendingExtensions.flatMap { it.producerAnnotations + it.consumerAnnotations })
         .toSet()
   }
 
+  private fun buildDispatchTables() {
+    producerDispatch = dispatchTable(producerExtensions, CrumbProducer::class.java) {
+      it.supportedProducerAnnotations()
+    }
+    consumerDispatch = dispatchTable(consumerExtensions, CrumbConsumer::class.java) {
+      it.supportedConsumerAnnotations()
+    }
+  }
+
+  /**
+   * Instantiates and initializes the pending described extensions that support any of the given [annotations], which
+   * are the supported annotations present in this round.
+   */
+  private fun activateExtensions(annotations: Set<TypeElement>) {
+    val registry = extensionRegistry ?: return
+    if (pendingExtensions.isEmpty() || annotations.isEmpty()) {
+      return
+    }
+    val present = annotations.mapTo(mutableSetOf()) { it.qualifiedName.toString() }
+    val (activated, pending) = pendingExtensions.partition { descriptor ->
+      descriptor.producerAnnotations.any { it in present } || descriptor.consumerAnnotations.any { it in present }
+    }
+    if (activated.isEmpty()) {
+      return
+    }
+    pendingExtensions = pending
+    val extensions = try {
+      activated.map { it to registry.load(it.className, CrumbExtension::class.java) }
+    } catch (e: ServiceConfigurationError) {
+      processingEnv.messager.printMessage(WARNING,
+          "An exception occurred while activating Crumb extensions. Exception: $e", null)
+      return
+    }
+    extensions.forEach { (_, extension) -> extension.init(processingEnv) }
+    // Extensions are only added as the kinds they're registered as, which are the kinds left in their descriptors.
+    producerExtensions = producerExtensions + extensions
+        .filter { (descriptor, _) -> descriptor.producerIncrementalType != null }
+        .map { (_, extension) -> extension }
+        .filterIsInstance<CrumbProducerExtension>()
+    consumerExtensions = consumerExtensions + extensions
+        .filter { (descriptor, _) -> descriptor.consumerIncrementalType != null }
+        .map { (_, extension) -> extension }
+        .filterIsInstance<CrumbConsumerExtension>()
+    buildDispatchTables()
+  }
+
+  /**
+   * @return the [marker]-annotated annotations among the given [extensions]' [supported] annotations, each mapped to
+   *         the extensions that support it, in the order of [extensions]. Extensions that support none of these are
+   *         mapped from every annotation, so that they're still offered every type like before dispatch tables.
+   */
+  private fun <T : CrumbExtension> dispatchTable(
+      extensions: Set<T>,
+      marker: Class<out Annotation>,
+      supported: (T) -> Set<Class<out Annotation>>): Map<Class<out Annotation>, List<T>> {
+    val supportedByExtension = extensions.associateWith { extension ->
+      supported(extension).filter { it.getAnnotation(marker) != null }
+    }
+    val table = LinkedHashMap<Class<out Annotation>, MutableList<T>>()
+    supportedByExtension.values.flatten().forEach { table[it] = mutableListOf() }
+    supportedByExtension.forEach { (extension, annotations) ->
+      (if (annotations.isEmpty()) table.keys else annotations).forEach { table.getValue(it) += extension }
+    }
+    return table
+  }
+
   override fun process(annotations: Set<TypeElement>, roundEnv: RoundEnvironment): Boolean {
-    val localModels = processProducers(roundEnv)
-    processConsumers(roundEnv, localModels)
+    activateExtensions(annotations)
+    // Elements aren't guaranteed to stay valid across rounds, so type lookups are only shared within one.
+    types = CrumbTypes(processingEnv)
+    // Types can be both producers and consumers, so their qualifiers are only looked up once per round.
+    val qualifierAnnotations = mutableMapOf<TypeElement, Set<AnnotationMirror>>()
+    val localModels = processProducers(roundEnv, qualifierAnnotations)
+    if (!deferConsumers) {
+      processConsumers(roundEnv, localModels.values, qualifierAnnotations, roundEnv::getElementsAnnotatedWith)
+    } else {
+      consumerDispatch.keys.flatMap { roundEnv.getElementsAnnotatedWith(it) }
+          .cast<TypeElement>()
+          .mapTo(deferredConsumers) { it.qualifiedName.toString() }
+      // A round without new producers is the first point where consumers can run without missing producers generated
+      // by other processors in earlier rounds, while still leaving a round to process what they generate. The final
+      // round never has new producers, so it runs any consumers that only appeared there.
+      if (localModels.isEmpty() && deferredConsumers.isNotEmpty()) {
+        val consumerTypes = deferredConsumers.mapNotNull { elementUtils.getTypeElement(it) }
+        deferredConsumers.clear()
+        processConsumers(roundEnv, localModels.values, qualifierAnnotations) { annotation ->
+          consumerTypes.filterTo(LinkedHashSet()) { it.getAnnotation(annotation) != null }
+        }
+      }
+    }
+    localModelCache += localModels
 
+    if (roundEnv.processingOver()) {
+      // Release the classpath's jars, as they'd otherwise stay open for the lifetime of a build daemon.
+      resourceLoader?.close()
+      resourceLoader = null
+    }
     return false
   }
 
-  private fun processProducers(roundEnv: RoundEnvironment): Set<Crumb> {
-    val context = CrumbContext(processingEnv, roundEnv)
-    val producers = producerExtensions.flatMap { it.supportedProducerAnnotations() }
-        .filter { it.getAnnotation(CrumbProducer::class.java) != null }
-        .flatMap { roundEnv.getElementsAnnotatedWith(it) }
-        .cast<TypeElement>()
-        .map {
-          val qualifierAnnotations = it.annotatedAnnotations<CrumbQualifier>()
-          val producerAnnotations = it.annotatedAnnotations<CrumbProducer>()
-          val crumbAnnotations = producerAnnotations + qualifierAnnotations
-          return@map it to crumbAnnotations
-        }
-        .distinctBy { it.first } // Cover for types with multiple producer annotations
-        .filter { (type, annotations) ->
-          producerExtensions.any {
-            it.isProducerApplicable(context, type, annotations)
-          }
-        }
+  /**
+   * Finds the types annotated with any annotation in the given [dispatch] table in a single pass, looking up each
+   * annotation only once even if several extensions support it.
+   *
+   * @param elementsAnnotatedWith finds the elements annotated with a given annotation, usually those of the round.
+   * @param marker [CrumbProducer] or [CrumbConsumer], whose annotated annotations are collected along with the
+   *               [CrumbQualifier]-annotated ones.
+   * @param qualifierAnnotations the [CrumbQualifier]-annotated annotations of types seen so far in this round.
+   * @return the annotated types, each with its collected annotations and the extensions interested in it.
+   */
+  private fun <T : CrumbExtension> dispatch(
+      elementsAnnotatedWith: (Class<out Annotation>) -> Set<Element>,
+      dispatch: Map<Class<out Annotation>, List<T>>,
+      marker: Class<out Annotation>,
+      qualifierAnnotations: MutableMap<TypeElement, Set<AnnotationMirror>>): List<Dispatched<T>> {
+    val interested = LinkedHashMap<TypeElement, MutableSet<T>>()
+    dispatch.forEach { (annotation, extensions) ->
+      elementsAnnotatedWith(annotation)
+          .cast<TypeElement>()
+          .forEach { type -> interested.getOrPut(type) { LinkedHashSet() } += extensions }
+    }
+    return interested.map { (type, extensions) ->
+      val qualifiers = qualifierAnnotations.getOrPut(type) { type.annotatedAnnotations<CrumbQualifier>() }
+      val crumbAnnotations = AnnotationMirrors.getAnnotatedAnnotations(type, marker) + qualifiers
+      Dispatched(type, crumbAnnotations, extensions)
+    }
+  }
 
-    return producers
-        .mapNotNullTo(mutableSetOf()) { (producer, crumbAnnotations) ->
-          val applicableExtensions = producerExtensions
+  private fun processProducers(
+      roundEnv: RoundEnvironment,
+      qualifierAnnotations: MutableMap<TypeElement, Set<AnnotationMirror>>): Map<String, Crumb> {
+    val context = CrumbContext(processingEnv, roundEnv, types)
+    return dispatch(roundEnv::getElementsAnnotatedWith, producerDispatch, CrumbProducer::class.java,
+        qualifierAnnotations)
+        .mapNotNull { (producer, crumbAnnotations, extensions) ->
+          val applicableExtensions = extensions
               .filter { it.isProducerApplicable(context, producer, crumbAnnotations) }
-
           if (applicableExtensions.isEmpty()) {
-            error(producer, """
-              |No extensions applicable for the given @CrumbProducer-annotated element
-              |Detected producers: [${producers.joinToString { it.toString() }}]
-              |Available extensions: [${producerExtensions.joinToString()}]
-              """.trimMargin())
-            return@mapNotNullTo null
+            return@mapNotNull null
           }
 
           val globalExtras = mutableMapOf<ExtensionKey, ProducerMetadata>()
@@ -233,71 +605,330 @@ class CrumbProcessor : AbstractProcessor {
           }
           val adapterName = producer.classNameOf()
           val packageName = producer.packageName()
-          val sink = crumbManager.store(
-              packageName = CRUMB_INDICES_PACKAGE,
-              fileName = "$adapterName$CRUMB_INDEX_SUFFIX",
-              outputLanguage = CrumbOutputLanguage.languageForType(producer),
-              originatingElements = setOf(producer) + globalExtras.values.flatMap { it.second }
-          )
-          val crumbModel = Crumb("$packageName.$adapterName", globalExtras.map { (extensionKey, producerMetadata) -> CrumbMetadata(extensionKey, producerMetadata.first) })
-          GzipSink(sink).buffer().use {
-            Crumb.ADAPTER.encode(it, crumbModel)
+          val name = "$packageName.$adapterName"
+          if (partitionIndices) {
+            // Write a separate index for each extension into its own partition
+            globalExtras.map { (extensionKey, producerMetadata) ->
+              val crumbModel = Crumb(name, listOf(CrumbMetadata(extensionKey, producerMetadata.first)))
+              val originatingElements = setOf(producer) + producerMetadata.second
+              storeIndex(producer, crumbModel, extensionKey, originatingElements) to crumbModel
+            }
+          } else {
+            val crumbModel = Crumb(name, globalExtras.map { (extensionKey, producerMetadata) ->
+              CrumbMetadata(extensionKey, producerMetadata.first)
+            })
+            val originatingElements = setOf(producer) + globalExtras.values.flatMap { it.second }
+            listOf(storeIndex(producer, crumbModel, null, originatingElements) to crumbModel)
           }
-          return@mapNotNullTo crumbModel
         }
+        .flatten()
+        .toMap()
   }
 
-  private fun processConsumers(roundEnv: RoundEnvironment, localModels: Set<Crumb>) {
-    val context = CrumbContext(processingEnv, roundEnv)
-    val consumers = consumerExtensions.flatMap { it.supportedConsumerAnnotations() }
-        .filter { it.getAnnotation(CrumbConsumer::class.java) != null }
-        .flatMap { roundEnv.getElementsAnnotatedWith(it) }
-        .cast<TypeElement>()
-        .map {
-          val qualifierAnnotations = it.annotatedAnnotations<CrumbQualifier>()
-          val consumerAnnotations = it.annotatedAnnotations<CrumbConsumer>()
-          val crumbAnnotations = consumerAnnotations + qualifierAnnotations
-          return@map it to crumbAnnotations
-        }
-        .distinctBy { it.first } // Cover for types with multiple consumer annotations
-        .filter { (type, annotations) ->
-          consumerExtensions.any {
-            it.isConsumerApplicable(context, type, annotations)
-          }
+  /**
+   * Writes the given [crumbModel] of the given [producer] to an index, optionally in the given [partition].
+   *
+   * @return the qualified name of the index-holder type, which is also used as a key for resource indices.
+   */
+  private fun storeIndex(
+      producer: TypeElement,
+      crumbModel: Crumb,
+      partition: ExtensionKey?,
+      originatingElements: Set<Element>): String {
+    val adapterName = producer.classNameOf()
+    val packageName = partition?.let { CrumbManager.partitionPackage(CRUMB_INDICES_PACKAGE, it) }
+        ?: CRUMB_INDICES_PACKAGE
+    val sink = if (resourceIndices) {
+      crumbManager.storeResource(
+          directory = partition?.let { CrumbManager.partitionDirectory(CRUMB_RESOURCES_DIRECTORY, it) }
+              ?: CRUMB_RESOURCES_DIRECTORY,
+          fileName = crumbModel.name,
+          originatingElements = originatingElements
+      )
+    } else {
+      crumbManager.store(
+          packageName = packageName,
+          fileName = "$adapterName$CRUMB_INDEX_SUFFIX",
+          outputLanguage = outputLanguage ?: CrumbOutputLanguage.languageForType(producer),
+          originatingElements = originatingElements,
+          encoding = indexEncoding
+      )
+    }
+    if (indexVersion >= 2) {
+      val sectionCodec = when (codec?.id) {
+        null, CrumbCodec.DEFLATE.id -> CrumbCodec.deflate(codecLevel ?: Deflater.BEST_COMPRESSION)
+        CrumbCodec.GZIP.id -> CrumbCodec.gzip(codecLevel ?: Deflater.BEST_COMPRESSION)
+        CrumbCodec.DICTIONARY.id -> CrumbCodec.dictionary(dictionary, codecLevel ?: Deflater.BEST_COMPRESSION)
+        else -> codec!!
+      }
+      sink.use {
+        CrumbIndexContainer.write(it,
+            name = crumbModel.name,
+            sections = if (indexVersion == 3) {
+              CompactCrumbs.encode(crumbModel)
+            } else {
+              crumbModel.extras.associate { metadata ->
+                metadata.extensionKey to CrumbModelAdapters.CRUMB_METADATA.encode(metadata)
+              }
+            },
+            codec = sectionCodec)
+      }
+    } else if (keyFilters) {
+      // Consumers can check the filter in the header to skip indices without any extensions they consume.
+      val keys = crumbModel.extras.flatMap { listOf(it.extensionKey) + it.producerMetadata.keys }
+      val deflate = codecLevel?.let(CrumbCodec.Companion::deflate) ?: CrumbCodec.DEFLATE
+      sink.use {
+        CrumbKeyFilter.writeGzip(it, CrumbModelAdapters.CRUMB.encode(crumbModel), keys, deflate)
+      }
+    } else {
+      val gzip = codecLevel?.let(CrumbCodec.Companion::gzip) ?: CrumbCodec.GZIP
+      sink.use {
+        it.write(gzip.encode(CrumbModelAdapters.CRUMB.encode(crumbModel)))
+      }
+    }
+    return "$packageName.$adapterName$CRUMB_INDEX_SUFFIX"
+  }
+
+  /**
+   * @param elementsAnnotatedWith finds the consumer types annotated with a given annotation.
+   */
+  private fun processConsumers(
+      roundEnv: RoundEnvironment,
+      localModels: Collection<Crumb>,
+      qualifierAnnotations: MutableMap<TypeElement, Set<AnnotationMirror>>,
+      elementsAnnotatedWith: (Class<out Annotation>) -> Set<Element>) {
+    val context = CrumbContext(processingEnv, roundEnv, types)
+    val consumers = dispatch(elementsAnnotatedWith, consumerDispatch, CrumbConsumer::class.java, qualifierAnnotations)
+        .mapNotNull { (type, annotations, extensions) ->
+          val applicableExtensions = extensions.filter { it.isConsumerApplicable(context, type, annotations) }
+          if (applicableExtensions.isEmpty()) null else Dispatched(type, annotations, applicableExtensions)
         }
     if (consumers.isEmpty()) {
       return
     }
 
-    // Load the producerMetadata from the classpath
-    val producerMetadataBlobs = crumbManager.load(CRUMB_INDICES_PACKAGE)
-
-    if (producerMetadataBlobs.isEmpty()) {
-      message(WARNING, consumers.map { it.first }.iterator().next(),
+    // Load the producerMetadata from the classpath, only decoding metadata for extensions that will consume it.
+    // Streaming consumers decode their metadata lazily instead, so it's only loaded up front for the others.
+    val applicableExtensions = consumers.flatMapTo(LinkedHashSet()) { it.extensions }
+    val extensionKeys = applicableExtensions
+        .filterNot { it.isStreaming() }
+        .mapTo(mutableSetOf()) { it.key }
+    val classpathIndices = if (extensionKeys.isEmpty()) emptyList() else loadClasspathModels(extensionKeys)
+    val classpathModels = classpathIndices.filterNotNull()
+
+    // Consumers are still called if the loaded indices only have metadata for other extensions, just not if there are
+    // none at all.
+    if (applicableExtensions.none { it.isStreaming() } &&
+        classpathIndices.isEmpty() &&
+        localModelCache.isEmpty()) {
+      message(WARNING, consumers.first().type,
           "No @CrumbProducer metadata found on the classpath.")
       return
     }
 
-    val producerMetadata = localModels + producerMetadataBlobs.map { blob ->
-      GzipSource(blob).buffer().use {
-        Crumb.ADAPTER.decode(it)
+    // Producers' metadata is identified by their name and extension key, rather than by hashing it entirely. A
+    // producer with partitioned indices has a separate model per extension, all with the same name. Metadata is made
+    // compact, which caches its hash code for the per-extension sets.
+    val localProducers = localModels + localModelCache.values
+    val seenMetadata = mutableSetOf<Pair<String, ExtensionKey>>()
+    val metadataByExtension = mutableMapOf<ExtensionKey, MutableSet<ConsumerMetadata>>()
+    (localProducers + classpathModels).forEach { crumb ->
+      crumb.extras.forEach { metadata ->
+        if (metadata.extensionKey in extensionKeys && seenMetadata.add(crumb.name to metadata.extensionKey)) {
+          metadataByExtension.getOrPut(metadata.extensionKey) { LinkedHashSet() } +=
+              CompactMetadataMap.copyOf(metadata.producerMetadata)
+        }
       }
     }
-    val metadataByExtension = producerMetadata
-        .flatMap { it.extras }
-        .groupBy({ it.extensionKey }) { it.producerMetadata }
-        .mapValues { it.value.toSet() }
 
-    // Iterate through the consumers to generate their implementations.
+    // Iterate through the consumers to generate their implementations. Planning consumers only plan their files here,
+    // which are then built in parallel and written here in order.
+    val plannedFiles = mutableListOf<PlannedFile>()
     consumers
-        .forEach { (consumer, crumbAnnotations) ->
-          consumerExtensions.forEach { extension ->
-            if (extension.isConsumerApplicable(context, consumer, crumbAnnotations)) {
+        .forEach { (consumer, crumbAnnotations, extensions) ->
+          extensions.forEach { extension ->
+            if (extension.isStreaming()) {
+              val metadata = streamMetadata(extension.key, localProducers)
+              extension.consumeStreaming(context, consumer, crumbAnnotations, metadata)
+            } else {
               val metadata = metadataByExtension[extension.key].orEmpty()
-              extension.consume(context, consumer, crumbAnnotations, metadata)
+              if (extension.isPlanningConsumer()) {
+                extension.planConsume(context, consumer, crumbAnnotations, metadata)
+                    .mapTo(plannedFiles) { PlannedFile(consumer, extension, it) }
+              } else {
+                extension.consume(context, consumer, crumbAnnotations, metadata)
+              }
             }
           }
         }
+    val failures = parallelMap(plannedFiles) { runCatching { it.file.build() }.exceptionOrNull() }
+    plannedFiles.forEachIndexed { index, (consumer, extension, file) ->
+      val failure = failures[index]
+      if (failure == null) {
+        file.writeTo(processingEnv.filer)
+      } else {
+        error(consumer, "Crumb extension %s could not build a file for %s. Exception: %s",
+            extension.key, consumer.qualifiedName, failure)
+      }
+    }
+  }
+
+  /** Planning consumers are always given their metadata up front, even if they're also streaming consumers. */
+  private fun CrumbConsumerExtension.isStreaming() = isStreamingConsumer() && !isPlanningConsumer()
+
+  /**
+   * @return a lazy sequence of the metadata for the given [extensionKey] from the [localProducers] and the classpath,
+   *         for [streaming consumers][CrumbConsumerExtension.isStreamingConsumer]. This is lazy per index rather than
+   *         per metadata entry: classpath indices are loaded one at a time as the sequence is iterated (resource
+   *         indices one jar or directory at a time), and each is read fully before its metadata is decoded. They're
+   *         loaded again on each iteration, so none are held on to.
+   */
+  private fun streamMetadata(extensionKey: ExtensionKey,
+      localProducers: Collection<Crumb>): Sequence<ConsumerMetadata> {
+    val extensionKeys = setOf(extensionKey)
+    val adapter = SelectiveCrumbAdapter(extensionKeys)
+    return Sequence {
+      // Producers are only deduped once they're known to have metadata for this extension, since a producer with
+      // partitioned indices has a separate model for each extension with the same name.
+      val producers = mutableSetOf<String>()
+      val classpathProducers = loadClasspathSequence(extensionKeys)
+          .mapNotNull { decodeBlob(it, extensionKeys, adapter) }
+      (localProducers.asSequence() + classpathProducers)
+          .flatMap { crumb ->
+            crumb.extras.asSequence()
+                .filter { it.extensionKey == extensionKey }
+                .map { crumb.name to it }
+          }
+          .filter { (name, _) -> producers.add(name) }
+          .map { (_, metadata) -> CompactMetadataMap.copyOf(metadata.producerMetadata) }
+          .iterator()
+    }
+  }
+
+  /** Like [loadClasspathModels], but lazily loads the undecoded indices of the given [partitions] without caching. */
+  private fun loadClasspathSequence(partitions: Set<ExtensionKey>): Sequence<BufferedSource> {
+    if (resourceIndices) {
+      return crumbManager.loadResourcesSequence(CRUMB_RESOURCES_DIRECTORY,
+          resourceClassLoader(),
+          partitions = partitions)
+    }
+    val classpath = if (classpathScanning) compileClasspath() else null
+    return if (classpath != null) {
+      crumbManager.loadFromClasspathSequence(CRUMB_INDICES_PACKAGE, classpath, partitions = partitions)
+    } else {
+      crumbManager.loadSequence(CRUMB_INDICES_PACKAGE, partitions = partitions)
+    }
+  }
+
+  /**
+   * @return the models of the indices on the classpath that may have metadata for the given [extensionKeys], with null
+   *         for indices whose [CrumbKeyFilter] shows that they have none. These still count as indices on the
+   *         classpath.
+   */
+  private fun loadClasspathModels(extensionKeys: Set<ExtensionKey>): List<Crumb?> {
+    if (!decodedExtensionKeys.containsAll(extensionKeys)) {
+      // Cached models are missing metadata for some of these extensions, so they need to be decoded again.
+      decodedExtensionKeys = decodedExtensionKeys + extensionKeys
+      holderModelCache.clear()
+      classpathModelCache = null
+    }
+    classpathModelCache?.let { return it }
+    val blobs = when {
+      resourceIndices -> crumbManager.loadResources(CRUMB_RESOURCES_DIRECTORY,
+          resourceClassLoader(),
+          partitions = decodedExtensionKeys)
+      classpathScanning -> compileClasspath()?.let {
+        crumbManager.loadFromClasspath(CRUMB_INDICES_PACKAGE, it, threads, partitions = decodedExtensionKeys)
+      }
+      else -> null
+    }
+    if (blobs != null) {
+      return decode(blobs).also { classpathModelCache = it }
+    }
+
+    // Holder types generated in earlier rounds show up here as well, so only read the ones we haven't seen yet.
+    val newHolders = crumbManager.loadNamed(CRUMB_INDICES_PACKAGE, partitions = decodedExtensionKeys)
+        .filterKeys { it !in holderModelCache && it !in localModelCache }
+        .mapNotNull { (name, read) -> read()?.let { name to it } }
+    holderModelCache += newHolders.map { it.first }.zip(decode(newHolders.map { it.second }))
+    return holderModelCache.values.toList()
+  }
+
+  /**
+   * Decodes the given [blobs] into [Crumb] models with metadata for [decodedExtensionKeys], going through the
+   * [CrumbModelCache] if enabled. These are independent of javac once read, so this is done in parallel.
+   *
+   * @return the decoded models in the same order as [blobs], with null for blobs whose [CrumbKeyFilter] shows that
+   *         they have no metadata for [decodedExtensionKeys].
+   */
+  private fun decode(blobs: Collection<BufferedSource>): List<Crumb?> {
+    val extensionKeys = decodedExtensionKeys
+    val adapter = SelectiveCrumbAdapter(extensionKeys)
+    return parallelMap(blobs) { decodeBlob(it, extensionKeys, adapter) }
+  }
+
+  /**
+   * Applies [transform] to the given [items] on a dedicated [ForkJoinPool] of [threads] threads, unless parallelism is
+   * disabled or there's only one item.
+   *
+   * @return the results in the same order as [items].
+   */
+  private fun <T, R> parallelMap(items: Collection<T>, transform: (T) -> R): List<R> {
+    if (threads == 1 || items.size < 2) {
+      return items.map(transform)
+    }
+    val pool = ForkJoinPool(threads)
+    try {
+      return pool.submit(Callable<List<R>> {
+        items.parallelStream()
+            .map { transform(it) }
+            .collect(Collectors.toList())
+      }).get()
+    } catch (e: ExecutionException) {
+      throw e.cause ?: e
+    } finally {
+      pool.shutdown()
+    }
+  }
+
+  /**
+   * Decodes the given [blob] into a [Crumb] model with metadata for [extensionKeys], going through the
+   * [CrumbModelCache] if enabled.
+   *
+   * @param adapter a [SelectiveCrumbAdapter] for [extensionKeys].
+   * @return the decoded model, or null if the blob's [CrumbKeyFilter] shows that it has no metadata for
+   *         [extensionKeys].
+   */
+  private fun decodeBlob(blob: BufferedSource,
+      extensionKeys: Set<ExtensionKey>,
+      adapter: SelectiveCrumbAdapter): Crumb? {
+    val keyFilter = CrumbKeyFilter.readGzip(blob)
+    if (keyFilter != null && extensionKeys.none(keyFilter::mightContain)) {
+      blob.close()
+      return null
+    }
+    val payload = blob.use { it.readByteArray() }
+    // Payloads are decoded from byte arrays, which the ProtoReader reads in place without further copies.
+    val decodePayload = { bytes: ByteArray ->
+      if (CrumbIndexContainer.isContainer(bytes)) {
+        // Only the sections of requested extensions need to be decompressed and decoded.
+        val container = CrumbIndexContainer.read(bytes)
+        if (CompactCrumbs.isCompact(container)) {
+          CompactCrumbs.decode(container, extensionKeys, CrumbStringPool::intern)
+        } else {
+          Crumb(container.name, container.keys
+              .filter { it in extensionKeys }
+              .map { key -> CrumbModelAdapters.CRUMB_METADATA.decode(container.sectionBytes(key)!!) })
+        }
+      } else {
+        adapter.decode(CrumbCodec.GZIP.decode(bytes))
+      }
+    }
+    return if (cacheSize > 0) {
+      CrumbModelCache.getOrDecode(payload, extensionKeys, cacheSize, decodePayload)
+    } else {
+      decodePayload(payload)
+    }
   }
 
   private fun error(element: Element?, message: String, vararg args: Any) {
@@ -318,5 +949,22 @@ class CrumbProcessor : AbstractProcessor {
   }
 }
 
+/** A file planned by a planning [extension] for a [consumer], to be built and then written. */
+private data class PlannedFile(
+  val consumer: TypeElement,
+  val extension: CrumbConsumerExtension,
+  val file: CrumbGeneratedFile
+)
+
+/**
+ * A type found through a dispatch table, with its collected [CrumbQualifier] and [CrumbProducer] or [CrumbConsumer]
+ * annotations and the extensions to offer it to.
+ */
+private data class Dispatched<T : CrumbExtension>(
+  val type: TypeElement,
+  val annotations: Collection<AnnotationMirror>,
+  val extensions: Collection<T>
+)
+
 @Suppress("UNCHECKED_CAST", "NOTHING_TO_INLINE")
 private inline fun <T> Iterable<*>.cast() = map { it as T }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb
+
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
+
+/**
+ * A process-wide pool of interned strings from decoded indices. Extension keys and producer metadata keys repeat
+ * across thousands of indices, so this lets all decoded models share one instance of each instead of retaining a copy
+ * per index.
+ *
+ * Unlike [String.intern], strings are only weakly referenced, so they can still be collected once no model refers to
+ * them anymore, such as between builds in long-lived processes. Strings are spread across independently locked
+ * segments so that concurrent decoding doesn't contend on a single lock.
+ */
+internal object CrumbStringPool {
+
+  private const val SEGMENT_COUNT = 16
+
+  private val segments = Array(SEGMENT_COUNT) { WeakHashMap<String, WeakReference<String>>() }
+
+  /**
+   * @param value the string to intern.
+   * @return the pooled instance equal to [value], which is [value] itself if there was none yet.
+   */
+  fun intern(value: String): String {
+    val segment = segments[(value.hashCode() and Int.MAX_VALUE) % SEGMENT_COUNT]
+    synchronized(segment) {
+      segment[value]?.get()?.let { return it }
+      segment[value] = WeakReference(value)
+      return value
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.internal.wire.FieldEncoding
+import com.uber.crumb.internal.wire.Message
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoReader
+import com.uber.crumb.internal.wire.ProtoWriter
+import com.uber.crumb.internal.wire.ReverseProtoWriter
+import com.uber.crumb.internal.wire.WireField
+import com.uber.crumb.internal.wire.internal.missingRequiredFields
+import kotlin.Any
+import kotlin.AssertionError
+import kotlin.Boolean
+import kotlin.Deprecated
+import kotlin.DeprecationLevel
+import kotlin.Int
+import kotlin.Nothing
+import kotlin.String
+import kotlin.collections.List
+import kotlin.jvm.JvmField
+import okio.ByteString
+
+/**
+ * A CrumbMetadata whose strings are indices into the CrumbStringTable of its index
+ */
+internal class CompactCrumbMetadata(
+  @field:WireField(
+    tag = 1,
+    adapter = "com.squareup.wire.ProtoAdapter#UINT32",
+    label = WireField.Label.REQUIRED
+  )
+  val extensionKey: Int,
+  /**
+   * Alternating key and value indices of the producer metadata entries
+   */
+  @field:WireField(
+    tag = 2,
+    adapter = "com.squareup.wire.ProtoAdapter#UINT32",
+    label = WireField.Label.PACKED
+  )
+  val producerMetadata: List<Int> = emptyList(),
+  unknownFields: ByteString = ByteString.EMPTY
+) : Message<CompactCrumbMetadata, Nothing>(ADAPTER, unknownFields) {
+  @Deprecated(
+    message = "Shouldn't be used in Kotlin",
+    level = DeprecationLevel.HIDDEN
+  )
+  override fun newBuilder(): Nothing {
+    throw AssertionError()
+  }
+
+  override fun equals(other: Any?): Boolean {
+    if (other === this) return true
+    if (other !is CompactCrumbMetadata) return false
+    return unknownFields == other.unknownFields
+        && extensionKey == other.extensionKey
+        && producerMetadata == other.producerMetadata
+  }
+
+  override fun hashCode(): Int {
+    var result = super.hashCode
+    if (result == 0) {
+      result = extensionKey.hashCode()
+      result = result * 37 + producerMetadata.hashCode()
+      super.hashCode = result
+    }
+    return result
+  }
+
+  override fun toString(): String {
+    val result = mutableListOf<String>()
+    result += """extensionKey=$extensionKey"""
+    if (producerMetadata.isNotEmpty()) result += """producerMetadata=$producerMetadata"""
+    return result.joinToString(prefix = "CompactCrumbMetadata{", separator = ", ", postfix = "}")
+  }
+
+  fun copy(
+    extensionKey: Int = this.extensionKey,
+    producerMetadata: List<Int> = this.producerMetadata,
+    unknownFields: ByteString = this.unknownFields
+  ): CompactCrumbMetadata = CompactCrumbMetadata(extensionKey, producerMetadata, unknownFields)
+
+  companion object {
+    @JvmField
+    val ADAPTER: ProtoAdapter<CompactCrumbMetadata> = object : ProtoAdapter<CompactCrumbMetadata>(
+      FieldEncoding.LENGTH_DELIMITED, 
+      CompactCrumbMetadata::class
+    ) {
+      override fun encodedSize(value: CompactCrumbMetadata): Int = 
+        ProtoAdapter.UINT32.encodedSizeWithTag(1, value.extensionKey) +
+        ProtoAdapter.UINT32.asPacked().encodedSizeWithTag(2, value.producerMetadata) +
+        value.unknownFields.size
+
+      override fun encode(writer: ProtoWriter, value: CompactCrumbMetadata) {
+        ProtoAdapter.UINT32.encodeWithTag(writer, 1, value.extensionKey)
+        ProtoAdapter.UINT32.asPacked().encodeWithTag(writer, 2, value.producerMetadata)
+        writer.writeBytes(value.unknownFields)
+      }
+
+      override fun encode(writer: ReverseProtoWriter, value: CompactCrumbMetadata) {
+        writer.writeBytes(value.unknownFields)
+        ProtoAdapter.UINT32.asPacked().encodeWithTag(writer, 2, value.producerMetadata)
+        ProtoAdapter.UINT32.encodeWithTag(writer, 1, value.extensionKey)
+      }
+
+      override fun decode(reader: ProtoReader): CompactCrumbMetadata {
+        var extensionKey: Int? = null
+        val producerMetadata = mutableListOf<Int>()
+        val unknownFields = reader.forEachTag { tag ->
+          when (tag) {
+            1 -> extensionKey = ProtoAdapter.UINT32.decode(reader)
+            2 -> producerMetadata.add(ProtoAdapter.UINT32.decode(reader))
+            else -> reader.readUnknownField(tag)
+          }
+        }
+        return CompactCrumbMetadata(
+          extensionKey = extensionKey ?: throw missingRequiredFields(extensionKey, "extensionKey"),
+          producerMetadata = producerMetadata,
+          unknownFields = unknownFields
+        )
+      }
+
+      override fun redact(value: CompactCrumbMetadata): CompactCrumbMetadata = value.copy(
+        unknownFields = ByteString.EMPTY
+      )
+    }
+  }
+}
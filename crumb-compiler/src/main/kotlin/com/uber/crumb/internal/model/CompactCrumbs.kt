@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.core.CrumbIndexContainer
+import java.io.IOException
+import java.net.ProtocolException
+
+/**
+ * Converts between [Crumb] models and the sections of compact [CrumbIndexContainer]s. Compact containers store every
+ * distinct string once in a [CrumbStringTable] section, and one [CompactCrumbMetadata] section per extension that
+ * refers to the table by index.
+ */
+internal object CompactCrumbs {
+
+  /** The key of the [CrumbStringTable] section. This can't clash with extension keys, which never contain NUL. */
+  const val STRING_TABLE_KEY = "\u0000strings"
+
+  /**
+   * @param container the container to check.
+   * @return true if the given [container] was written by [encode].
+   */
+  fun isCompact(container: CrumbIndexContainer) = STRING_TABLE_KEY in container.keys
+
+  /**
+   * @param crumb the model to encode.
+   * @return the sections of a compact container of the given [crumb], with the string table first.
+   */
+  fun encode(crumb: Crumb): Map<String, ByteArray> {
+    val strings = LinkedHashMap<String, Int>()
+    val indexOf = { value: String -> strings.getOrPut(value) { strings.size } }
+    val sections = crumb.extras.associate { metadata ->
+      metadata.extensionKey to CompactCrumbMetadata.ADAPTER.encode(CompactCrumbMetadata(
+          extensionKey = indexOf(metadata.extensionKey),
+          producerMetadata = metadata.producerMetadata.flatMap { (key, value) -> listOf(indexOf(key), indexOf(value)) }
+      ))
+    }
+    return mapOf(STRING_TABLE_KEY to CrumbStringTable.ADAPTER.encode(CrumbStringTable(strings.keys.toList()))) +
+        sections
+  }
+
+  /**
+   * @param container a container written by [encode].
+   * @param extensionKeys the extension keys to decode metadata for.
+   * @param intern interns decoded strings, so that equal strings of different containers can share one instance.
+   * @return the decoded [Crumb] with metadata for the given [extensionKeys].
+   * @throws IOException if the container is malformed.
+   */
+  @Throws(IOException::class)
+  fun decode(container: CrumbIndexContainer, extensionKeys: Set<String>, intern: (String) -> String): Crumb {
+    val keys = container.keys.filter { it != STRING_TABLE_KEY && it in extensionKeys }
+    if (keys.isEmpty()) {
+      return Crumb(container.name)
+    }
+    val strings = CrumbStringTable.ADAPTER.decode(container.sectionBytes(STRING_TABLE_KEY)!!).strings
+    // The table holds the strings of every extension, so only those the selected sections refer to are interned.
+    val interned = arrayOfNulls<String>(strings.size)
+    val stringAt = { index: Int ->
+      if (index !in strings.indices) {
+        throw ProtocolException("String index $index out of bounds in ${container.name}")
+      }
+      interned[index] ?: intern(strings[index]).also { interned[index] = it }
+    }
+    return Crumb(intern(container.name), keys.map { key ->
+      val metadata = CompactCrumbMetadata.ADAPTER.decode(container.sectionBytes(key)!!)
+      val size = metadata.producerMetadata.size
+      if (size % 2 != 0) {
+        throw ProtocolException("Odd number of producer metadata indices for $key in ${container.name}")
+      }
+      val entries = arrayOfNulls<String>(size)
+      for (i in 0 until size) {
+        entries[i] = stringAt(metadata.producerMetadata[i])
+      }
+      CrumbMetadata(stringAt(metadata.extensionKey), CompactMetadataMap.of(entries, size))
+    })
+  }
+}
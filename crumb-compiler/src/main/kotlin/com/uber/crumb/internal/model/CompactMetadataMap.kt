@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.Arrays
+
+/**
+ * An immutable [Map] of producer metadata, backed by parallel arrays of keys and values in insertion order and an
+ * index of their positions sorted by key.
+ *
+ * Consumers can hold metadata for a very large number of producers, each with only a handful of entries, so this
+ * avoids the per-entry nodes and hash table of a [LinkedHashMap]. Lookups are a binary search through the sorted
+ * index, which is as fast as hashing for such small maps. Iteration is in insertion order, like the [LinkedHashMap]
+ * that Wire decodes into. The hash code is cached, since consumers put these maps in sets.
+ */
+internal class CompactMetadataMap private constructor(
+  private val keyArray: Array<String>,
+  private val valueArray: Array<String>,
+  private val sortedIndex: IntArray
+) : AbstractMap<String, String>() {
+
+  private var cachedHashCode = 0
+
+  override val size: Int
+    get() = keyArray.size
+
+  override fun isEmpty() = keyArray.isEmpty()
+
+  override fun containsKey(key: String) = indexOf(key) >= 0
+
+  override fun get(key: String): String? {
+    val index = indexOf(key)
+    return if (index >= 0) valueArray[index] else null
+  }
+
+  override val entries: Set<Map.Entry<String, String>>
+    get() = object : AbstractSet<Map.Entry<String, String>>() {
+      override val size: Int
+        get() = keyArray.size
+
+      override fun iterator() = object : Iterator<Map.Entry<String, String>> {
+        private var index = 0
+
+        override fun hasNext() = index < keyArray.size
+
+        override fun next(): Map.Entry<String, String> {
+          if (index == keyArray.size) throw NoSuchElementException()
+          return SimpleImmutableEntry(keyArray[index], valueArray[index++])
+        }
+      }
+    }
+
+  override fun equals(other: Any?): Boolean {
+    if (other === this) return true
+    if (other is CompactMetadataMap) {
+      // Equal maps have the same entries in key order, whatever order they were inserted in.
+      if (keyArray.size != other.keyArray.size || hashCode() != other.hashCode()) return false
+      for (i in sortedIndex.indices) {
+        val index = sortedIndex[i]
+        val otherIndex = other.sortedIndex[i]
+        if (keyArray[index] != other.keyArray[otherIndex] || valueArray[index] != other.valueArray[otherIndex]) {
+          return false
+        }
+      }
+      return true
+    }
+    return super.equals(other)
+  }
+
+  override fun hashCode(): Int {
+    var result = cachedHashCode
+    if (result == 0) {
+      // Same as Map.hashCode(), which is the sum of the entries' hash codes.
+      for (i in keyArray.indices) {
+        result += keyArray[i].hashCode() xor valueArray[i].hashCode()
+      }
+      cachedHashCode = result
+    }
+    return result
+  }
+
+  /** @return the position of [key] in [keyArray], or a negative number if it's absent. */
+  private fun indexOf(key: String): Int {
+    val index = search(keyArray, sortedIndex, keyArray.size, key)
+    return if (index >= 0) sortedIndex[index] else -1
+  }
+
+  companion object {
+    private val EMPTY = CompactMetadataMap(emptyArray(), emptyArray(), IntArray(0))
+
+    /**
+     * @param entries keys at even indices, each followed by its value.
+     * @param size the number of [entries] to use, which is twice the number of entries.
+     * @return a map of the given [entries] in their order, where later duplicates of a key replace the earlier value
+     * but keep its position.
+     */
+    fun of(entries: Array<String?>, size: Int): Map<String, String> {
+      if (size == 0) return EMPTY
+      var keys = arrayOfNulls<String>(size / 2)
+      var values = arrayOfNulls<String>(size / 2)
+      var sortedIndex = IntArray(size / 2)
+      var count = 0
+      for (i in 0 until size step 2) {
+        val key = entries[i]!!
+        val index = search(keys, sortedIndex, count, key)
+        if (index >= 0) {
+          values[sortedIndex[index]] = entries[i + 1]
+        } else {
+          // Insert in the sorted index, which is just an append when the entries are already sorted.
+          val insertion = -index - 1
+          System.arraycopy(sortedIndex, insertion, sortedIndex, insertion + 1, count - insertion)
+          sortedIndex[insertion] = count
+          keys[count] = key
+          values[count] = entries[i + 1]
+          count++
+        }
+      }
+      if (count < keys.size) {
+        keys = keys.copyOf(count)
+        values = values.copyOf(count)
+        sortedIndex = sortedIndex.copyOf(count)
+      }
+      @Suppress("UNCHECKED_CAST")
+      return CompactMetadataMap(keys as Array<String>, values as Array<String>, sortedIndex)
+    }
+
+    /**
+     * @param map the map to copy.
+     * @return the given [map] if it's already a [CompactMetadataMap], otherwise a compact copy of it.
+     */
+    fun copyOf(map: Map<String, String>): Map<String, String> {
+      if (map is CompactMetadataMap) return map
+      val entries = arrayOfNulls<String>(map.size * 2)
+      var size = 0
+      for ((key, value) in map) {
+        entries[size++] = key
+        entries[size++] = value
+      }
+      return of(entries, size)
+    }
+
+    /**
+     * Binary searches the first [count] positions of [sortedIndex] for [key].
+     *
+     * @return the index in [sortedIndex] of the position of [key], or `-(insertion point) - 1` if it's absent, like
+     * [Arrays.binarySearch].
+     */
+    private fun search(keys: Array<out String?>, sortedIndex: IntArray, count: Int, key: String): Int {
+      var low = 0
+      var high = count - 1
+      while (low <= high) {
+        val mid = (low + high) ushr 1
+        val comparison = keys[sortedIndex[mid]]!!.compareTo(key)
+        when {
+          comparison < 0 -> low = mid + 1
+          comparison > 0 -> high = mid - 1
+          else -> return mid
+        }
+      }
+      return -(low + 1)
+    }
+  }
+}
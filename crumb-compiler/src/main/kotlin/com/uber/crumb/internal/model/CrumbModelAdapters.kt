@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.internal.wire.FieldEncoding
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoReader
+import com.uber.crumb.internal.wire.ProtoWriter
+import com.uber.crumb.internal.wire.ReverseProtoWriter
+
+/**
+ * Hand-written [ProtoAdapter]s for [Crumb] and [CrumbMetadata], which the processor uses in place of the Wire-generated
+ * `ADAPTER`s. These encode in a single reverse pass with [ReverseProtoWriter], which the generated adapters only
+ * support by encoding forwards and copying, and decode with the specialized [CrumbModelReader]. Everything else is the
+ * same as the generated adapters, which are left as generated.
+ */
+internal object CrumbModelAdapters {
+
+  @JvmField
+  val CRUMB_METADATA: ProtoAdapter<CrumbMetadata> = object : ProtoAdapter<CrumbMetadata>(
+      FieldEncoding.LENGTH_DELIMITED,
+      CrumbMetadata::class
+  ) {
+    private val producerMetadataAdapter: ProtoAdapter<Map<String, String>> =
+        ProtoAdapter.newMapAdapter(ProtoAdapter.STRING, ProtoAdapter.STRING)
+
+    override fun encodedSize(value: CrumbMetadata) = CrumbMetadata.ADAPTER.encodedSize(value)
+
+    override fun encode(writer: ProtoWriter, value: CrumbMetadata) = CrumbMetadata.ADAPTER.encode(writer, value)
+
+    override fun encode(writer: ReverseProtoWriter, value: CrumbMetadata) {
+      writer.writeBytes(value.unknownFields)
+      producerMetadataAdapter.encodeWithTag(writer, 2, value.producerMetadata)
+      ProtoAdapter.STRING.encodeWithTag(writer, 1, value.extensionKey)
+    }
+
+    override fun decode(reader: ProtoReader) = CrumbModelReader.readMetadata(reader, null)!!
+
+    override fun redact(value: CrumbMetadata) = CrumbMetadata.ADAPTER.redact(value)
+  }
+
+  @JvmField
+  val CRUMB: ProtoAdapter<Crumb> = object : ProtoAdapter<Crumb>(FieldEncoding.LENGTH_DELIMITED, Crumb::class) {
+    override fun encodedSize(value: Crumb) = Crumb.ADAPTER.encodedSize(value)
+
+    override fun encode(writer: ProtoWriter, value: Crumb) = Crumb.ADAPTER.encode(writer, value)
+
+    override fun encode(writer: ReverseProtoWriter, value: Crumb) {
+      writer.writeBytes(value.unknownFields)
+      CRUMB_METADATA.asRepeated().encodeWithTag(writer, 2, value.extras)
+      ProtoAdapter.STRING.encodeWithTag(writer, 1, value.name)
+    }
+
+    override fun decode(reader: ProtoReader) = CrumbModelReader.readCrumb(reader, null)
+
+    override fun redact(value: Crumb) = Crumb.ADAPTER.redact(value)
+  }
+}
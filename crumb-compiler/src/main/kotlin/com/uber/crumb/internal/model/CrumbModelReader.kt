@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.internal.wire.ProtoReader
+import com.uber.crumb.internal.wire.internal.missingRequiredFields
+
+/**
+ * Hand-specialized decoding of [Crumb] and [CrumbMetadata], which is the consumer side's per-blob inner loop.
+ *
+ * Unlike the generic adapters, `producerMetadata` entries are read straight into an array of keys and values instead
+ * of decoding a singleton map per entry and copying it, and then built into a [CompactMetadataMap] at once. Unknown
+ * fields are still preserved, but [ProtoReader] only buffers them when a message actually has unknown tags.
+ */
+internal object CrumbModelReader {
+
+  private const val INITIAL_ENTRIES_SIZE = 8
+
+  /**
+   * @param reader the reader positioned at a length-delimited [Crumb].
+   * @param extensionKeys the extension keys to decode metadata for, or null to decode all metadata.
+   * @return the decoded [Crumb].
+   */
+  fun readCrumb(reader: ProtoReader, extensionKeys: Set<String>?): Crumb {
+    var name: String? = null
+    val extras = ArrayList<CrumbMetadata>()
+    val token = reader.beginMessage()
+    while (true) {
+      val tag = reader.nextTag()
+      if (tag == -1) break
+      when (tag) {
+        1 -> name = reader.readString()
+        2 -> readMetadata(reader, extensionKeys)?.let { extras += it }
+        else -> reader.readUnknownField(tag)
+      }
+    }
+    val unknownFields = reader.endMessageAndGetUnknownFields(token)
+    return Crumb(
+      name = name ?: throw missingRequiredFields(name, "name"),
+      extras = extras,
+      unknownFields = unknownFields
+    )
+  }
+
+  /**
+   * @param reader the reader positioned at a length-delimited [CrumbMetadata].
+   * @param extensionKeys the extension keys to decode metadata for, or null to decode all metadata.
+   * @return the decoded [CrumbMetadata], or null if it's for an extension key that isn't in [extensionKeys].
+   */
+  fun readMetadata(reader: ProtoReader, extensionKeys: Set<String>?): CrumbMetadata? {
+    var extensionKey: String? = null
+    var skipping = false
+    // Keys at even indices and their values at the following odd ones.
+    var entries = arrayOfNulls<String>(INITIAL_ENTRIES_SIZE)
+    var entriesSize = 0
+    val token = reader.beginMessage()
+    while (true) {
+      val tag = reader.nextTag()
+      if (tag == -1) break
+      when {
+        tag == 1 -> {
+          val key = reader.readString()
+          extensionKey = key
+          skipping = extensionKeys != null && key !in extensionKeys
+        }
+        // The key is written first, so this skips everything else once we know it's not needed.
+        skipping -> reader.skip()
+        tag == 2 -> {
+          if (entriesSize == entries.size) {
+            entries = entries.copyOf(entriesSize * 2)
+          }
+          readEntry(reader, entries, entriesSize)
+          entriesSize += 2
+        }
+        else -> reader.readUnknownField(tag)
+      }
+    }
+    val unknownFields = reader.endMessageAndGetUnknownFields(token)
+    val key = extensionKey ?: throw missingRequiredFields(extensionKey, "extensionKey")
+    if (skipping) {
+      return null
+    }
+    return CrumbMetadata(
+      extensionKey = key,
+      producerMetadata = CompactMetadataMap.of(entries, entriesSize),
+      unknownFields = unknownFields
+    )
+  }
+
+  /** Reads a map entry into [entries] at [index] and [index] + 1, skipping any unknown fields of the entry. */
+  private fun readEntry(reader: ProtoReader, entries: Array<String?>, index: Int) {
+    var key: String? = null
+    var value: String? = null
+    val token = reader.beginMessage()
+    while (true) {
+      val tag = reader.nextTag()
+      if (tag == -1) break
+      when (tag) {
+        1 -> key = reader.readString()
+        2 -> value = reader.readString()
+        else -> reader.skip()
+      }
+    }
+    reader.endMessageAndGetUnknownFields(token)
+    check(key != null) { "Map entry with null key" }
+    check(value != null) { "Map entry with null value" }
+    entries[index] = key
+    entries[index + 1] = value
+  }
+}
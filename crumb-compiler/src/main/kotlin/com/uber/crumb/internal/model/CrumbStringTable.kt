@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.internal.wire.FieldEncoding
+import com.uber.crumb.internal.wire.Message
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoReader
+import com.uber.crumb.internal.wire.ProtoWriter
+import com.uber.crumb.internal.wire.ReverseProtoWriter
+import com.uber.crumb.internal.wire.WireField
+import kotlin.Any
+import kotlin.AssertionError
+import kotlin.Boolean
+import kotlin.Deprecated
+import kotlin.DeprecationLevel
+import kotlin.Int
+import kotlin.Nothing
+import kotlin.String
+import kotlin.collections.List
+import kotlin.jvm.JvmField
+import okio.ByteString
+
+/**
+ * The strings of a compact index, which its CompactCrumbMetadata refer to by their index in this table
+ */
+internal class CrumbStringTable(
+  @field:WireField(
+    tag = 1,
+    adapter = "com.squareup.wire.ProtoAdapter#STRING",
+    label = WireField.Label.REPEATED
+  )
+  val strings: List<String> = emptyList(),
+  unknownFields: ByteString = ByteString.EMPTY
+) : Message<CrumbStringTable, Nothing>(ADAPTER, unknownFields) {
+  @Deprecated(
+    message = "Shouldn't be used in Kotlin",
+    level = DeprecationLevel.HIDDEN
+  )
+  override fun newBuilder(): Nothing {
+    throw AssertionError()
+  }
+
+  override fun equals(other: Any?): Boolean {
+    if (other === this) return true
+    if (other !is CrumbStringTable) return false
+    return unknownFields == other.unknownFields
+        && strings == other.strings
+  }
+
+  override fun hashCode(): Int {
+    var result = super.hashCode
+    if (result == 0) {
+      result = strings.hashCode()
+      super.hashCode = result
+    }
+    return result
+  }
+
+  override fun toString(): String {
+    val result = mutableListOf<String>()
+    if (strings.isNotEmpty()) result += """strings=$strings"""
+    return result.joinToString(prefix = "CrumbStringTable{", separator = ", ", postfix = "}")
+  }
+
+  fun copy(
+    strings: List<String> = this.strings,
+    unknownFields: ByteString = this.unknownFields
+  ): CrumbStringTable = CrumbStringTable(strings, unknownFields)
+
+  companion object {
+    @JvmField
+    val ADAPTER: ProtoAdapter<CrumbStringTable> = object : ProtoAdapter<CrumbStringTable>(
+      FieldEncoding.LENGTH_DELIMITED, 
+      CrumbStringTable::class
+    ) {
+      override fun encodedSize(value: CrumbStringTable): Int = 
+        ProtoAdapter.STRING.asRepeated().encodedSizeWithTag(1, value.strings) +
+        value.unknownFields.size
+
+      override fun encode(writer: ProtoWriter, value: CrumbStringTable) {
+        ProtoAdapter.STRING.asRepeated().encodeWithTag(writer, 1, value.strings)
+        writer.writeBytes(value.unknownFields)
+      }
+
+      override fun encode(writer: ReverseProtoWriter, value: CrumbStringTable) {
+        writer.writeBytes(value.unknownFields)
+        ProtoAdapter.STRING.asRepeated().encodeWithTag(writer, 1, value.strings)
+      }
+
+      override fun decode(reader: ProtoReader): CrumbStringTable {
+        val strings = mutableListOf<String>()
+        val unknownFields = reader.forEachTag { tag ->
+          when (tag) {
+            1 -> strings.add(ProtoAdapter.STRING.decode(reader))
+            else -> reader.readUnknownField(tag)
+          }
+        }
+        return CrumbStringTable(
+          strings = strings,
+          unknownFields = unknownFields
+        )
+      }
+
+      override fun redact(value: CrumbStringTable): CrumbStringTable = value.copy(
+        unknownFields = ByteString.EMPTY
+      )
+    }
+  }
+}
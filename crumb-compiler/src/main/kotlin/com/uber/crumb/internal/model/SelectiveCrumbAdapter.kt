@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.uber.crumb.internal.wire.FieldEncoding
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoReader
+import com.uber.crumb.internal.wire.ProtoWriter
+import com.uber.crumb.internal.wire.ReverseProtoWriter
+
+/**
+ * A [ProtoAdapter] for [Crumb] that only decodes the [CrumbMetadata] of the given [extensionKeys]. Metadata for any
+ * other extension is skipped on the wire, so its `producerMetadata` map is never built. Encoding is the same as
+ * [CrumbModelAdapters.CRUMB].
+ *
+ * @param extensionKeys the extension keys to decode metadata for.
+ */
+internal class SelectiveCrumbAdapter(
+  private val extensionKeys: Set<String>
+) : ProtoAdapter<Crumb>(FieldEncoding.LENGTH_DELIMITED, Crumb::class) {
+
+  override fun encodedSize(value: Crumb): Int = Crumb.ADAPTER.encodedSize(value)
+
+  override fun encode(writer: ProtoWriter, value: Crumb) = Crumb.ADAPTER.encode(writer, value)
+
+  override fun encode(writer: ReverseProtoWriter, value: Crumb) = CrumbModelAdapters.CRUMB.encode(writer, value)
+
+  override fun decode(reader: ProtoReader): Crumb = CrumbModelReader.readCrumb(reader, extensionKeys)
+
+  override fun redact(value: Crumb): Crumb = Crumb.ADAPTER.redact(value)
+}
@@ -33,6 +33,11 @@ internal abstract class EnumAdapter<E : WireEnum> protected constructor(
     commonEncode(writer, value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: E) {
+    writer.writeVarint32(value.value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): E = commonDecode(reader, this::fromValue)
 
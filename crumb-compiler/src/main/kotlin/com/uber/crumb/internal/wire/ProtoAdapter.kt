@@ -34,6 +34,7 @@ import okio.utf8Size
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
 import kotlin.reflect.KClass
 
 internal abstract class ProtoAdapter<E> constructor(
@@ -61,6 +62,20 @@ internal abstract class ProtoAdapter<E> constructor(
     commonEncodeWithTag(writer, tag, value)
   }
 
+  /**
+   * Writes [value] from back to front. Adapters of messages and other hot types should override this to write their
+   * fields in reverse, while others fall back to encoding [value] forwards and copying the result.
+   */
+  @Throws(IOException::class)
+  open fun encode(writer: ReverseProtoWriter, value: E) {
+    writer.writeForward { forwardWriter -> encode(forwardWriter, value) }
+  }
+
+  @Throws(IOException::class)
+  open fun encodeWithTag(writer: ReverseProtoWriter, tag: Int, value: E?) {
+    commonEncodeWithTag(writer, tag, value)
+  }
+
   @Throws(IOException::class)
   fun encode(sink: BufferedSink, value: E) {
     commonEncode(sink, value)
@@ -85,6 +100,12 @@ internal abstract class ProtoAdapter<E> constructor(
     return commonDecode(bytes)
   }
 
+  /** Decodes the remaining bytes of [buffer], without copying them if it's backed by an accessible array. */
+  @Throws(IOException::class)
+  fun decode(buffer: ByteBuffer): E {
+    return decode(ProtoReader(buffer))
+  }
+
   @Throws(IOException::class)
   fun decode(bytes: ByteString): E {
     return commonDecode(bytes)
@@ -219,21 +240,42 @@ internal inline fun <E> ProtoAdapter<E>.commonEncodeWithTag(
   encode(writer, value)
 }
 
+@Suppress("NOTHING_TO_INLINE")
+internal inline fun <E> ProtoAdapter<E>.commonEncodeWithTag(
+    writer: ReverseProtoWriter,
+    tag: Int,
+    value: E?
+) {
+  if (value == null) return
+  if (fieldEncoding == FieldEncoding.LENGTH_DELIMITED) {
+    val byteCountBefore = writer.byteCount
+    encode(writer, value)
+    writer.writeVarint32(writer.byteCount - byteCountBefore)
+  } else {
+    encode(writer, value)
+  }
+  writer.writeTag(tag, fieldEncoding)
+}
+
 @Suppress("NOTHING_TO_INLINE")
 internal inline fun <E> ProtoAdapter<E>.commonEncode(sink: BufferedSink, value: E) {
-  encode(ProtoWriter(sink), value)
+  ReverseProtoWriter().use { writer ->
+    encode(writer, value)
+    writer.writeTo(sink)
+  }
 }
 
 @Suppress("NOTHING_TO_INLINE")
 internal inline fun <E> ProtoAdapter<E>.commonEncode(value: E): ByteArray {
-  val buffer = Buffer()
-  encode(buffer, value)
-  return buffer.readByteArray()
+  return ReverseProtoWriter().use { writer ->
+    encode(writer, value)
+    writer.toByteArray()
+  }
 }
 
 @Suppress("NOTHING_TO_INLINE")
 internal inline fun <E> ProtoAdapter<E>.commonDecode(bytes: ByteArray): E {
-  return decode(Buffer().write(bytes))
+  return decode(ProtoReader(bytes))
 }
 
 @Suppress("NOTHING_TO_INLINE")
@@ -278,6 +320,13 @@ internal inline fun <E> ProtoAdapter<E>.commonCreatePacked(): ProtoAdapter<List<
       }
     }
 
+    @Throws(IOException::class)
+    override fun encodeWithTag(writer: ReverseProtoWriter, tag: Int, value: List<E>?) {
+      if (value != null && value.isNotEmpty()) {
+        super.encodeWithTag(writer, tag, value)
+      }
+    }
+
     override fun encodedSize(value: List<E>): Int {
       var size = 0
       for (i in 0 until value.size) {
@@ -297,6 +346,13 @@ internal inline fun <E> ProtoAdapter<E>.commonCreatePacked(): ProtoAdapter<List<
       }
     }
 
+    @Throws(IOException::class)
+    override fun encode(writer: ReverseProtoWriter, value: List<E>) {
+      for (i in value.size - 1 downTo 0) {
+        adapter.encode(writer, value[i])
+      }
+    }
+
     @Throws(IOException::class)
     override fun decode(reader: ProtoReader): List<E> = listOf(adapter.decode(reader))
 
@@ -332,6 +388,10 @@ internal inline fun <E> ProtoAdapter<E>.commonCreateRepeated(): ProtoAdapter<Lis
       throw UnsupportedOperationException("Repeated values can only be encoded with a tag.")
     }
 
+    override fun encode(writer: ReverseProtoWriter, value: List<E>) {
+      throw UnsupportedOperationException("Repeated values can only be encoded with a tag.")
+    }
+
     @Throws(IOException::class)
     override fun encodeWithTag(writer: ProtoWriter, tag: Int, value: List<E>?) {
       if (value == null) return
@@ -340,6 +400,14 @@ internal inline fun <E> ProtoAdapter<E>.commonCreateRepeated(): ProtoAdapter<Lis
       }
     }
 
+    @Throws(IOException::class)
+    override fun encodeWithTag(writer: ReverseProtoWriter, tag: Int, value: List<E>?) {
+      if (value == null) return
+      for (i in value.size - 1 downTo 0) {
+        adapter.encodeWithTag(writer, tag, value[i])
+      }
+    }
+
     @Throws(IOException::class)
     override fun decode(reader: ProtoReader): List<E> = listOf(adapter.decode(reader))
 
@@ -370,6 +438,10 @@ internal class MapProtoAdapter<K, V> internal constructor(
     throw UnsupportedOperationException("Repeated values can only be encoded with a tag.")
   }
 
+  override fun encode(writer: ReverseProtoWriter, value: Map<K, V>) {
+    throw UnsupportedOperationException("Repeated values can only be encoded with a tag.")
+  }
+
   @Throws(IOException::class)
   override fun encodeWithTag(writer: ProtoWriter, tag: Int, value: Map<K, V>?) {
     if (value == null) return
@@ -378,6 +450,15 @@ internal class MapProtoAdapter<K, V> internal constructor(
     }
   }
 
+  @Throws(IOException::class)
+  override fun encodeWithTag(writer: ReverseProtoWriter, tag: Int, value: Map<K, V>?) {
+    if (value == null) return
+    val entries = value.entries.toTypedArray()
+    for (i in entries.size - 1 downTo 0) {
+      entryAdapter.encodeWithTag(writer, tag, entries[i])
+    }
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Map<K, V> {
     var key: K? = null
@@ -419,6 +500,12 @@ private class MapEntryProtoAdapter<K, V> internal constructor(
     valueAdapter.encodeWithTag(writer, 2, value.value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Map.Entry<K, V>) {
+    valueAdapter.encodeWithTag(writer, 2, value.value)
+    keyAdapter.encodeWithTag(writer, 1, value.key)
+  }
+
   override fun decode(reader: ProtoReader): Map.Entry<K, V> {
     throw UnsupportedOperationException()
   }
@@ -451,6 +538,11 @@ internal fun commonBool(): ProtoAdapter<Boolean> = object : ProtoAdapter<Boolean
     writer.writeVarint32(if (value) 1 else 0)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Boolean) {
+    writer.writeVarint32(if (value) 1 else 0)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Boolean = when (val value = reader.readVarint32()) {
     0 -> false
@@ -471,6 +563,11 @@ internal fun commonInt32(): ProtoAdapter<Int> = object : ProtoAdapter<Int>(
     writer.writeSignedVarint32(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Int) {
+    writer.writeSignedVarint32(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Int = reader.readVarint32()
 
@@ -487,6 +584,11 @@ internal fun commonUint32(): ProtoAdapter<Int> = object : ProtoAdapter<Int>(
     writer.writeVarint32(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Int) {
+    writer.writeVarint32(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Int = reader.readVarint32()
 
@@ -503,6 +605,11 @@ internal fun commonSint32(): ProtoAdapter<Int> = object : ProtoAdapter<Int>(
     writer.writeVarint32(encodeZigZag32(value))
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Int) {
+    writer.writeVarint32(encodeZigZag32(value))
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Int = decodeZigZag32(reader.readVarint32())
 
@@ -519,6 +626,11 @@ internal fun commonFixed32(): ProtoAdapter<Int> = object : ProtoAdapter<Int>(
     writer.writeFixed32(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Int) {
+    writer.writeFixed32(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Int = reader.readFixed32()
 
@@ -536,6 +648,11 @@ internal fun commonInt64(): ProtoAdapter<Long> = object : ProtoAdapter<Long>(
     writer.writeVarint64(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Long) {
+    writer.writeVarint64(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Long = reader.readVarint64()
 
@@ -556,6 +673,11 @@ internal fun commonUint64(): ProtoAdapter<Long> = object : ProtoAdapter<Long>(
     writer.writeVarint64(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Long) {
+    writer.writeVarint64(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Long = reader.readVarint64()
 
@@ -572,6 +694,11 @@ internal fun commonSint64(): ProtoAdapter<Long> = object : ProtoAdapter<Long>(
     writer.writeVarint64(encodeZigZag64(value))
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Long) {
+    writer.writeVarint64(encodeZigZag64(value))
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Long = decodeZigZag64(reader.readVarint64())
 
@@ -588,6 +715,11 @@ internal fun commonFixed64(): ProtoAdapter<Long> = object : ProtoAdapter<Long>(
     writer.writeFixed64(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Long) {
+    writer.writeFixed64(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Long = reader.readFixed64()
 
@@ -605,6 +737,11 @@ internal fun commonFloat(): ProtoAdapter<Float> = object : ProtoAdapter<Float>(
     writer.writeFixed32(value.toBits())
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Float) {
+    writer.writeFixed32(value.toBits())
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Float {
     return Float.fromBits(reader.readFixed32())
@@ -623,6 +760,11 @@ internal fun commonDouble(): ProtoAdapter<Double> = object : ProtoAdapter<Double
     writer.writeFixed64(value.toBits())
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: Double) {
+    writer.writeFixed64(value.toBits())
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): Double {
     return Double.fromBits(reader.readFixed64())
@@ -641,6 +783,11 @@ internal fun commonString(): ProtoAdapter<String> = object : ProtoAdapter<String
     writer.writeString(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: String) {
+    writer.writeString(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): String = reader.readString()
 
@@ -657,6 +804,11 @@ internal fun commonBytes(): ProtoAdapter<ByteString> = object : ProtoAdapter<Byt
     writer.writeBytes(value)
   }
 
+  @Throws(IOException::class)
+  override fun encode(writer: ReverseProtoWriter, value: ByteString) {
+    writer.writeBytes(value)
+  }
+
   @Throws(IOException::class)
   override fun decode(reader: ProtoReader): ByteString = reader.readBytes()
 
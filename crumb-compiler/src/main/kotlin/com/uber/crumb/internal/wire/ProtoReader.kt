@@ -39,15 +39,47 @@ import com.uber.crumb.internal.wire.internal.shl
 import okio.Buffer
 import okio.BufferedSource
 import okio.ByteString
+import okio.ByteString.Companion.toByteString
 import java.io.EOFException
 import java.io.IOException
+import java.nio.ByteBuffer
 import kotlin.jvm.JvmName
 
 /**
- * Reads and decodes protocol message fields.
+ * Reads and decodes protocol message fields, either from a [BufferedSource] or directly from a byte array. Reading
+ * from an array avoids copying the input into okio segments, and strings are decoded straight from the array.
  */
-internal class ProtoReader(private val source: BufferedSource) {
-  /** The current position in the input source, starting at 0 and increasing monotonically. */
+internal class ProtoReader private constructor(
+  /** The input source, or null if reading from [bytes]. */
+  private val source: BufferedSource?,
+  /** The input array, or null if reading from [source]. */
+  private val bytes: ByteArray?,
+  /** The index of the first byte of the input in [bytes]. */
+  private val offset: Int,
+  /** The number of bytes of the input in [bytes]. */
+  private val byteCount: Long
+) {
+  constructor(source: BufferedSource) : this(source, null, 0, Long.MAX_VALUE)
+
+  /** Reads [byteCount] bytes of [bytes] starting at [offset], without copying them. */
+  constructor(bytes: ByteArray, offset: Int = 0, byteCount: Int = bytes.size - offset) :
+      this(null, bytes, offset, byteCount.toLong()) {
+    if (offset < 0 || byteCount < 0 || offset + byteCount > bytes.size) {
+      throw IndexOutOfBoundsException("size=${bytes.size} offset=$offset byteCount=$byteCount")
+    }
+  }
+
+  /**
+   * Reads the remaining bytes of [buffer] without copying them if it's backed by an accessible array, or copies them
+   * into an array once otherwise. The [buffer]'s position isn't changed.
+   */
+  constructor(buffer: ByteBuffer) : this(
+    if (buffer.hasArray()) buffer.array() else ByteArray(buffer.remaining()).also { buffer.duplicate().get(it) },
+    if (buffer.hasArray()) buffer.arrayOffset() + buffer.position() else 0,
+    buffer.remaining()
+  )
+
+  /** The current position in the input, starting at 0 and increasing monotonically. */
   private var pos: Long = 0
   /** The absolute position of the end of the current message. */
   private var limit = Long.MAX_VALUE
@@ -137,7 +169,7 @@ internal class ProtoReader(private val source: BufferedSource) {
       throw IllegalStateException("Unexpected call to nextTag()")
     }
 
-    loop@ while (pos < limit && !source.exhausted()) {
+    loop@ while (pos < limit && !exhausted()) {
       val tagAndFieldEncoding = internalReadVarint32()
       if (tagAndFieldEncoding == 0) throw ProtocolException("Unexpected tag 0")
 
@@ -201,7 +233,7 @@ internal class ProtoReader(private val source: BufferedSource) {
     when (state) {
       STATE_LENGTH_DELIMITED -> {
         val byteCount = beforeLengthDelimitedScalar()
-        source.skip(byteCount)
+        source?.skip(byteCount)
       }
       STATE_VARINT -> readVarint64()
       STATE_FIXED64 -> readFixed64()
@@ -212,7 +244,7 @@ internal class ProtoReader(private val source: BufferedSource) {
 
   /** Skips a section of the input delimited by START_GROUP/END_GROUP type markers. */
   private fun skipGroup(expectedEndTag: Int) {
-    while (pos < limit && !source.exhausted()) {
+    while (pos < limit && !exhausted()) {
       val tagAndFieldEncoding = internalReadVarint32()
       if (tagAndFieldEncoding == 0) throw ProtocolException("Unexpected tag 0")
       val tag = tagAndFieldEncoding shr TAG_FIELD_ENCODING_BITS
@@ -224,8 +256,9 @@ internal class ProtoReader(private val source: BufferedSource) {
         }
         STATE_LENGTH_DELIMITED -> {
           val length = internalReadVarint32()
+          require(length.toLong())
           pos += length.toLong()
-          source.skip(length.toLong())
+          source?.skip(length.toLong())
         }
         STATE_VARINT -> {
           state = STATE_VARINT
@@ -252,7 +285,10 @@ internal class ProtoReader(private val source: BufferedSource) {
   @Throws(IOException::class)
   fun readBytes(): ByteString {
     val byteCount = beforeLengthDelimitedScalar()
-    source.require(byteCount) // Throws EOFException if insufficient bytes are available.
+    if (bytes != null) {
+      return bytes.toByteString(offset + (pos - byteCount).toInt(), byteCount.toInt())
+    }
+    source!!.require(byteCount) // Throws EOFException if insufficient bytes are available.
     return source.readByteString(byteCount)
   }
 
@@ -260,7 +296,10 @@ internal class ProtoReader(private val source: BufferedSource) {
   @Throws(IOException::class)
   fun readString(): String {
     val byteCount = beforeLengthDelimitedScalar()
-    source.require(byteCount) // Throws EOFException if insufficient bytes are available.
+    if (bytes != null) {
+      return String(bytes, offset + (pos - byteCount).toInt(), byteCount.toInt(), Charsets.UTF_8)
+    }
+    source!!.require(byteCount) // Throws EOFException if insufficient bytes are available.
     return source.readUtf8(byteCount)
   }
 
@@ -278,44 +317,32 @@ internal class ProtoReader(private val source: BufferedSource) {
   }
 
   private fun internalReadVarint32(): Int {
-    source.require(1) // Throws EOFException if insufficient bytes are available.
-    pos++
-    var tmp = source.readByte()
+    var tmp = readByte()
     if (tmp >= 0) {
       return tmp.toInt()
     }
     var result = tmp and 0x7f
-    source.require(1) // Throws EOFException if insufficient bytes are available.
-    pos++
-    tmp = source.readByte()
+    tmp = readByte()
     if (tmp >= 0) {
       result = result or (tmp shl 7)
     } else {
       result = result or (tmp and 0x7f shl 7)
-      source.require(1) // Throws EOFException if insufficient bytes are available.
-      pos++
-      tmp = source.readByte()
+      tmp = readByte()
       if (tmp >= 0) {
         result = result or (tmp shl 14)
       } else {
         result = result or (tmp and 0x7f shl 14)
-        source.require(1) // Throws EOFException if insufficient bytes are available.
-        pos++
-        tmp = source.readByte()
+        tmp = readByte()
         if (tmp >= 0) {
           result = result or (tmp shl 21)
         } else {
           result = result or (tmp and 0x7f shl 21)
-          source.require(1) // Throws EOFException if insufficient bytes are available.
-          pos++
-          tmp = source.readByte()
+          tmp = readByte()
           result = result or (tmp shl 28)
           if (tmp < 0) {
             // Discard upper 32 bits.
             for (i in 0..4) {
-              source.require(1) // Throws EOFException if insufficient bytes are available.
-              pos++
-              if (source.readByte() >= 0) {
+              if (readByte() >= 0) {
                 return result
               }
             }
@@ -336,9 +363,7 @@ internal class ProtoReader(private val source: BufferedSource) {
     var shift = 0
     var result: Long = 0
     while (shift < 64) {
-      source.require(1) // Throws EOFException if insufficient bytes are available.
-      pos++
-      val b = source.readByte()
+      val b = readByte()
       result = result or ((b and 0x7F).toLong() shl shift)
       if (b and 0x80 == 0) {
         afterPackableScalar(STATE_VARINT)
@@ -355,9 +380,7 @@ internal class ProtoReader(private val source: BufferedSource) {
     if (state != STATE_FIXED32 && state != STATE_LENGTH_DELIMITED) {
       throw ProtocolException("Expected FIXED32 or LENGTH_DELIMITED but was $state")
     }
-    source.require(4) // Throws EOFException if insufficient bytes are available.
-    pos += 4
-    val result = source.readIntLe()
+    val result = readIntLe()
     afterPackableScalar(STATE_FIXED32)
     return result
   }
@@ -368,9 +391,7 @@ internal class ProtoReader(private val source: BufferedSource) {
     if (state != STATE_FIXED64 && state != STATE_LENGTH_DELIMITED) {
       throw ProtocolException("Expected FIXED64 or LENGTH_DELIMITED but was $state")
     }
-    source.require(8) // Throws EOFException if insufficient bytes are available.
-    pos += 8
-    val result = source.readLongLe()
+    val result = readLongLe()
     afterPackableScalar(STATE_FIXED64)
     return result
   }
@@ -399,7 +420,7 @@ internal class ProtoReader(private val source: BufferedSource) {
       throw ProtocolException("Expected LENGTH_DELIMITED but was $state")
     }
     val byteCount = limit - pos
-    source.require(byteCount) // Throws EOFException if insufficient bytes are available.
+    require(byteCount) // Throws EOFException if insufficient bytes are available.
     state = STATE_TAG
     // We've completed a length-delimited scalar. Pop the limit.
     pos = limit
@@ -408,6 +429,49 @@ internal class ProtoReader(private val source: BufferedSource) {
     return byteCount
   }
 
+  private fun exhausted(): Boolean = if (bytes != null) pos >= byteCount else source!!.exhausted()
+
+  /** Throws an [EOFException] if fewer than [count] bytes are available. */
+  private fun require(count: Long) {
+    if (bytes != null) {
+      if (pos + count > byteCount) throw EOFException()
+    } else {
+      source!!.require(count)
+    }
+  }
+
+  private fun readByte(): Byte {
+    require(1) // Throws EOFException if insufficient bytes are available.
+    val result = if (bytes != null) bytes[offset + pos.toInt()] else source!!.readByte()
+    pos++
+    return result
+  }
+
+  private fun readIntLe(): Int {
+    require(4) // Throws EOFException if insufficient bytes are available.
+    if (bytes == null) {
+      pos += 4
+      return source!!.readIntLe()
+    }
+    val i = offset + pos.toInt()
+    pos += 4
+    return (bytes[i] and 0xff) or
+        (bytes[i + 1] and 0xff shl 8) or
+        (bytes[i + 2] and 0xff shl 16) or
+        (bytes[i + 3] and 0xff shl 24)
+  }
+
+  private fun readLongLe(): Long {
+    require(8) // Throws EOFException if insufficient bytes are available.
+    if (bytes == null) {
+      pos += 8
+      return source!!.readLongLe()
+    }
+    val low = readIntLe().toLong() and 0xffffffffL
+    val high = readIntLe().toLong()
+    return high shl 32 or low
+  }
+
   /** Reads each tag, handles it, and returns a byte string with the unknown fields. */
   @JvmName("-forEachTag") // hide from Java
   inline fun forEachTag(tagHandler: (Int) -> Any): ByteString {
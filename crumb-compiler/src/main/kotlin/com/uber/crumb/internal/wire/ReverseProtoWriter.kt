@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// This class is derived from the ReverseProtoWriter class in Square's Wire library. The original
+// copyright notice for that class is as follows:
+
+/*
+ * Copyright 2021 Square Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uber.crumb.internal.wire
+
+import com.uber.crumb.internal.wire.ProtoWriter.Companion.varint32Size
+import com.uber.crumb.internal.wire.ProtoWriter.Companion.varint64Size
+import okio.Buffer
+import okio.BufferedSink
+import okio.ByteString
+import java.io.Closeable
+import java.io.IOException
+
+/**
+ * Encodes protocol message fields from back to front, so that each message is traversed only once.
+ *
+ * [ProtoWriter] must write the length of a nested message before its fields, which means sizing every nested message
+ * with [ProtoAdapter.encodedSize] before writing it, and sizing deeply nested messages over and over again. Writing in
+ * reverse instead writes a message's fields first, and then its length from how many bytes those took, followed by
+ * its tag. Callers must therefore write fields in descending tag order, and repeated values from last to first.
+ *
+ * Bytes are written into a single array that grows towards the front. The array is pooled per thread and reused by
+ * the next writer on that thread after this one is [closed][close], unless it grew too large to be worth keeping.
+ */
+internal class ReverseProtoWriter : Closeable {
+
+  private var array: ByteArray = pool.get()?.also { pool.set(null) } ?: ByteArray(INITIAL_SIZE)
+
+  /** The index of the first written byte in [array]. Bytes are written at decreasing indices before it. */
+  private var start = array.size
+
+  /** The number of bytes written so far. */
+  val byteCount: Int
+    get() = array.size - start
+
+  /** Calls [block] with a forward writer, and writes its output in front of the bytes written so far. */
+  @Throws(IOException::class)
+  fun writeForward(block: (ProtoWriter) -> Unit) {
+    val buffer = Buffer()
+    block(ProtoWriter(buffer))
+    val size = buffer.size.toInt()
+    require(size)
+    start -= size
+    buffer.read(array, start, size)
+  }
+
+  fun writeBytes(value: ByteString) {
+    require(value.size)
+    start -= value.size
+    value.asByteBuffer().get(array, start, value.size)
+  }
+
+  /**
+   * Writes [value] as UTF-8 from its last character to its first. Like okio, unpaired surrogates are written as '?'.
+   */
+  fun writeString(value: String) {
+    // No character takes more than three bytes, and surrogate pairs take four bytes for two characters.
+    require(value.length * 3)
+    val array = array
+    var pos = start
+    var i = value.length - 1
+    while (i >= 0) {
+      val c = value[i].toInt()
+      when {
+        c < 0x80 -> {
+          array[--pos] = c.toByte()
+        }
+        c < 0x800 -> {
+          array[--pos] = (0x80 or (c and 0x3f)).toByte()
+          array[--pos] = (0xc0 or (c shr 6)).toByte()
+        }
+        c < 0xd800 || c > 0xdfff -> {
+          array[--pos] = (0x80 or (c and 0x3f)).toByte()
+          array[--pos] = (0x80 or ((c shr 6) and 0x3f)).toByte()
+          array[--pos] = (0xe0 or (c shr 12)).toByte()
+        }
+        c >= 0xdc00 && i > 0 && value[i - 1].toInt() in 0xd800..0xdbff -> {
+          val codePoint = Character.toCodePoint(value[--i], c.toChar())
+          array[--pos] = (0x80 or (codePoint and 0x3f)).toByte()
+          array[--pos] = (0x80 or ((codePoint shr 6) and 0x3f)).toByte()
+          array[--pos] = (0x80 or ((codePoint shr 12) and 0x3f)).toByte()
+          array[--pos] = (0xf0 or (codePoint shr 18)).toByte()
+        }
+        else -> {
+          array[--pos] = '?'.toByte()
+        }
+      }
+      i--
+    }
+    start = pos
+  }
+
+  fun writeTag(fieldNumber: Int, fieldEncoding: FieldEncoding) {
+    writeVarint32((fieldNumber shl ProtoReader.TAG_FIELD_ENCODING_BITS) or fieldEncoding.value)
+  }
+
+  /** Write an `int32` field. Negative values are sign-extended to ten bytes. */
+  internal fun writeSignedVarint32(value: Int) {
+    if (value >= 0) {
+      writeVarint32(value)
+    } else {
+      writeVarint64(value.toLong())
+    }
+  }
+
+  fun writeVarint32(value: Int) {
+    val size = varint32Size(value)
+    require(size)
+    start -= size
+    var pos = start
+    var remaining = value
+    while (remaining and 0x7f.inv() != 0) {
+      array[pos++] = ((remaining and 0x7f) or 0x80).toByte()
+      remaining = remaining ushr 7
+    }
+    array[pos] = remaining.toByte()
+  }
+
+  fun writeVarint64(value: Long) {
+    val size = varint64Size(value)
+    require(size)
+    start -= size
+    var pos = start
+    var remaining = value
+    while (remaining and 0x7fL.inv() != 0L) {
+      array[pos++] = ((remaining and 0x7f) or 0x80).toByte()
+      remaining = remaining ushr 7
+    }
+    array[pos] = remaining.toByte()
+  }
+
+  fun writeFixed32(value: Int) {
+    require(4)
+    start -= 4
+    var pos = start
+    array[pos++] = value.toByte()
+    array[pos++] = (value ushr 8).toByte()
+    array[pos++] = (value ushr 16).toByte()
+    array[pos] = (value ushr 24).toByte()
+  }
+
+  fun writeFixed64(value: Long) {
+    writeFixed32((value ushr 32).toInt())
+    writeFixed32(value.toInt())
+  }
+
+  /** @return a copy of the bytes written so far. */
+  fun toByteArray(): ByteArray = array.copyOfRange(start, array.size)
+
+  /** Writes the bytes written so far to [sink]. */
+  @Throws(IOException::class)
+  fun writeTo(sink: BufferedSink) {
+    sink.write(array, start, byteCount)
+  }
+
+  /** Returns this writer's array to the pool. This writer must not be used afterwards. */
+  override fun close() {
+    if (array.size <= MAX_POOLED_SIZE) {
+      pool.set(array)
+    }
+    array = EMPTY
+    start = 0
+  }
+
+  /** Makes room for at least [byteCount] more bytes in front of [start], moving the written bytes to a larger array. */
+  private fun require(byteCount: Int) {
+    if (start >= byteCount) return
+    val written = this.byteCount
+    var newSize = maxOf(array.size * 2, INITIAL_SIZE)
+    while (newSize - written < byteCount) {
+      newSize *= 2
+    }
+    val newArray = ByteArray(newSize)
+    System.arraycopy(array, start, newArray, newSize - written, written)
+    array = newArray
+    start = newSize - written
+  }
+
+  private companion object {
+    const val INITIAL_SIZE = 8 * 1024
+    const val MAX_POOLED_SIZE = 256 * 1024
+    val EMPTY = ByteArray(0)
+    val pool = ThreadLocal<ByteArray>()
+  }
+}
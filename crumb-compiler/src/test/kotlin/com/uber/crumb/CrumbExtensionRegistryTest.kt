@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.google.testing.compile.CompilationSubject
+import com.google.testing.compile.Compiler.javac
+import com.google.testing.compile.JavaFileObjects
+import com.uber.crumb.annotations.CrumbProducer
+import com.uber.crumb.compiler.api.CRUMB_EXTENSION_DESCRIPTORS_RESOURCE
+import com.uber.crumb.compiler.api.CrumbConsumerExtension
+import com.uber.crumb.compiler.api.CrumbContext
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.AGGREGATING
+import com.uber.crumb.compiler.api.CrumbProducerExtension
+import com.uber.crumb.compiler.api.ProducerMetadata
+import com.uber.crumb.extension.processor.CrumbExtensionDescriptorProcessor
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.util.ServiceConfigurationError
+import javax.annotation.processing.ProcessingEnvironment
+import javax.lang.model.element.AnnotationMirror
+import javax.lang.model.element.TypeElement
+import javax.tools.StandardLocation.CLASS_OUTPUT
+
+class CrumbExtensionRegistryTest {
+
+  @CrumbProducer
+  @Retention(AnnotationRetention.BINARY)
+  @Target(AnnotationTarget.CLASS)
+  annotation class LazyProducer
+
+  /** A described extension, which counts how often it's instantiated and initialized. */
+  class LazyExtension : CrumbProducerExtension {
+
+    companion object {
+      var instances = 0
+      var initializations = 0
+    }
+
+    init {
+      instances++
+    }
+
+    override fun init(processingEnvironment: ProcessingEnvironment) {
+      initializations++
+    }
+
+    override fun supportedProducerAnnotations() = setOf(LazyProducer::class.java)
+
+    override fun isProducerApplicable(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>) = true
+
+    override fun produce(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>): ProducerMetadata {
+      return mapOf("name" to type.qualifiedName.toString()) to emptySet()
+    }
+  }
+
+  /** A described extension that supports no annotations, which records the types it's offered. */
+  class EveryTypeExtension : CrumbProducerExtension {
+
+    companion object {
+      val produced = mutableListOf<String>()
+    }
+
+    override fun isProducerApplicable(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>) = true
+
+    override fun produce(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>): ProducerMetadata {
+      produced += type.qualifiedName.toString()
+      return emptyMap<String, String>() to emptySet()
+    }
+  }
+
+  private val lazyExtension = LazyExtension::class.java.name
+  private val lazyProducer = LazyProducer::class.java.canonicalName
+
+  @Before
+  fun setUp() {
+    LazyExtension.instances = 0
+    LazyExtension.initializations = 0
+    EveryTypeExtension.produced.clear()
+  }
+
+  @Test
+  fun descriptorsAreReadWithoutInstantiatingExtensions() {
+    val registry = CrumbExtensionRegistry(loaderWith(
+        CRUMB_EXTENSION_DESCRIPTORS_RESOURCE to """
+          |# A comment
+          |$lazyExtension producerAnnotations=$lazyProducer consumerAnnotations= producerIncrementalType=AGGREGATING
+          |$lazyExtension producerAnnotations=ignored.Duplicate
+          |""".trimMargin(),
+        "META-INF/services/${CrumbProducerExtension::class.java.name}" to "$lazyExtension\n"))
+
+    val descriptor = registry.descriptors().single()
+    assertThat(descriptor.className).isEqualTo(lazyExtension)
+    assertThat(descriptor.producerAnnotations).containsExactly(lazyProducer)
+    assertThat(descriptor.consumerAnnotations).isEmpty()
+    assertThat(descriptor.producerIncrementalType).isEqualTo(AGGREGATING)
+    assertThat(descriptor.consumerIncrementalType).isNull()
+    assertThat(LazyExtension.instances).isEqualTo(0)
+  }
+
+  @Test
+  fun extensionsAreInstantiatedOnce() {
+    val registry = CrumbExtensionRegistry(loaderWith())
+
+    val producer = registry.load(lazyExtension, CrumbProducerExtension::class.java)
+    assertThat(registry.load(lazyExtension, CrumbProducerExtension::class.java)).isSameInstanceAs(producer)
+    assertThat(LazyExtension.instances).isEqualTo(1)
+    try {
+      registry.load(lazyExtension, CrumbConsumerExtension::class.java)
+      throw AssertionError("Expected a ServiceConfigurationError")
+    } catch (expected: ServiceConfigurationError) {
+      assertThat(expected).hasMessageThat().contains(CrumbConsumerExtension::class.java.name)
+    }
+  }
+
+  @Test
+  fun describedExtensionIsOnlyInstantiatedOnceItsAnnotationAppears() {
+    val loader = loaderWith(
+        CRUMB_EXTENSION_DESCRIPTORS_RESOURCE to
+            "$lazyExtension producerAnnotations=$lazyProducer producerIncrementalType=AGGREGATING\n",
+        "META-INF/services/${CrumbProducerExtension::class.java.name}" to "$lazyExtension\n")
+
+    val unrelated = CrumbProcessor(loader)
+    val plain = javac()
+        .withProcessors(unrelated)
+        .compile(JavaFileObjects.forSourceString("test.Plain", """
+package test;
+public class Plain {}"""))
+    CompilationSubject.assertThat(plain).succeeded()
+    assertThat(unrelated.supportedAnnotationTypes).contains(lazyProducer)
+    assertThat(LazyExtension.instances).isEqualTo(0)
+
+    val producer = javac()
+        .withProcessors(CrumbProcessor(loader))
+        .compile(JavaFileObjects.forSourceString("test.Producer", """
+package test;
+@${LazyProducer::class.java.canonicalName}
+public class Producer {}"""))
+    CompilationSubject.assertThat(producer).succeeded()
+    assertThat(LazyExtension.instances).isEqualTo(1)
+    assertThat(LazyExtension.initializations).isEqualTo(1)
+  }
+
+  @Test
+  fun extensionDescribedWithoutAnnotationsIsOfferedEveryType() {
+    val loader = loaderWith(
+        CRUMB_EXTENSION_DESCRIPTORS_RESOURCE to """
+          |$lazyExtension producerAnnotations=$lazyProducer producerIncrementalType=AGGREGATING
+          |${EveryTypeExtension::class.java.name} producerAnnotations= producerIncrementalType=AGGREGATING
+          |""".trimMargin(),
+        "META-INF/services/${CrumbProducerExtension::class.java.name}" to """
+          |$lazyExtension
+          |${EveryTypeExtension::class.java.name}
+          |""".trimMargin())
+
+    val compilation = javac()
+        .withProcessors(CrumbProcessor(loader))
+        .compile(JavaFileObjects.forSourceString("test.Producer", """
+package test;
+@${LazyProducer::class.java.canonicalName}
+public class Producer {}"""))
+    CompilationSubject.assertThat(compilation).succeeded()
+    assertThat(LazyExtension.instances).isEqualTo(1)
+    assertThat(EveryTypeExtension.produced).containsExactly("test.Producer")
+  }
+
+  @Test
+  fun descriptorsOnlyApplyToRegisteredKindsOfExtensions() {
+    // Only registered as a consumer, and the other extension isn't registered at all.
+    val lazyDescriptor = "$lazyExtension producerAnnotations=$lazyProducer consumerAnnotations=$lazyProducer " +
+        "producerIncrementalType=AGGREGATING consumerIncrementalType=AGGREGATING"
+    val registry = CrumbExtensionRegistry(loaderWith(
+        CRUMB_EXTENSION_DESCRIPTORS_RESOURCE to """
+          |$lazyDescriptor
+          |${EveryTypeExtension::class.java.name} producerAnnotations= producerIncrementalType=AGGREGATING
+          |""".trimMargin(),
+        "META-INF/services/${CrumbConsumerExtension::class.java.name}" to "$lazyExtension\n"))
+
+    val descriptor = registry.descriptors().single()
+    assertThat(descriptor.className).isEqualTo(lazyExtension)
+    assertThat(descriptor.producerAnnotations).isEmpty()
+    assertThat(descriptor.producerIncrementalType).isNull()
+    assertThat(descriptor.consumerAnnotations).containsExactly(lazyProducer)
+    assertThat(descriptor.consumerIncrementalType).isEqualTo(AGGREGATING)
+  }
+
+  @Test
+  fun generatedDescriptorsOnlyApplyToExtensionsRegisteredAsServices() {
+    val extension = JavaFileObjects.forSourceString("test.DescribedExtension", """
+package test;
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType;
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor;
+import com.uber.crumb.compiler.api.CrumbProducerExtension;
+@CrumbExtensionDescriptor(
+    producerAnnotations = $lazyProducer.class,
+    producerIncrementalType = IncrementalExtensionType.AGGREGATING)
+public abstract class DescribedExtension implements CrumbProducerExtension {}""")
+    val described = javac()
+        .withProcessors(CrumbExtensionDescriptorProcessor())
+        .compile(extension)
+    CompilationSubject.assertThat(described).succeeded()
+    val descriptors = described.generatedFile(CLASS_OUTPUT, "", CRUMB_EXTENSION_DESCRIPTORS_RESOURCE).get()
+        .getCharContent(true)
+        .toString()
+
+    for (registered in listOf(false, true)) {
+      val services = if (registered) "test.DescribedExtension\n" else ""
+      val loader = loaderWith(
+          CRUMB_EXTENSION_DESCRIPTORS_RESOURCE to descriptors,
+          "META-INF/services/${CrumbProducerExtension::class.java.name}" to services)
+      assertWithMessage("Descriptors with registered=$registered")
+          .that(CrumbExtensionRegistry(loader).descriptors().map { it.className })
+          .isEqualTo(if (registered) listOf("test.DescribedExtension") else emptyList())
+
+      val processor = CrumbProcessor(loader)
+      val compilation = javac()
+          .withProcessors(processor)
+          .compile(JavaFileObjects.forSourceString("test.Plain", """
+package test;
+public class Plain {}"""))
+      CompilationSubject.assertThat(compilation).succeeded()
+      assertWithMessage("Supported annotations with registered=$registered")
+          .that(processor.supportedAnnotationTypes.contains(lazyProducer))
+          .isEqualTo(registered)
+    }
+  }
+
+  /** @return a class loader with resources of the given paths and contents, which loads classes from this test's. */
+  private fun loaderWith(vararg resources: Pair<String, String>): ClassLoader {
+    val directory = Files.createTempDirectory("crumb").toFile()
+    resources.forEach { (path, content) ->
+      val file = File(directory, path)
+      file.parentFile.mkdirs()
+      file.writeText(content)
+    }
+    return URLClassLoader(arrayOf(directory.toURI().toURL()), javaClass.classLoader)
+  }
+}
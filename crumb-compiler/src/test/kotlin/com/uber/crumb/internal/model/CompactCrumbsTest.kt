@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.google.common.truth.Truth.assertThat
+import com.uber.crumb.CrumbStringPool
+import com.uber.crumb.core.CrumbIndexContainer
+import okio.Buffer
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+
+class CompactCrumbsTest {
+
+  private val crumb = Crumb("com.example.Foo", listOf(
+      CrumbMetadata("moshi", mapOf("factory" to "com.example.FooFactory", "moshi" to "com.example.Foo")),
+      CrumbMetadata("gson", mapOf("factory" to "com.example.FooFactory")),
+      CrumbMetadata("empty", emptyMap())))
+  private val allKeys = setOf("moshi", "gson", "empty")
+
+  @Test
+  fun roundTrip() {
+    val container = container(CompactCrumbs.encode(crumb))
+
+    assertThat(CompactCrumbs.isCompact(container)).isTrue()
+    assertThat(CompactCrumbs.decode(container, allKeys) { it }).isEqualTo(crumb)
+  }
+
+  @Test
+  fun stringsAreStoredOnce() {
+    val sections = CompactCrumbs.encode(crumb)
+    val strings = CrumbStringTable.ADAPTER.decode(sections.getValue(CompactCrumbs.STRING_TABLE_KEY)).strings
+
+    assertThat(sections.keys.first()).isEqualTo(CompactCrumbs.STRING_TABLE_KEY)
+    assertThat(strings).containsNoDuplicates()
+    assertThat(strings).containsExactly("moshi", "factory", "com.example.FooFactory", "com.example.Foo", "gson",
+        "empty")
+  }
+
+  @Test
+  fun onlyRequestedExtensionsAreDecoded() {
+    val sections = CompactCrumbs.encode(crumb).toMutableMap()
+    sections["gson"] = byteArrayOf(0xff.toByte())
+    val container = container(sections)
+
+    assertThat(CompactCrumbs.decode(container, setOf("moshi")) { it }.extras.map { it.extensionKey })
+        .containsExactly("moshi")
+    assertThat(CompactCrumbs.decode(container, setOf("absent")) { it }).isEqualTo(Crumb(crumb.name))
+  }
+
+  @Test
+  fun stringTableIsOnlyReadForRequestedExtensions() {
+    val sections = CompactCrumbs.encode(crumb).toMutableMap()
+    sections[CompactCrumbs.STRING_TABLE_KEY] = byteArrayOf(0xff.toByte())
+
+    assertThat(CompactCrumbs.decode(container(sections), setOf("absent")) { it }).isEqualTo(Crumb(crumb.name))
+  }
+
+  @Test
+  fun decodedStringsAreInterned() {
+    val first = CompactCrumbs.decode(container(CompactCrumbs.encode(crumb)), allKeys, CrumbStringPool::intern)
+    val second = CompactCrumbs.decode(container(CompactCrumbs.encode(crumb)), allKeys, CrumbStringPool::intern)
+
+    assertThat(second.name).isSameInstanceAs(first.name)
+    assertThat(second.extras[0].extensionKey).isSameInstanceAs(first.extras[0].extensionKey)
+    assertThat(second.extras[0].producerMetadata.getValue("factory"))
+        .isSameInstanceAs(first.extras[1].producerMetadata.getValue("factory"))
+  }
+
+  @Test
+  fun onlyStringsOfRequestedExtensionsAreInterned() {
+    val interned = mutableListOf<String>()
+
+    CompactCrumbs.decode(container(CompactCrumbs.encode(crumb)), setOf("gson")) { it.also { interned += it } }
+
+    assertThat(interned).containsExactly(crumb.name, "gson", "factory", "com.example.FooFactory")
+  }
+
+  @Test
+  fun oddNumbersOfStringIndicesFail() {
+    val sections = CompactCrumbs.encode(crumb).toMutableMap()
+    sections["gson"] = CompactCrumbMetadata.ADAPTER.encode(CompactCrumbMetadata(
+        extensionKey = 4,
+        producerMetadata = listOf(1, 2, 1)))
+
+    assertDecodeFails(sections, "Odd number of producer metadata indices")
+  }
+
+  @Test
+  fun outOfBoundsStringIndicesFail() {
+    val sections = CompactCrumbs.encode(crumb).toMutableMap()
+    sections["gson"] = CompactCrumbMetadata.ADAPTER.encode(CompactCrumbMetadata(
+        extensionKey = 4,
+        producerMetadata = listOf(1, 100)))
+
+    assertDecodeFails(sections, "String index 100 out of bounds")
+  }
+
+  @Test
+  fun corruptSectionsFail() {
+    val badStringTable = CompactCrumbs.encode(crumb).toMutableMap()
+    badStringTable[CompactCrumbs.STRING_TABLE_KEY] = byteArrayOf(0x0a, 0x7f, 0x61)
+    val badMetadata = CompactCrumbs.encode(crumb).toMutableMap()
+    badMetadata["moshi"] = byteArrayOf(0x12, 0x7f, 0x01)
+
+    for (sections in listOf(badStringTable, badMetadata)) {
+      assertDecodeFails(sections)
+    }
+  }
+
+  @Test
+  fun truncatedStringTablesFail() {
+    val sections = CompactCrumbs.encode(crumb)
+    val stringTable = sections.getValue(CompactCrumbs.STRING_TABLE_KEY)
+
+    // Every string is referenced, so dropping any of them fails as well.
+    for (size in 0 until stringTable.size) {
+      assertDecodeFails(sections + (CompactCrumbs.STRING_TABLE_KEY to stringTable.copyOf(size)))
+    }
+  }
+
+  private fun container(sections: Map<String, ByteArray>): CrumbIndexContainer {
+    val buffer = Buffer()
+    CrumbIndexContainer.write(buffer, crumb.name, sections)
+    return CrumbIndexContainer.read(buffer)
+  }
+
+  private fun assertDecodeFails(sections: Map<String, ByteArray>, message: String? = null) {
+    try {
+      CompactCrumbs.decode(container(sections), allKeys) { it }
+      fail()
+    } catch (expected: IOException) {
+      message?.let { assertThat(expected).hasMessageThat().contains(it) }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.Test
+import kotlin.random.Random
+
+class CompactMetadataMapTest {
+
+  @Test
+  fun behavesLikeLinkedHashMap() {
+    val random = Random(0)
+    repeat(500) {
+      val size = random.nextInt(20)
+      val expected = LinkedHashMap<String, String>()
+      val entries = arrayOfNulls<String>(size * 2)
+      for (i in 0 until size) {
+        val key = "key${random.nextInt(12)}"
+        val value = "value${random.nextInt()}"
+        expected[key] = value
+        entries[2 * i] = key
+        entries[2 * i + 1] = value
+      }
+
+      val map = CompactMetadataMap.of(entries, size * 2)
+      assertWithMessage("$expected").that(map).isEqualTo(expected)
+      assertThat(expected).isEqualTo(map)
+      assertThat(map.hashCode()).isEqualTo(expected.hashCode())
+      assertThat(map.entries.toList()).containsExactlyElementsIn(expected.entries).inOrder()
+      assertThat(map.toString()).isEqualTo(expected.toString())
+      expected.forEach { (key, value) -> assertThat(map[key]).isEqualTo(value) }
+      assertThat(map["absent"]).isNull()
+      assertThat(map.containsKey("absent")).isFalse()
+      assertThat(CompactMetadataMap.copyOf(expected)).isEqualTo(map)
+      assertThat(CompactMetadataMap.copyOf(map)).isSameInstanceAs(map)
+    }
+  }
+
+  @Test
+  fun equalityIgnoresInsertionOrder() {
+    val map = CompactMetadataMap.of(arrayOf("b", "2", "a", "1", "c", "3"), 6)
+    val reordered = CompactMetadataMap.of(arrayOf("c", "3", "a", "1", "b", "2"), 6)
+
+    assertThat(map.keys).containsExactly("b", "a", "c").inOrder()
+    assertThat(reordered.keys).containsExactly("c", "a", "b").inOrder()
+    assertThat(map).isEqualTo(reordered)
+    assertThat(setOf(map, reordered)).hasSize(1)
+    assertThat(map).isNotEqualTo(CompactMetadataMap.of(arrayOf("b", "2", "a", "1", "c", "4"), 6))
+  }
+
+  @Test
+  fun laterDuplicatesKeepTheFirstPosition() {
+    val map = CompactMetadataMap.of(arrayOf("b", "first", "a", "1", "b", "second", null, null), 6)
+
+    assertThat(map).containsExactly("b", "second", "a", "1").inOrder()
+  }
+}
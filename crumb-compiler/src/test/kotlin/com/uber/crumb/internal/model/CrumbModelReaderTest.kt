@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoWriter
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.toByteString
+import org.junit.Test
+import kotlin.random.Random
+
+class CrumbModelReaderTest {
+
+  private val unknownFields = Buffer().also { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(it), 99, "unknown") }
+      .readByteString()
+
+  @Test
+  fun decodesLikeTheGeneratedAdapters() {
+    val random = Random(0)
+    val crumbs = listOf(
+        Crumb(""),
+        Crumb("com.example.Foo", unknownFields = unknownFields),
+        Crumb("com.example.Foo", listOf(
+            CrumbMetadata("moshi", mapOf("factory" to "com.example.FooFactory", "" to "")),
+            CrumbMetadata("gson", emptyMap(), unknownFields))),
+        // More entries than the reader's initial capacity.
+        Crumb("com.example.Large", (0 until 100).map { i ->
+          CrumbMetadata("extension$i", (0 until i).associate { "key${random.nextInt()}" to "value$it" })
+        }))
+
+    for (crumb in crumbs) {
+      val encoded = Crumb.ADAPTER.encode(crumb)
+      assertMatchesGenerated(encoded)
+      assertThat(CrumbModelAdapters.CRUMB.decode(encoded)).isEqualTo(crumb)
+      crumb.extras.forEach { assertMatchesGenerated(CrumbMetadata.ADAPTER.encode(it), CrumbMetadata.ADAPTER) }
+    }
+  }
+
+  @Test
+  fun laterDuplicateEntriesReplaceEarlierOnes() {
+    val encoded = encodeMetadata("moshi",
+        entry("factory", "com.example.First"),
+        entry("other", "value"),
+        entry("factory", "com.example.Second"))
+
+    assertMatchesGenerated(encoded, CrumbMetadata.ADAPTER)
+    assertThat(CrumbModelAdapters.CRUMB_METADATA.decode(encoded).producerMetadata)
+        .containsExactly("factory", "com.example.Second", "other", "value")
+  }
+
+  @Test
+  fun unknownFieldsOfEntriesAreIgnored() {
+    val entry = Buffer().also { buffer ->
+      val writer = ProtoWriter(buffer)
+      ProtoAdapter.STRING.encodeWithTag(writer, 1, "factory")
+      ProtoAdapter.INT32.encodeWithTag(writer, 3, 42)
+      ProtoAdapter.STRING.encodeWithTag(writer, 2, "com.example.FooFactory")
+    }.readByteString()
+    val encoded = encodeMetadata("moshi", lengthDelimited(2, entry), unknownFields)
+
+    // Not compared with the generated adapters, whose map adapter doesn't skip unknown entry fields and fails here.
+    val metadata = CrumbModelAdapters.CRUMB_METADATA.decode(encoded)
+    assertThat(metadata.producerMetadata).containsExactly("factory", "com.example.FooFactory")
+    assertThat(metadata.unknownFields).isEqualTo(unknownFields)
+  }
+
+  @Test
+  fun fieldsInAnyOrderDecodeTheSame() {
+    val metadata = Buffer()
+        .write(entry("factory", "com.example.FooFactory"))
+        .write(unknownFields)
+        .also { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(it), 1, "moshi") }
+        .readByteString()
+    val encoded = Buffer()
+        .write(lengthDelimited(2, metadata))
+        .write(unknownFields)
+        .also { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(it), 1, "com.example.Foo") }
+        .readByteArray()
+
+    assertMatchesGenerated(encoded)
+  }
+
+  @Test
+  fun missingRequiredFieldsFailTheSame() {
+    val noName = lengthDelimited(2, CrumbMetadata.ADAPTER.encode(CrumbMetadata("moshi", emptyMap())).toByteString())
+        .toByteArray()
+    val noExtensionKey = encodeMetadata(null, entry("factory", "com.example.FooFactory"))
+
+    assertMatchesGenerated(noName)
+    assertMatchesGenerated(noExtensionKey, CrumbMetadata.ADAPTER)
+  }
+
+  /** Asserts that [encoded] decodes to the same value, or fails the same way, as with the [generated] adapter. */
+  private fun assertMatchesGenerated(encoded: ByteArray, generated: ProtoAdapter<*> = Crumb.ADAPTER) {
+    val adapter = if (generated === Crumb.ADAPTER) CrumbModelAdapters.CRUMB else CrumbModelAdapters.CRUMB_METADATA
+    val expected = outcome { generated.decode(encoded) }
+    assertWithMessage("From an array").that(outcome { adapter.decode(encoded) }).isEqualTo(expected)
+    assertWithMessage("From a source").that(outcome { adapter.decode(Buffer().write(encoded)) }).isEqualTo(expected)
+  }
+
+  /** @return the result of [decode], or the class of what it threw. */
+  private fun outcome(decode: () -> Any?): Any? {
+    return try {
+      decode()
+    } catch (e: Exception) {
+      e.javaClass
+    }
+  }
+
+  private fun encodeMetadata(extensionKey: String?, vararg fields: ByteString): ByteArray {
+    return Buffer().also { buffer ->
+      extensionKey?.let { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(buffer), 1, it) }
+      fields.forEach { buffer.write(it) }
+    }.readByteArray()
+  }
+
+  /** @return a `producerMetadata` map entry field. */
+  private fun entry(key: String, value: String): ByteString {
+    return Buffer().also {
+      PRODUCER_METADATA_ADAPTER.encodeWithTag(ProtoWriter(it), 2, mapOf(key to value))
+    }.readByteString()
+  }
+
+  private fun lengthDelimited(tag: Int, bytes: ByteString): ByteString {
+    return Buffer().also { ProtoAdapter.BYTES.encodeWithTag(ProtoWriter(it), tag, bytes) }.readByteString()
+  }
+
+  private companion object {
+    val PRODUCER_METADATA_ADAPTER = ProtoAdapter.newMapAdapter(ProtoAdapter.STRING, ProtoAdapter.STRING)
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.model
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.uber.crumb.internal.wire.ProtoAdapter
+import com.uber.crumb.internal.wire.ProtoWriter
+import okio.Buffer
+import okio.ByteString
+import okio.ByteString.Companion.toByteString
+import org.junit.Assert.fail
+import org.junit.Test
+
+class SelectiveCrumbAdapterTest {
+
+  private val unknownFields = Buffer().also { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(it), 99, "unknown") }
+      .readByteString()
+
+  private val crumb = Crumb("com.example.Foo", listOf(
+      CrumbMetadata("moshi", mapOf("factory" to "com.example.FooFactory", "moshi" to "com.example.Foo")),
+      CrumbMetadata("gson", mapOf("factory" to "com.example.FooFactory"), unknownFields),
+      CrumbMetadata("empty", emptyMap())),
+      unknownFields)
+
+  @Test
+  fun requestedExtensionsDecodeLikeTheFullAdapter() {
+    val encoded = Crumb.ADAPTER.encode(crumb)
+    val keySets = listOf(emptySet(), setOf("moshi"), setOf("gson", "empty"), setOf("moshi", "gson", "empty"),
+        setOf("absent"))
+
+    for (keys in keySets) {
+      assertWithMessage("$keys").that(SelectiveCrumbAdapter(keys).decode(encoded))
+          .isEqualTo(Crumb(crumb.name, crumb.extras.filter { it.extensionKey in keys }, crumb.unknownFields))
+    }
+    assertThat(SelectiveCrumbAdapter(setOf("moshi", "gson", "empty")).decode(encoded))
+        .isEqualTo(Crumb.ADAPTER.decode(encoded))
+  }
+
+  @Test
+  fun skippedMetadataIsNeverBuilt() {
+    // The gson metadata has a map entry without a key, which only fails once its map is built.
+    val encoded = encodeCrumb(crumb.name,
+        CrumbMetadata.ADAPTER.encode(crumb.extras[0]).toByteString(),
+        encodeMetadata("gson", encodeEntry(key = null, value = "com.example.FooFactory")))
+    try {
+      Crumb.ADAPTER.decode(encoded)
+      fail()
+    } catch (expected: IllegalStateException) {
+      assertThat(expected).hasMessageThat().contains("null key")
+    }
+
+    assertThat(SelectiveCrumbAdapter(setOf("moshi")).decode(encoded))
+        .isEqualTo(Crumb(crumb.name, crumb.extras.take(1)))
+  }
+
+  @Test
+  fun extensionKeysAfterTheirEntriesAreHonored() {
+    // Metadata is written with its key first, but the key may still come last.
+    val metadata = Buffer().also { buffer ->
+      buffer.write(encodeEntry("factory", "com.example.FooFactory"))
+      ProtoAdapter.STRING.encodeWithTag(ProtoWriter(buffer), 1, "gson")
+    }.readByteString()
+    val encoded = encodeCrumb(crumb.name, metadata)
+
+    assertThat(SelectiveCrumbAdapter(setOf("gson")).decode(encoded))
+        .isEqualTo(Crumb(crumb.name, listOf(CrumbMetadata("gson", mapOf("factory" to "com.example.FooFactory")))))
+    assertThat(SelectiveCrumbAdapter(setOf("moshi")).decode(encoded)).isEqualTo(Crumb(crumb.name))
+  }
+
+  @Test
+  fun encodingMatchesTheFullAdapter() {
+    val adapter = SelectiveCrumbAdapter(setOf("moshi"))
+
+    assertThat(adapter.encode(crumb)).isEqualTo(Crumb.ADAPTER.encode(crumb))
+    assertThat(adapter.encodedSize(crumb)).isEqualTo(Crumb.ADAPTER.encodedSize(crumb))
+    assertThat(adapter.redact(crumb)).isEqualTo(Crumb.ADAPTER.redact(crumb))
+  }
+
+  /** @return an encoded [Crumb] with the given [name] and encoded [CrumbMetadata]. */
+  private fun encodeCrumb(name: String, vararg metadata: ByteString): ByteArray {
+    return Buffer().also { buffer ->
+      val writer = ProtoWriter(buffer)
+      ProtoAdapter.STRING.encodeWithTag(writer, 1, name)
+      metadata.forEach { ProtoAdapter.BYTES.encodeWithTag(writer, 2, it) }
+    }.readByteArray()
+  }
+
+  private fun encodeMetadata(extensionKey: String, vararg entries: ByteString): ByteString {
+    return Buffer().also { buffer ->
+      ProtoAdapter.STRING.encodeWithTag(ProtoWriter(buffer), 1, extensionKey)
+      entries.forEach { buffer.write(it) }
+    }.readByteString()
+  }
+
+  /** @return a `producerMetadata` map entry field, optionally without its [key] or [value]. */
+  private fun encodeEntry(key: String?, value: String?): ByteString {
+    val entry = Buffer().also { buffer ->
+      val writer = ProtoWriter(buffer)
+      key?.let { ProtoAdapter.STRING.encodeWithTag(writer, 1, it) }
+      value?.let { ProtoAdapter.STRING.encodeWithTag(writer, 2, it) }
+    }.readByteString()
+    return Buffer().also { ProtoAdapter.BYTES.encodeWithTag(ProtoWriter(it), 2, entry) }.readByteString()
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.wire
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.uber.crumb.internal.model.Crumb
+import com.uber.crumb.internal.model.CrumbMetadata
+import okio.Buffer
+import okio.ByteString.Companion.toByteString
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+
+class ProtoReaderTest {
+
+  private val message = Buffer().also { sink ->
+    val writer = ProtoWriter(sink)
+    ProtoAdapter.INT32.encodeWithTag(writer, 1, -1)
+    ProtoAdapter.INT32.encodeWithTag(writer, 1, 300)
+    ProtoAdapter.SINT64.encodeWithTag(writer, 2, Long.MIN_VALUE)
+    ProtoAdapter.FIXED32.encodeWithTag(writer, 3, 0x12345678)
+    ProtoAdapter.DOUBLE.encodeWithTag(writer, 4, Math.PI)
+    ProtoAdapter.STRING.encodeWithTag(writer, 5, "Café中😀")
+    ProtoAdapter.STRING.encodeWithTag(writer, 5, "")
+    ProtoAdapter.BYTES.encodeWithTag(writer, 6, byteArrayOf(0, -1, 2).toByteString())
+    ProtoAdapter.INT32.asPacked().encodeWithTag(writer, 7, listOf(1, 200, 30000))
+    // A group of field 8, which is skipped, containing a varint field.
+    sink.writeByte(8 shl 3 or 3).writeByte(1 shl 3).writeByte(1).writeByte(8 shl 3 or 4)
+    ProtoAdapter.STRING.encodeWithTag(writer, 99, "unknown")
+    ProtoAdapter.FIXED64.encodeWithTag(writer, 100, 42L)
+  }.readByteArray()
+
+  private val crumb = Crumb("com.example.Foo", listOf(
+      CrumbMetadata("moshi", mapOf("factory" to "com.example.FooFactory")),
+      CrumbMetadata("gson", emptyMap())))
+
+  @Test
+  fun arrayModeReadsEveryEncoding() {
+    val fields = readFields(ProtoReader(message))
+
+    assertThat(fields.dropLast(1)).containsExactly(-1, 300, Long.MIN_VALUE, 0x12345678, Math.PI, "Café中😀", "",
+        byteArrayOf(0, -1, 2).toByteString(), 1, 200, 30000).inOrder()
+    assertThat(fields).isEqualTo(readFields(ProtoReader(Buffer().write(message))))
+  }
+
+  @Test
+  fun arrayModeOnlyReadsItsRange() {
+    val padded = ByteArray(3) { -1 } + message + ByteArray(5) { -1 }
+
+    assertThat(readFields(ProtoReader(padded, 3, message.size))).isEqualTo(readFields(ProtoReader(message)))
+  }
+
+  @Test
+  fun byteBufferModeReadsTheRemainingBytes() {
+    val padded = ByteArray(3) { -1 } + message + ByteArray(5) { -1 }
+    val expected = readFields(ProtoReader(message))
+    val heap = ByteBuffer.wrap(padded, 3, message.size)
+    val sliced = heap.slice()
+    val readOnly = heap.asReadOnlyBuffer()
+    val direct = ByteBuffer.allocateDirect(padded.size).put(padded).apply { position(3).limit(3 + message.size) }
+
+    for (buffer in listOf(heap, sliced, readOnly, direct)) {
+      assertWithMessage("$buffer").that(readFields(ProtoReader(buffer))).isEqualTo(expected)
+      assertWithMessage("$buffer").that(buffer.remaining()).isEqualTo(message.size)
+    }
+  }
+
+  @Test
+  fun adaptersDecodeArraysAndByteBuffers() {
+    val encoded = Crumb.ADAPTER.encode(crumb)
+
+    assertThat(Crumb.ADAPTER.decode(encoded)).isEqualTo(crumb)
+    assertThat(Crumb.ADAPTER.decode(ByteBuffer.wrap(encoded))).isEqualTo(crumb)
+    assertThat(Crumb.ADAPTER.decode(Buffer().write(encoded))).isEqualTo(crumb)
+  }
+
+  @Test
+  fun truncatedInputBehavesLikeSourceMode() {
+    // Array mode must not read past the end of its range, even when the array continues.
+    val padded = message + message
+    for (size in 0 until message.size) {
+      val expected = outcome { readFields(ProtoReader(Buffer().write(message, 0, size))) }
+      assertWithMessage("Truncated to $size").that(outcome { readFields(ProtoReader(message.copyOf(size))) })
+          .isEqualTo(expected)
+      assertWithMessage("Truncated to $size").that(outcome { readFields(ProtoReader(padded, 0, size)) })
+          .isEqualTo(expected)
+    }
+    val crumbBytes = Crumb.ADAPTER.encode(crumb)
+    for (size in 0 until crumbBytes.size) {
+      assertWithMessage("Truncated to $size").that(outcome { Crumb.ADAPTER.decode(crumbBytes.copyOf(size)) })
+          .isEqualTo(outcome { Crumb.ADAPTER.decode(Buffer().write(crumbBytes, 0, size)) })
+    }
+  }
+
+  @Test
+  fun corruptInputFails() {
+    val corrupt = listOf(
+        byteArrayOf(0), // Tag 0
+        byteArrayOf(1 shl 3) + ByteArray(10) { -1 }, // Malformed varint
+        byteArrayOf(5 shl 3 or 2, -1, -1, -1, -1, 0x0f), // Negative length
+        byteArrayOf(5 shl 3 or 2, 10, 'a'.toByte()), // Length past the end
+        byteArrayOf(8 shl 3 or 4), // Unexpected end group
+        byteArrayOf(8 shl 3 or 3), // Unterminated group
+        byteArrayOf(8 shl 3 or 6)) // Unknown field encoding
+
+    for (bytes in corrupt) {
+      for (reader in listOf(ProtoReader(bytes), ProtoReader(Buffer().write(bytes)))) {
+        try {
+          readFields(reader)
+          fail("Read corrupt input ${bytes.toByteString().hex()}")
+        } catch (expected: IOException) {
+        }
+      }
+    }
+  }
+
+  @Test
+  fun invalidRangesFail() {
+    for ((offset, byteCount) in listOf(-1 to 1, 0 to -1, 0 to message.size + 1, message.size to 1)) {
+      try {
+        ProtoReader(message, offset, byteCount)
+        fail()
+      } catch (expected: IndexOutOfBoundsException) {
+      }
+    }
+  }
+
+  /** @return the values of the fields of [message] in order, followed by the unknown fields. */
+  private fun readFields(reader: ProtoReader): List<Any> {
+    val values = mutableListOf<Any>()
+    val unknownFields = reader.forEachTag { tag ->
+      when (tag) {
+        1, 7 -> values += ProtoAdapter.INT32.decode(reader)
+        2 -> values += ProtoAdapter.SINT64.decode(reader)
+        3 -> values += ProtoAdapter.FIXED32.decode(reader)
+        4 -> values += ProtoAdapter.DOUBLE.decode(reader)
+        5 -> values += ProtoAdapter.STRING.decode(reader)
+        6 -> values += ProtoAdapter.BYTES.decode(reader)
+        else -> reader.readUnknownField(tag)
+      }
+    }
+    return values + unknownFields
+  }
+
+  /** @return the result of [read], or the class of what it threw. */
+  private fun outcome(read: () -> Any): Any {
+    return try {
+      read()
+    } catch (e: Exception) {
+      e.javaClass
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.internal.wire
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.uber.crumb.internal.model.CompactCrumbMetadata
+import com.uber.crumb.internal.model.Crumb
+import com.uber.crumb.internal.model.CrumbMetadata
+import com.uber.crumb.internal.model.CrumbModelAdapters
+import com.uber.crumb.internal.model.CrumbStringTable
+import okio.Buffer
+import okio.ByteString.Companion.encodeUtf8
+import okio.ByteString.Companion.toByteString
+import org.junit.Test
+import kotlin.random.Random
+
+class ReverseProtoWriterTest {
+
+  private val unknownFields = Buffer().also { ProtoAdapter.STRING.encodeWithTag(ProtoWriter(it), 99, "unknown") }
+      .readByteString()
+
+  private val crumb = Crumb("com.example.Foo", listOf(
+      CrumbMetadata("moshi", mapOf("factory" to "com.example.FooFactory", "" to "")),
+      CrumbMetadata("gson", emptyMap(), unknownFields)),
+      unknownFields)
+
+  @Test
+  fun messagesMatchForwardEncoding() {
+    assertMatches(CrumbModelAdapters.CRUMB, crumb)
+    assertMatches(CrumbModelAdapters.CRUMB, Crumb(""))
+    assertMatches(CrumbModelAdapters.CRUMB_METADATA, crumb.extras[0])
+    assertMatches(CrumbStringTable.ADAPTER, CrumbStringTable(listOf("a", "", "Café"), unknownFields))
+    assertMatches(CompactCrumbMetadata.ADAPTER, CompactCrumbMetadata(3, listOf(0, 1, 127, 128, 300_000)))
+    assertMatches(CompactCrumbMetadata.ADAPTER, CompactCrumbMetadata(0, emptyList()))
+    // The generated adapters don't encode in reverse, so they fall back to encoding forwards.
+    assertMatches(Crumb.ADAPTER, crumb)
+    assertMatches(CrumbMetadata.ADAPTER, crumb.extras[0])
+  }
+
+  @Test
+  fun scalarsMatchForwardEncoding() {
+    val ints = listOf(0, 1, -1, 127, 128, 16_383, 16_384, Int.MAX_VALUE, Int.MIN_VALUE)
+    val longs = ints.map(Int::toLong) + listOf(Long.MAX_VALUE, Long.MIN_VALUE, 1L shl 35)
+    for (adapter in listOf(ProtoAdapter.INT32, ProtoAdapter.UINT32, ProtoAdapter.SINT32, ProtoAdapter.FIXED32,
+        ProtoAdapter.SFIXED32)) {
+      ints.forEach { assertMatches(adapter, it) }
+    }
+    for (adapter in listOf(ProtoAdapter.INT64, ProtoAdapter.UINT64, ProtoAdapter.SINT64, ProtoAdapter.FIXED64,
+        ProtoAdapter.SFIXED64)) {
+      longs.forEach { assertMatches(adapter, it) }
+    }
+    listOf(true, false).forEach { assertMatches(ProtoAdapter.BOOL, it) }
+    listOf(0f, -1.5f, Float.NaN, Float.MAX_VALUE).forEach { assertMatches(ProtoAdapter.FLOAT, it) }
+    listOf(0.0, Math.PI, Double.NEGATIVE_INFINITY).forEach { assertMatches(ProtoAdapter.DOUBLE, it) }
+    assertMatches(ProtoAdapter.BYTES, byteArrayOf(0, -1, 2).toByteString())
+    // Repeated values can only be encoded with a tag.
+    assertMatchesWithTag(ProtoAdapter.INT32.asPacked(), ints)
+    assertMatchesWithTag(ProtoAdapter.STRING.asRepeated(), listOf("a", "b", ""))
+  }
+
+  @Test
+  fun stringsMatchOkioUtf8() {
+    val strings = listOf(
+        "",
+        "ascii",
+        "Café", // Two byte characters
+        "中文", // Three byte characters
+        "😀a😀", // Surrogate pairs
+        "\ud83d", // Unpaired high surrogate at the end
+        "\ude00a", // Unpaired low surrogate
+        "\ud83da", // High surrogate followed by a non-surrogate
+        "\ude00\ud83d", // Surrogates in the wrong order
+        "\u0000\u007f\u0080\u07ff\u0800\uffff") // Boundaries of each UTF-8 size
+
+    for (value in strings) {
+      assertWithMessage(value).that(reverse(ProtoAdapter.STRING, value)).isEqualTo(value.encodeUtf8().toByteArray())
+      assertMatches(ProtoAdapter.STRING, value)
+    }
+  }
+
+  @Test
+  fun largeMessagesGrowTheArray() {
+    val random = Random(0)
+    val large = Crumb("com.example.Large", (0 until 2_000).map { i ->
+      CrumbMetadata("extension$i", (0 until 10).associate { "key$it" to "value${random.nextInt()}" })
+    })
+    val longString = (0 until 100_000).map { 'a' + random.nextInt(26) }.joinToString("") + "中😀"
+
+    assertMatches(CrumbModelAdapters.CRUMB, large)
+    assertMatches(ProtoAdapter.STRING, longString)
+    assertThat(CrumbModelAdapters.CRUMB.decode(CrumbModelAdapters.CRUMB.encode(large))).isEqualTo(large)
+  }
+
+  @Test
+  fun pooledArraysDontLeakBetweenWriters() {
+    val small = Crumb("com.example.Small")
+    val expected = forward(CrumbModelAdapters.CRUMB, small)
+
+    assertThat(CrumbModelAdapters.CRUMB.encode(crumb)).isEqualTo(forward(CrumbModelAdapters.CRUMB, crumb))
+    assertThat(CrumbModelAdapters.CRUMB.encode(small)).isEqualTo(expected)
+    assertThat(Buffer().also { CrumbModelAdapters.CRUMB.encode(it, small) }.readByteArray()).isEqualTo(expected)
+    ReverseProtoWriter().use { writer ->
+      // A writer in use doesn't share its array with nested writers.
+      CrumbModelAdapters.CRUMB.encode(writer, small)
+      assertThat(CrumbModelAdapters.CRUMB.encode(crumb)).isEqualTo(forward(CrumbModelAdapters.CRUMB, crumb))
+      assertThat(writer.toByteArray()).isEqualTo(expected)
+      assertThat(writer.byteCount).isEqualTo(expected.size)
+    }
+  }
+
+  @Test
+  fun writeForwardMatchesForwardEncoding() {
+    val bytes = ReverseProtoWriter().use { writer ->
+      writer.writeForward { CrumbModelAdapters.CRUMB.encode(it, crumb) }
+      writer.toByteArray()
+    }
+
+    assertThat(bytes).isEqualTo(forward(CrumbModelAdapters.CRUMB, crumb))
+  }
+
+  private fun <E> assertMatches(adapter: ProtoAdapter<E>, value: E) {
+    assertWithMessage("$adapter: $value").that(reverse(adapter, value)).isEqualTo(forward(adapter, value))
+    assertMatchesWithTag(adapter, value)
+  }
+
+  private fun <E> assertMatchesWithTag(adapter: ProtoAdapter<E>, value: E) {
+    val forwardWithTag = Buffer().also { adapter.encodeWithTag(ProtoWriter(it), 5, value) }.readByteArray()
+    val reverseWithTag = ReverseProtoWriter().use { writer ->
+      adapter.encodeWithTag(writer, 5, value)
+      writer.toByteArray()
+    }
+    assertWithMessage("$adapter: $value with tag").that(reverseWithTag).isEqualTo(forwardWithTag)
+  }
+
+  private fun <E> forward(adapter: ProtoAdapter<E>, value: E): ByteArray {
+    return Buffer().also { adapter.encode(ProtoWriter(it), value) }.readByteArray()
+  }
+
+  private fun <E> reverse(adapter: ProtoAdapter<E>, value: E): ByteArray {
+    return ReverseProtoWriter().use { writer ->
+      adapter.encode(writer, value)
+      writer.toByteArray()
+    }
+  }
+}
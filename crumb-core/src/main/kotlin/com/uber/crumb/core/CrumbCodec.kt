@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import okio.Buffer
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.ServiceLoader
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.zip.CRC32
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
+
+/**
+ * A compression codec for index payloads. The [id] of a codec is recorded alongside the data it encoded, such as in a
+ * [CrumbIndexContainer], so that readers can pick the right codec automatically.
+ *
+ * Built-in codecs are available as [STORED], [DEFLATE] (or [deflate] for other levels), [GZIP] (or [gzip] for other
+ * levels), and [DICTIONARY] (or [dictionary] for other dictionaries and levels). Custom codecs can
+ * be provided via [ServiceLoader] from the annotation processor's classpath, and must then be available to both
+ * producers and consumers.
+ *
+ * The built-in codecs reuse pooled [Deflater] and [Inflater] instances, as setting these up costs more than the actual
+ * work for typical index sizes.
+ *
+ * @property id the unique id of this codec, which is recorded in payloads. Ids up to [MAX_BUILT_IN_ID] are reserved
+ *              for built-in codecs.
+ * @property name the unique name of this codec, such as for use in processor options.
+ */
+abstract class CrumbCodec(val id: Int, val name: String) {
+
+  /**
+   * @param data the data to encode.
+   * @return the encoded data.
+   */
+  abstract fun encode(data: ByteArray): ByteArray
+
+  /**
+   * @param encoded an array containing data previously encoded by this codec.
+   * @param offset the index of the first byte of the encoded data in [encoded].
+   * @param byteCount the length of the encoded data.
+   * @return the decoded data.
+   * @throws IOException if the data is malformed.
+   */
+  @Throws(IOException::class)
+  abstract fun decode(encoded: ByteArray, offset: Int, byteCount: Int): ByteArray
+
+  /**
+   * @param encoded data previously encoded by this codec.
+   * @return the decoded data.
+   * @throws IOException if the data is malformed.
+   */
+  @Throws(IOException::class)
+  fun decode(encoded: ByteArray): ByteArray = decode(encoded, 0, encoded.size)
+
+  override fun toString() = name
+
+  private object StoredCodec : CrumbCodec(0, "stored") {
+    override fun encode(data: ByteArray) = data
+    override fun decode(encoded: ByteArray, offset: Int, byteCount: Int): ByteArray {
+      return if (offset == 0 && byteCount == encoded.size) encoded else encoded.copyOfRange(offset, offset + byteCount)
+    }
+  }
+
+  /** Raw deflate data without any header or checksum. The level only matters for encoding. */
+  private class DeflateCodec(private val level: Int) : CrumbCodec(1, "deflate") {
+    private val deflaters = Pool(create = { Deflater(level, true) }, reset = Deflater::reset, dispose = Deflater::end)
+
+    override fun encode(data: ByteArray): ByteArray {
+      return deflaters.use { deflate(it, data) }
+    }
+
+    override fun decode(encoded: ByteArray, offset: Int, byteCount: Int) = inflate(encoded, offset, byteCount)
+  }
+
+  /** An int of the [CrumbDictionary.id], then raw deflate data using that dictionary as a preset dictionary. */
+  private class DictionaryCodec(
+      private val dictionary: CrumbDictionary,
+      private val level: Int) : CrumbCodec(3, "dictionary") {
+    private val deflaters = Pool(create = { Deflater(level, true) }, reset = Deflater::reset, dispose = Deflater::end)
+
+    override fun encode(data: ByteArray): ByteArray {
+      return deflaters.use { deflater ->
+        deflater.setDictionary(dictionary.bytes)
+        Buffer().writeInt(dictionary.id).write(deflate(deflater, data)).readByteArray()
+      }
+    }
+
+    override fun decode(encoded: ByteArray, offset: Int, byteCount: Int): ByteArray {
+      if (byteCount < 4) throw IOException("Truncated dictionary id")
+      val id = ByteBuffer.wrap(encoded, offset, 4).int
+      val dictionary = CrumbDictionary.forId(id)
+          ?: throw IOException("Unknown Crumb dictionary id: ${Integer.toHexString(id)}. It must be registered first.")
+      return inflate(encoded, offset + 4, byteCount - 4, dictionary)
+    }
+  }
+
+  /**
+   * Standard gzip data. This is what version 1 indices use, and decoding supports any gzip header, such as headers
+   * written by [CrumbKeyFilter.writeGzip]. The level only matters for encoding.
+   */
+  private class GzipCodec(private val level: Int) : CrumbCodec(2, "gzip") {
+    override fun encode(data: ByteArray): ByteArray {
+      val crc = CRC32().apply { update(data) }
+      return Buffer()
+          .writeShort(GZIP_MAGIC)
+          .writeByte(GZIP_DEFLATE)
+          .writeByte(0) // Flags
+          .writeInt(0) // Modification time
+          .writeByte(0) // Extra flags
+          .writeByte(0) // Operating system
+          .write(deflate(level).encode(data))
+          .writeIntLe(crc.value.toInt())
+          .writeIntLe(data.size)
+          .readByteArray()
+    }
+
+    override fun decode(encoded: ByteArray, offset: Int, byteCount: Int): ByteArray {
+      // Positions of this buffer are indices into encoded, so the header is parsed in place.
+      val header = ByteBuffer.wrap(encoded, offset, byteCount).order(ByteOrder.LITTLE_ENDIAN)
+      val end = offset + byteCount
+      try {
+        if (header.short.toInt() and 0xffff != GZIP_MAGIC_LE || header.get().toInt() != GZIP_DEFLATE) {
+          throw IOException("Not a gzip payload")
+        }
+        val flags = header.get().toInt()
+        header.position(header.position() + 6)
+        if (flags and GZIP_FEXTRA != 0) {
+          val extraLength = header.short.toInt() and 0xffff
+          header.position(header.position() + extraLength)
+        }
+        if (flags and GZIP_FNAME != 0) while (header.get().toInt() != 0) Unit
+        if (flags and GZIP_FCOMMENT != 0) while (header.get().toInt() != 0) Unit
+        if (flags and GZIP_FHCRC != 0) header.position(header.position() + 2)
+      } catch (e: RuntimeException) {
+        // Thrown by ByteBuffer when reading or skipping past the end.
+        throw IOException("Truncated gzip header", e)
+      }
+      val bodyOffset = header.position()
+      if (end - bodyOffset < GZIP_TRAILER_SIZE) throw IOException("Truncated gzip payload")
+      val decoded = inflate(encoded, bodyOffset, end - bodyOffset - GZIP_TRAILER_SIZE)
+      val trailer = ByteBuffer.wrap(encoded, end - GZIP_TRAILER_SIZE, GZIP_TRAILER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+      val crc = CRC32().apply { update(decoded) }
+      if (trailer.int != crc.value.toInt() || trailer.int != decoded.size) {
+        throw IOException("Corrupt gzip payload")
+      }
+      return decoded
+    }
+  }
+
+  /** A small pool of reusable instances, so that concurrent users don't need to share one. */
+  private class Pool<T>(
+      private val create: () -> T,
+      private val reset: (T) -> Unit,
+      private val dispose: (T) -> Unit) {
+    private val instances = ConcurrentLinkedQueue<T>()
+
+    inline fun <R> use(block: (T) -> R): R {
+      val instance = instances.poll() ?: create()
+      try {
+        return block(instance)
+      } finally {
+        reset(instance)
+        if (instances.size < MAX_POOL_SIZE) {
+          instances.offer(instance)
+        } else {
+          dispose(instance)
+        }
+      }
+    }
+  }
+
+  companion object {
+    /** The highest [id] reserved for built-in codecs. */
+    const val MAX_BUILT_IN_ID = 15
+
+    /** The highest [id] of any codec. */
+    const val MAX_ID = 255
+
+    private const val CHUNK_SIZE = 8192
+    private const val GZIP_MAGIC = 0x1f8b
+    private const val GZIP_MAGIC_LE = 0x8b1f
+    private const val GZIP_DEFLATE = 8
+    private const val GZIP_TRAILER_SIZE = 8
+    private const val GZIP_FHCRC = 2
+    private const val GZIP_FEXTRA = 4
+    private const val GZIP_FNAME = 8
+    private const val GZIP_FCOMMENT = 16
+    private const val DEFAULT_DEFLATE_LEVEL = 6
+    private val MAX_POOL_SIZE = Runtime.getRuntime().availableProcessors()
+
+    private val inflaters = Pool(create = { Inflater(true) }, reset = Inflater::reset, dispose = Inflater::end)
+
+    // One instance per level (and dictionary), so that all users of a level share its pool.
+    private val deflateCodecs = Array(Deflater.BEST_COMPRESSION + 1) { DeflateCodec(it) }
+    private val gzipCodecs = Array(Deflater.BEST_COMPRESSION + 1) { GzipCodec(it) }
+    private val dictionaryCodecs = ConcurrentHashMap<Pair<CrumbDictionary, Int>, CrumbCodec>()
+
+    /** Stores data as is. This is best for data that doesn't compress well, such as very small data. */
+    @JvmField
+    val STORED: CrumbCodec = StoredCodec
+
+    /** Raw deflate with the default compression level of 6. */
+    @JvmField
+    val DEFLATE: CrumbCodec = deflate(DEFAULT_DEFLATE_LEVEL)
+
+    /** Standard gzip, which is raw deflate with a header and checksum, with the default compression level of 6. */
+    @JvmField
+    val GZIP: CrumbCodec = gzip(DEFAULT_DEFLATE_LEVEL)
+
+    /** Raw deflate with the [CrumbDictionary.DEFAULT] dictionary and the default compression level of 6. */
+    @JvmField
+    val DICTIONARY: CrumbCodec = dictionary(CrumbDictionary.DEFAULT, DEFAULT_DEFLATE_LEVEL)
+
+    private val builtInCodecs = listOf(STORED, DEFLATE, GZIP, DICTIONARY)
+
+    private val customCodecs: List<CrumbCodec> by lazy {
+      ServiceLoader.load(CrumbCodec::class.java, CrumbCodec::class.java.classLoader)
+          .onEach { codec ->
+            // Ids are recorded as a single unsigned byte.
+            check(codec.id in (MAX_BUILT_IN_ID + 1)..MAX_ID) {
+              "Custom codec ids must be above $MAX_BUILT_IN_ID and at most $MAX_ID: $codec"
+            }
+          }
+          .toList()
+    }
+
+    /**
+     * @param level the compression level, from 0 to 9.
+     * @return a raw deflate codec with the given compression [level].
+     */
+    @JvmStatic
+    fun deflate(level: Int): CrumbCodec {
+      require(level in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION) { "Invalid deflate level: $level" }
+      return deflateCodecs[level]
+    }
+
+    /**
+     * @param level the compression level, from 0 to 9.
+     * @return a gzip codec with the given compression [level].
+     */
+    @JvmStatic
+    fun gzip(level: Int): CrumbCodec {
+      require(level in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION) { "Invalid gzip level: $level" }
+      return gzipCodecs[level]
+    }
+
+    /**
+     * @param dictionary the preset dictionary to deflate with. Readers need to have it
+     *                   [registered][CrumbDictionary.register], which this does for the current process.
+     * @param level the compression level, from 0 to 9.
+     * @return a raw deflate codec with the given preset [dictionary] and compression [level].
+     */
+    @JvmStatic
+    fun dictionary(dictionary: CrumbDictionary, level: Int): CrumbCodec {
+      require(level in Deflater.NO_COMPRESSION..Deflater.BEST_COMPRESSION) { "Invalid deflate level: $level" }
+      CrumbDictionary.register(dictionary)
+      return dictionaryCodecs.getOrPut(dictionary to level) { DictionaryCodec(dictionary, level) }
+    }
+
+    /**
+     * @param id the id of a codec, such as one recorded in a payload.
+     * @return the codec with the given [id], or null if there is none.
+     */
+    @JvmStatic
+    fun forId(id: Int): CrumbCodec? {
+      return builtInCodecs.find { it.id == id } ?: customCodecs.find { it.id == id }
+    }
+
+    /**
+     * @param name the name of a codec, case insensitive.
+     * @return the codec with the given [name], or null if there is none.
+     */
+    @JvmStatic
+    fun forName(name: String): CrumbCodec? {
+      return (builtInCodecs + customCodecs).find { it.name.equals(name, ignoreCase = true) }
+    }
+
+    /** @return the names of every codec, built-in ones first, such as for listing the choices of an option. */
+    @JvmStatic
+    fun names(): List<String> {
+      return (builtInCodecs + customCodecs).map { it.name }
+    }
+
+    private fun deflate(deflater: Deflater, data: ByteArray): ByteArray {
+      deflater.setInput(data)
+      deflater.finish()
+      val result = Buffer()
+      val chunk = ByteArray(CHUNK_SIZE)
+      while (!deflater.finished()) {
+        result.write(chunk, 0, deflater.deflate(chunk))
+      }
+      return result.readByteArray()
+    }
+
+    private fun inflate(
+        encoded: ByteArray,
+        offset: Int,
+        length: Int,
+        dictionary: CrumbDictionary? = null): ByteArray {
+      return inflaters.use { inflater ->
+        inflater.setInput(encoded, offset, length)
+        // Raw deflate data doesn't ask for its dictionary, so it has to be set upfront.
+        dictionary?.let { inflater.setDictionary(it.bytes) }
+        val result = Buffer()
+        val chunk = ByteArray(CHUNK_SIZE)
+        try {
+          while (!inflater.finished()) {
+            val count = inflater.inflate(chunk)
+            // Empty data finishes without inflating anything, so only unfinished data is truncated.
+            if (count == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+              throw IOException("Truncated deflate data")
+            }
+            result.write(chunk, 0, count)
+          }
+        } catch (e: DataFormatException) {
+          throw IOException(e)
+        }
+        result.readByteArray()
+      }
+    }
+  }
+}
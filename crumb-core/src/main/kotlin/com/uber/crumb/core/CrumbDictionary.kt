@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import okio.buffer
+import okio.sink
+import okio.source
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Adler32
+
+/**
+ * A preset dictionary for the [CrumbCodec.dictionary] codec. Index payloads are small and share a lot of tokens, such
+ * as extension keys and package names, so deflating them with a dictionary of such tokens compresses them much better
+ * than deflating each on its own.
+ *
+ * Payloads only record the [id] of their dictionary, so consumers must know the same dictionary. The [DEFAULT]
+ * dictionary is always known, and others need to be [registered][register] before reading payloads that use them.
+ * Dictionaries for a specific codebase can be trained from its existing indices with [CrumbDictionaryTrainer].
+ *
+ * @property bytes the contents of the dictionary. The most common tokens should come last, as deflate can refer to
+ *                 them with shorter distances.
+ */
+class CrumbDictionary(val bytes: ByteArray) {
+
+  /** The id of this dictionary, which is the Adler-32 checksum of its [bytes] like in zlib's dictionary ids. */
+  val id: Int = Adler32().apply { update(bytes) }.value.toInt()
+
+  /**
+   * Writes this dictionary to the given [file], so it can be read back with [read].
+   *
+   * @param file the file to write to.
+   */
+  @Throws(IOException::class)
+  fun write(file: File) {
+    file.sink().buffer().use { it.write(bytes) }
+  }
+
+  override fun equals(other: Any?) = other is CrumbDictionary && other.bytes.contentEquals(bytes)
+
+  override fun hashCode() = id
+
+  override fun toString() = "CrumbDictionary(id=${Integer.toHexString(id)}, size=${bytes.size})"
+
+  companion object {
+    /** The maximum size of a dictionary, which is the size of deflate's window. */
+    const val MAX_SIZE = 32 * 1024
+
+    /**
+     * A general-purpose dictionary of tokens common in Crumb indices, such as package names of popular libraries and
+     * JSON fragments.
+     */
+    @JvmField
+    val DEFAULT = CrumbDictionary(listOf(
+        "android.", "androidx.", "dagger.", "javax.inject.", "io.reactivex.", "okhttp3.", "retrofit2.",
+        "java.util.List", "java.util.Map", "java.util.Set", "java.lang.String", "java.lang.Object", "kotlin.",
+        "Factory", "Module", "Component", "Builder", "Plugin", "Experiment", "Extension", "Provider", "Serializer",
+        "com.google.gson.TypeAdapterFactory", "com.google.gson.", "GsonSupport", "TypeAdapter",
+        "com.squareup.moshi.JsonAdapter.Factory", "com.squareup.moshi.", "MoshiSupport", "JsonAdapter",
+        "\":[\"", "\",\"", "\":\"", "{\"", "\"}", "\"]}", "\":{\"",
+        "Compiler", "Support", "Adapter", "_CrumbIndex", "com.uber.crumb.", "com.uber."
+    ).joinToString("").toByteArray())
+
+    private val registered = ConcurrentHashMap<Int, CrumbDictionary>().apply { put(DEFAULT.id, DEFAULT) }
+
+    /**
+     * Registers the given [dictionary], so that payloads using it can be read.
+     *
+     * @param dictionary the dictionary to register.
+     * @throws IllegalArgumentException if a different dictionary with the same id is already registered.
+     */
+    @JvmStatic
+    fun register(dictionary: CrumbDictionary) {
+      val existing = registered.putIfAbsent(dictionary.id, dictionary)
+      require(existing == null || existing == dictionary) {
+        "A different dictionary with the same id is already registered: $existing"
+      }
+    }
+
+    /**
+     * @param id the id of a dictionary, such as one recorded in a payload.
+     * @return the registered dictionary with the given [id], or null if there is none.
+     */
+    @JvmStatic
+    fun forId(id: Int): CrumbDictionary? = registered[id]
+
+    /**
+     * @param file a dictionary file, such as one written by [write] or [CrumbDictionaryTrainer].
+     * @return the read dictionary.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun read(file: File): CrumbDictionary {
+      val bytes = file.source().buffer().use { it.readByteArray() }
+      if (bytes.size > MAX_SIZE) throw IOException("Dictionary is larger than $MAX_SIZE bytes: $file")
+      return CrumbDictionary(bytes)
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import okio.Buffer
+import okio.BufferedSource
+import okio.buffer
+import okio.source
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipFile
+
+/**
+ * Trains a [CrumbDictionary] from existing index payloads, such as the indices in the jars of a codebase's libraries.
+ *
+ * Training picks the printable tokens, such as class names, package names, and JSON fragments, that occur in the most
+ * payloads and save the most bytes, and puts the most valuable ones last so that deflate can refer to them with shorter
+ * distances.
+ *
+ * To train one from the command line, see the `crumb-dictionary-trainer` tool.
+ */
+object CrumbDictionaryTrainer {
+
+  private const val MIN_TOKEN_LENGTH = 4
+  private const val MAX_TOKEN_LENGTH = 64
+  private const val MIN_OCCURRENCES = 2
+  private const val INDEX_CLASSES_DIRECTORY = "com/uber/crumb/indices/"
+  private const val INDEX_RESOURCES_DIRECTORY = "META-INF/crumb/"
+  private val DELIMITERS = charArrayOf('"', ',', ':', '[', ']', '{', '}', ' ')
+
+  /**
+   * @param samples the uncompressed payloads to train from.
+   * @param maxSize the maximum size of the trained dictionary, up to [CrumbDictionary.MAX_SIZE].
+   * @return the trained dictionary.
+   */
+  @JvmStatic
+  fun train(samples: Collection<ByteArray>, maxSize: Int = CrumbDictionary.MAX_SIZE): CrumbDictionary {
+    require(maxSize in 1..CrumbDictionary.MAX_SIZE) { "Invalid dictionary size: $maxSize" }
+    // The number of samples each token occurs in, rather than its total count, as that's what a shared dictionary
+    // can help with. Repeats within a sample are already compressed well without one.
+    val occurrences = mutableMapOf<String, Int>()
+    samples.forEach { sample ->
+      tokens(sample).forEach { token -> occurrences[token] = (occurrences[token] ?: 0) + 1 }
+    }
+    val selected = mutableListOf<String>()
+    // Every substring of the selected tokens, as these don't need to be selected again. Tokens are short, so this is
+    // cheaper than searching all selected tokens for each candidate.
+    val covered = HashSet<String>()
+    var size = 0
+    occurrences
+        .filterValues { it >= MIN_OCCURRENCES }
+        .entries
+        .sortedByDescending { (token, count) -> token.length.toLong() * count }
+        .forEach { (token, _) ->
+          if (size + token.length <= maxSize && token !in covered) {
+            selected += token
+            size += token.length
+            for (start in 0..token.length - MIN_TOKEN_LENGTH) {
+              for (end in start + MIN_TOKEN_LENGTH..token.length) {
+                covered += token.substring(start, end)
+              }
+            }
+          }
+        }
+    return CrumbDictionary(selected.asReversed().joinToString("").toByteArray(Charsets.ISO_8859_1))
+  }
+
+  /**
+   * @param files jars, directories, or individual index files to find index payloads in. Index payloads are
+   *              read from index holder classes and index resources.
+   * @return the uncompressed payloads of all found indices, with one sample per section of version 2 indices.
+   */
+  @JvmStatic
+  @Throws(IOException::class)
+  fun readSamples(files: Collection<File>): List<ByteArray> {
+    return files.flatMap { file ->
+      when {
+        file.isDirectory -> file.walk()
+            .filter { it.isFile }
+            .mapNotNull { index ->
+              readIndex(index.relativeTo(file).invariantSeparatorsPath) { index.source().buffer().readAll() }
+            }
+            .toList()
+        file.extension == "jar" || file.extension == "zip" -> ZipFile(file).use { zip ->
+          zip.entries()
+              .asSequence()
+              .filter { !it.isDirectory }
+              .mapNotNull { entry ->
+                readIndex(entry.name) { zip.getInputStream(entry).source().buffer().readAll() }
+              }
+              .toList()
+        }
+        else -> listOfNotNull(readIndex(INDEX_RESOURCES_DIRECTORY + file.name) { file.source().buffer().readAll() })
+      }.flatten()
+    }
+  }
+
+  /** @return the payloads of the index at the given [path], or null if it isn't an index. */
+  private fun readIndex(path: String, read: () -> ByteArray): List<ByteArray>? {
+    val payload: BufferedSource = when {
+      path.startsWith(INDEX_CLASSES_DIRECTORY) && path.endsWith(".class") ->
+        CrumbIndexClassReader.read(read()) ?: return null
+      path.startsWith(INDEX_RESOURCES_DIRECTORY) -> Buffer().write(read())
+      else -> return null
+    }
+    return if (CrumbIndexContainer.isContainer(payload)) {
+      val container = CrumbIndexContainer.read(payload)
+      container.keys.map { container.section(it)!!.readByteArray() }
+    } else {
+      listOf(CrumbCodec.GZIP.decode(payload.readByteArray()))
+    }
+  }
+
+  /**
+   * @return the distinct tokens in the given [sample] that are long enough to matter, but short enough to be shared.
+   *         These are runs of printable ASCII characters, the parts of these between JSON delimiters, and the package
+   *         prefixes of these parts.
+   */
+  private fun tokens(sample: ByteArray): Set<String> {
+    val runs = mutableListOf<String>()
+    var start = 0
+    for (i in 0..sample.size) {
+      if (i == sample.size || sample[i] !in ' '.toByte()..'~'.toByte()) {
+        runs += String(sample, start, i - start, Charsets.ISO_8859_1)
+        start = i + 1
+      }
+    }
+    val tokens = mutableSetOf<String>()
+    runs.forEach { run ->
+      tokens += run
+      run.split(*DELIMITERS).forEach { part ->
+        tokens += part
+        part.indices.filter { part[it] == '.' }.forEach { tokens += part.substring(0, it + 1) }
+      }
+    }
+    return tokens.filterTo(mutableSetOf()) { it.length in MIN_TOKEN_LENGTH..MAX_TOKEN_LENGTH }
+  }
+
+  private fun BufferedSource.readAll(): ByteArray = use { it.readByteArray() }
+}
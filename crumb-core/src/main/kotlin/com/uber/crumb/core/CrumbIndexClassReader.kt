@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.uber.crumb.annotations.internal.CrumbIndex
+import okio.Buffer
+import okio.BufferedSource
+import okio.buffer
+import java.io.IOException
+
+/**
+ * A minimal class file reader that only extracts the [CrumbIndex] annotation of a holder type, without going through
+ * javac's symbol completion and annotation proxies. This is the reading counterpart to [CrumbIndexClassWriter], but
+ * reads any holder type regardless of the [CrumbOutputLanguage] it was written with.
+ */
+internal object CrumbIndexClassReader {
+
+  private const val MAGIC = 0xCAFEBABE.toInt()
+  private const val CONSTANT_UTF8 = 1
+  private const val CONSTANT_INTEGER = 3
+  private const val CONSTANT_FLOAT = 4
+  private const val CONSTANT_LONG = 5
+  private const val CONSTANT_DOUBLE = 6
+  private const val CONSTANT_CLASS = 7
+  private const val CONSTANT_STRING = 8
+  private const val CONSTANT_FIELDREF = 9
+  private const val CONSTANT_METHODREF = 10
+  private const val CONSTANT_INTERFACE_METHODREF = 11
+  private const val CONSTANT_NAME_AND_TYPE = 12
+  private const val CONSTANT_METHOD_HANDLE = 15
+  private const val CONSTANT_METHOD_TYPE = 16
+  private const val CONSTANT_DYNAMIC = 17
+  private const val CONSTANT_INVOKE_DYNAMIC = 18
+  private const val CONSTANT_MODULE = 19
+  private const val CONSTANT_PACKAGE = 20
+
+  private val CRUMB_INDEX_DESCRIPTOR = "L${CrumbIndex::class.java.name.replace('.', '/')};"
+  private val ANNOTATION_ATTRIBUTES = setOf("RuntimeInvisibleAnnotations", "RuntimeVisibleAnnotations")
+
+  /**
+   * @param classFile the full contents of a class file.
+   * @return the payload of the [CrumbIndex] annotation on the given class, or null if it has none.
+   * @throws IOException if the class file is malformed.
+   */
+  @Throws(IOException::class)
+  fun read(classFile: ByteArray): BufferedSource? {
+    val source = Buffer().write(classFile)
+    if (source.readInt() != MAGIC) throw IOException("Not a class file")
+    source.skip(4) // minor_version, major_version
+    val constants = readConstantPool(source)
+    source.skip(6) // access_flags, this_class, super_class
+    source.skip(2L * source.readUnsignedShort()) // interfaces
+    repeat(2) {
+      // Fields, then methods
+      repeat(source.readUnsignedShort()) {
+        source.skip(6) // access_flags, name_index, descriptor_index
+        skipAttributes(source)
+      }
+    }
+    repeat(source.readUnsignedShort()) {
+      val name = constants.at(source.readUnsignedShort())
+      val length = source.readInt().toLong()
+      if (name in ANNOTATION_ATTRIBUTES) {
+        readCrumbIndex(source, constants)?.let { return it }
+      } else {
+        source.skip(length)
+      }
+    }
+    return null
+  }
+
+  private fun readConstantPool(source: Buffer): Array<Any?> {
+    val count = source.readUnsignedShort()
+    val constants = arrayOfNulls<Any>(count)
+    var index = 1
+    while (index < count) {
+      when (val tag = source.readByte().toInt()) {
+        CONSTANT_UTF8 -> constants[index] = source.readModifiedUtf8(source.readUnsignedShort().toLong())
+        CONSTANT_INTEGER -> constants[index] = source.readInt()
+        CONSTANT_FLOAT -> source.skip(4)
+        CONSTANT_LONG, CONSTANT_DOUBLE -> {
+          source.skip(8)
+          // These take up two entries in the constant pool.
+          index++
+        }
+        CONSTANT_CLASS, CONSTANT_STRING, CONSTANT_METHOD_TYPE, CONSTANT_MODULE, CONSTANT_PACKAGE -> source.skip(2)
+        CONSTANT_METHOD_HANDLE -> source.skip(3)
+        CONSTANT_FIELDREF, CONSTANT_METHODREF, CONSTANT_INTERFACE_METHODREF, CONSTANT_NAME_AND_TYPE,
+        CONSTANT_DYNAMIC, CONSTANT_INVOKE_DYNAMIC -> source.skip(4)
+        else -> throw IOException("Unknown constant pool tag: $tag")
+      }
+      index++
+    }
+    return constants
+  }
+
+  private fun skipAttributes(source: Buffer) {
+    repeat(source.readUnsignedShort()) {
+      source.skip(2) // attribute_name_index
+      source.skip(source.readInt().toLong())
+    }
+  }
+
+  private fun readCrumbIndex(source: Buffer, constants: Array<Any?>): BufferedSource? {
+    var result: BufferedSource? = null
+    repeat(source.readUnsignedShort()) {
+      val isCrumbIndex = constants.at(source.readUnsignedShort()) == CRUMB_INDEX_DESCRIPTOR
+      repeat(source.readUnsignedShort()) {
+        val name = constants.at(source.readUnsignedShort())
+        val tag = source.readByte().toInt()
+        if (isCrumbIndex && (name == "value" || name == "packed") && tag == '['.toInt()) {
+          val values = arrayOfNulls<Any>(source.readUnsignedShort())
+          for (i in values.indices) {
+            source.skip(1) // tag, which is always 'B' or 's'
+            values[i] = constants.at(source.readUnsignedShort())
+          }
+          if (values.isNotEmpty()) {
+            result = if (name == "packed") {
+              val parts = Array(values.size) { values[it] as? String ?: throw IOException("Invalid packed value") }
+              PackedIndexSource(parts).buffer()
+            } else {
+              Buffer().apply { values.forEach { writeByte(it as? Int ?: throw IOException("Invalid byte value")) } }
+            }
+          }
+        } else {
+          skipElementValue(source, tag)
+        }
+      }
+    }
+    return result
+  }
+
+  private fun skipElementValue(source: Buffer, tag: Int = source.readByte().toInt()) {
+    when (tag.toChar()) {
+      'B', 'C', 'D', 'F', 'I', 'J', 'S', 'Z', 's', 'c' -> source.skip(2)
+      'e' -> source.skip(4)
+      '@' -> {
+        source.skip(2) // type_index
+        repeat(source.readUnsignedShort()) {
+          source.skip(2) // element_name_index
+          skipElementValue(source)
+        }
+      }
+      '[' -> repeat(source.readUnsignedShort()) { skipElementValue(source) }
+      else -> throw IOException("Unknown element value tag: $tag")
+    }
+  }
+
+  private fun Array<Any?>.at(index: Int): Any? {
+    if (index >= size) throw IOException("Invalid constant pool index: $index")
+    return this[index]
+  }
+
+  private fun Buffer.readUnsignedShort(): Int = readShort().toInt() and 0xffff
+
+  /** Reads [byteCount] bytes of "modified UTF-8", as used in class file constant pools. */
+  private fun Buffer.readModifiedUtf8(byteCount: Long): String {
+    val end = size - byteCount
+    return buildString(byteCount.toInt()) {
+      while (size > end) {
+        val a = readByte().toInt() and 0xff
+        when {
+          a < 0x80 -> append(a.toChar())
+          a < 0xe0 -> append((((a and 0x1f) shl 6) or (readByte().toInt() and 0x3f)).toChar())
+          else -> {
+            val b = readByte().toInt() and 0x3f
+            val c = readByte().toInt() and 0x3f
+            append((((a and 0x0f) shl 12) or (b shl 6) or c).toChar())
+          }
+        }
+      }
+    }
+  }
+}
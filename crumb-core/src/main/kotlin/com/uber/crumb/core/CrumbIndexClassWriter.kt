@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.uber.crumb.annotations.internal.CrumbIndex
+import okio.Buffer
+
+/**
+ * A minimal class file writer for [CrumbIndex] holder types. This writes the equivalent of what
+ * [CrumbOutputLanguage.JAVA] would generate (a final class with a private constructor and a [CrumbIndex]
+ * annotation), but directly as bytecode so that no source file needs to be parsed and compiled afterward.
+ *
+ * @param className The binary name of the class to write, such as `com.example.FooCrumbIndex`.
+ */
+internal class CrumbIndexClassWriter(className: String) {
+
+  private val constantPool = Buffer()
+  private val constants = mutableMapOf<Any, Int>()
+  private var constantCount = 1
+
+  private val thisClass = classConstant(className.replace('.', '/'))
+  private val superClass = classConstant(OBJECT_INTERNAL_NAME)
+
+  /**
+   * @param payload the raw bytes to store in the [CrumbIndex].
+   * @param encoding the [CrumbIndexEncoding] to store [payload] with.
+   * @return the full contents of the class file.
+   */
+  fun write(payload: ByteArray, encoding: CrumbIndexEncoding): ByteArray {
+    val constructor = constructorMethod()
+    val annotation = Buffer().apply {
+      writeShort(utf8Constant(RUNTIME_INVISIBLE_ANNOTATIONS))
+      val body = Buffer().apply {
+        writeShort(1) // num_annotations
+        writeShort(utf8Constant(CRUMB_INDEX_DESCRIPTOR))
+        writeShort(1) // num_element_value_pairs
+        when (encoding) {
+          CrumbIndexEncoding.BYTES -> {
+            require(payload.size <= MAX_ANNOTATION_ARRAY_LENGTH) {
+              "CrumbIndex payload is too large for the class file format: ${payload.size} bytes"
+            }
+            writeShort(utf8Constant("value"))
+            writeByte('['.toInt())
+            writeShort(payload.size)
+            payload.forEach { byte ->
+              writeByte('B'.toInt())
+              writeShort(integerConstant(byte.toInt()))
+            }
+          }
+          CrumbIndexEncoding.PACKED -> {
+            val strings = packIndex(payload)
+            writeShort(utf8Constant("packed"))
+            writeByte('['.toInt())
+            writeShort(strings.size)
+            strings.forEach { string ->
+              writeByte('s'.toInt())
+              writeShort(utf8Constant(string))
+            }
+          }
+        }
+      }
+      writeInt(body.size.toInt())
+      writeAll(body)
+    }
+
+    return Buffer()
+        .writeInt(MAGIC)
+        .writeShort(0) // minor_version
+        .writeShort(JAVA_8_MAJOR_VERSION)
+        .writeShort(constantCount)
+        .apply { writeAll(constantPool) }
+        .writeShort(ACC_FINAL or ACC_SUPER)
+        .writeShort(thisClass)
+        .writeShort(superClass)
+        .writeShort(0) // interfaces_count
+        .writeShort(0) // fields_count
+        .writeShort(1) // methods_count
+        .apply { writeAll(constructor) }
+        .writeShort(1) // attributes_count
+        .apply { writeAll(annotation) }
+        .readByteArray()
+  }
+
+  /** Writes a private no-arg constructor that only calls `super()`. */
+  private fun constructorMethod(): Buffer {
+    val superConstructor = methodRefConstant(superClass, "<init>", "()V")
+    val code = Buffer()
+        .writeShort(1) // max_stack
+        .writeShort(1) // max_locals
+        .writeInt(5) // code_length
+        .writeByte(ALOAD_0)
+        .writeByte(INVOKESPECIAL)
+        .writeShort(superConstructor)
+        .writeByte(RETURN)
+        .writeShort(0) // exception_table_length
+        .writeShort(0) // attributes_count
+    return Buffer()
+        .writeShort(ACC_PRIVATE)
+        .writeShort(utf8Constant("<init>"))
+        .writeShort(utf8Constant("()V"))
+        .writeShort(1) // attributes_count
+        .writeShort(utf8Constant("Code"))
+        .writeInt(code.size.toInt())
+        .apply { writeAll(code) }
+  }
+
+  private fun utf8Constant(value: String): Int {
+    return constants.getOrPut(value) {
+      constantPool.writeByte(CONSTANT_UTF8)
+      constantPool.writeModifiedUtf8(value)
+      constantCount++
+    }
+  }
+
+  private fun integerConstant(value: Int): Int {
+    return constants.getOrPut(value) {
+      constantPool.writeByte(CONSTANT_INTEGER)
+      constantPool.writeInt(value)
+      constantCount++
+    }
+  }
+
+  private fun classConstant(internalName: String): Int {
+    val nameIndex = utf8Constant(internalName)
+    return constants.getOrPut(ConstantKey(CONSTANT_CLASS, nameIndex)) {
+      constantPool.writeByte(CONSTANT_CLASS)
+      constantPool.writeShort(nameIndex)
+      constantCount++
+    }
+  }
+
+  private fun methodRefConstant(owner: Int, name: String, descriptor: String): Int {
+    val nameIndex = utf8Constant(name)
+    val descriptorIndex = utf8Constant(descriptor)
+    val nameAndType = constants.getOrPut(ConstantKey(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex)) {
+      constantPool.writeByte(CONSTANT_NAME_AND_TYPE)
+      constantPool.writeShort(nameIndex)
+      constantPool.writeShort(descriptorIndex)
+      constantCount++
+    }
+    return constants.getOrPut(ConstantKey(CONSTANT_METHODREF, owner, nameAndType)) {
+      constantPool.writeByte(CONSTANT_METHODREF)
+      constantPool.writeShort(owner)
+      constantPool.writeShort(nameAndType)
+      constantCount++
+    }
+  }
+
+  /** Keys for constant pool entries that refer to other entries, to dedupe them alongside raw values. */
+  private data class ConstantKey(val tag: Int, val first: Int, val second: Int = 0)
+
+  private companion object {
+    const val MAGIC = 0xCAFEBABE.toInt()
+    const val JAVA_8_MAJOR_VERSION = 52
+
+    const val CONSTANT_UTF8 = 1
+    const val CONSTANT_INTEGER = 3
+    const val CONSTANT_CLASS = 7
+    const val CONSTANT_METHODREF = 10
+    const val CONSTANT_NAME_AND_TYPE = 12
+
+    const val ACC_PRIVATE = 0x0002
+    const val ACC_FINAL = 0x0010
+    const val ACC_SUPER = 0x0020
+
+    const val ALOAD_0 = 0x2a
+    const val INVOKESPECIAL = 0xb7
+    const val RETURN = 0xb1
+
+    const val OBJECT_INTERNAL_NAME = "java/lang/Object"
+    const val RUNTIME_INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations"
+    val CRUMB_INDEX_DESCRIPTOR = "L${CrumbIndex::class.java.name.replace('.', '/')};"
+  }
+}
+
+/**
+ * Writes [value] as a length-prefixed "modified UTF-8" string, as used in class file constant pools.
+ */
+private fun Buffer.writeModifiedUtf8(value: String) {
+  val encoded = Buffer()
+  value.forEach { char ->
+    val c = char.toInt()
+    when {
+      c in 0x01..0x7f -> encoded.writeByte(c)
+      c <= 0x7ff -> {
+        encoded.writeByte(0xc0 or (c shr 6))
+        encoded.writeByte(0x80 or (c and 0x3f))
+      }
+      else -> {
+        encoded.writeByte(0xe0 or (c shr 12))
+        encoded.writeByte(0x80 or ((c shr 6) and 0x3f))
+        encoded.writeByte(0x80 or (c and 0x3f))
+      }
+    }
+  }
+  require(encoded.size <= 0xffff) { "Constant is too large for the class file format: ${encoded.size} bytes" }
+  writeShort(encoded.size.toInt())
+  writeAll(encoded)
+}
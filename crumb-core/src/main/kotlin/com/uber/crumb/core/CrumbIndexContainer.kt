@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import okio.Buffer
+import okio.BufferedSink
+import okio.BufferedSource
+import okio.ByteString.Companion.encodeUtf8
+import java.io.IOException
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+
+/**
+ * A versioned container for index payloads that is split into one section per key, such as per extension. Sections
+ * can be read individually without decompressing or parsing the rest of the index. Payloads from before this format
+ * (version 1) are a single gzip stream, which can be told apart from containers via [isContainer].
+ *
+ * The format is as follows, with all integers big-endian:
+ * ```
+ * magic        4 bytes, "CRMB"
+ * version      1 byte, currently 2
+ * name         unsigned short length, then UTF-8 bytes
+ * count        int, the number of sections
+ * toc          for each section:
+ *                key          unsigned short length, then UTF-8 bytes
+ *                codec        1 byte, the id of its CrumbCodec
+ *                offset       int, relative to the start of the section data
+ *                length       int, the stored length of the section
+ * data         the stored sections
+ * ```
+ *
+ * @property name the name of the indexed element.
+ */
+class CrumbIndexContainer private constructor(
+    val name: String,
+    private val sections: Map<String, Section>,
+    private val payload: ByteArray) {
+
+  /** The keys of all sections in this container, in the order they were written. */
+  val keys: Set<String> get() = sections.keys
+
+  /**
+   * @param key the key of the section to read.
+   * @return a [BufferedSource] of the decoded section for the given [key], or null if there is none. Only this section
+   *         is decoded.
+   * @throws IOException if the section is malformed.
+   */
+  @Throws(IOException::class)
+  fun section(key: String): BufferedSource? = sectionBytes(key)?.let { Buffer().write(it) }
+
+  /**
+   * @param key the key of the section to read.
+   * @return the decoded section for the given [key], or null if there is none. Only this section is decoded, straight
+   *         from the payload this container was read from.
+   * @throws IOException if the section is malformed.
+   */
+  @Throws(IOException::class)
+  fun sectionBytes(key: String): ByteArray? {
+    val section = sections[key] ?: return null
+    return section.codec.decode(payload, section.offset, section.length)
+  }
+
+  /** A section of [payload], where [offset] is relative to the start of the payload rather than its section data. */
+  private class Section(val codec: CrumbCodec, val offset: Int, val length: Int)
+
+  companion object {
+    private val MAGIC = "CRMB".encodeUtf8()
+    private const val VERSION = 2
+
+    /**
+     * @param source the payload to check, which isn't consumed.
+     * @return true if the given payload is a [CrumbIndexContainer], or false if it's a version 1 gzip stream.
+     */
+    @JvmStatic
+    fun isContainer(source: BufferedSource): Boolean = source.rangeEquals(0, MAGIC)
+
+    /**
+     * @param payload the payload to check.
+     * @return true if the given payload is a [CrumbIndexContainer], or false if it's a version 1 gzip stream.
+     */
+    @JvmStatic
+    fun isContainer(payload: ByteArray): Boolean = MAGIC.rangeEquals(0, payload, 0, MAGIC.size)
+
+    /**
+     * Reads the header and table of contents of a container from the given [source], which is consumed entirely.
+     * Sections are only decompressed once read via [section].
+     *
+     * @param source the payload to read.
+     * @return the read [CrumbIndexContainer].
+     * @throws IOException if the payload isn't a container or is of an unsupported version.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun read(source: BufferedSource): CrumbIndexContainer = read(source.readByteArray())
+
+    /**
+     * Reads the header and table of contents of a container from the given [payload]. The container keeps a reference
+     * to the [payload] instead of copying it, so it must not be modified afterwards. Sections are only decompressed
+     * once read via [section] or [sectionBytes].
+     *
+     * @param payload the payload to read.
+     * @return the read [CrumbIndexContainer].
+     * @throws IOException if the payload isn't a container or is of an unsupported version.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun read(payload: ByteArray): CrumbIndexContainer {
+      if (!isContainer(payload)) throw IOException("Not a Crumb index container")
+      val header = ByteBuffer.wrap(payload)
+      try {
+        header.position(MAGIC.size)
+        val version = header.get().toInt()
+        if (version != VERSION) throw IOException("Unsupported Crumb index container version: $version")
+        val name = header.readShortString()
+        val count = header.int
+        if (count < 0) throw IOException("Invalid section count $count in $name")
+        // The count isn't trusted for sizing collections, as a corrupt one would otherwise allocate before failing.
+        val toc = mutableListOf<Triple<String, CrumbCodec, Pair<Int, Int>>>()
+        repeat(count) {
+          val key = header.readShortString()
+          val codecId = header.get().toInt() and 0xff
+          val codec = CrumbCodec.forId(codecId) ?: throw IOException("Unsupported Crumb index codec: $codecId")
+          toc += Triple(key, codec, header.int to header.int)
+        }
+        val dataOffset = header.position()
+        val sections = LinkedHashMap<String, Section>()
+        toc.forEach { (key, codec, range) ->
+          val (offset, length) = range
+          if (offset < 0 || length < 0 || dataOffset.toLong() + offset + length > payload.size) {
+            throw IOException("Section $key is out of bounds in $name")
+          }
+          sections[key] = Section(codec, dataOffset + offset, length)
+        }
+        return CrumbIndexContainer(name, sections, payload)
+      } catch (e: BufferUnderflowException) {
+        throw IOException("Truncated Crumb index container", e)
+      }
+    }
+
+    /**
+     * Writes a container with the given [name] and [sections] to the given [sink].
+     *
+     * @param sink the sink to write to. This is not closed.
+     * @param name the name of the indexed element.
+     * @param sections the uncompressed sections to write, by key.
+     * @param codec the [CrumbCodec] to try for each section. Each section is encoded individually, and stored as is if
+     *              the codec wouldn't make it any smaller.
+     */
+    @JvmStatic
+    fun write(
+        sink: BufferedSink,
+        name: String,
+        sections: Map<String, ByteArray>,
+        codec: CrumbCodec = CrumbCodec.deflate(Deflater.BEST_COMPRESSION)) {
+      sink.write(MAGIC)
+          .writeByte(VERSION)
+          .writeShortString(name)
+          .writeInt(sections.size)
+      val data = Buffer()
+      sections.forEach { (key, section) ->
+        val encoded = codec.encode(section)
+        val (sectionCodec, stored) = if (encoded.size < section.size) {
+          codec to encoded
+        } else {
+          CrumbCodec.STORED to section
+        }
+        sink.writeShortString(key)
+            .writeByte(sectionCodec.id)
+            .writeInt(data.size.toInt())
+            .writeInt(stored.size)
+        data.write(stored)
+      }
+      sink.writeAll(data)
+    }
+
+    private fun ByteBuffer.readShortString(): String {
+      val length = short.toInt() and 0xffff
+      if (remaining() < length) throw BufferUnderflowException()
+      return String(array(), arrayOffset() + position(), length, Charsets.UTF_8).also { position(position() + length) }
+    }
+
+    private fun BufferedSink.writeShortString(value: String): BufferedSink {
+      val bytes = value.encodeUtf8()
+      require(bytes.size <= 0xffff) { "String is too long for a Crumb index container: $value" }
+      return writeShort(bytes.size).write(bytes)
+    }
+  }
+}
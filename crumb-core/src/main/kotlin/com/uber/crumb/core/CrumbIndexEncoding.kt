@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.uber.crumb.annotations.internal.CrumbIndex
+import okio.Buffer
+import okio.Source
+import okio.Timeout
+import java.io.IOException
+
+/**
+ * Supported encodings of payloads in a [CrumbIndex] annotation. [CrumbManager.load] can read all of them, so this only
+ * affects how indices are written.
+ */
+enum class CrumbIndexEncoding {
+  /**
+   * Stores the payload in [CrumbIndex.value] as a `byte[]`. Every byte is its own decimal literal in generated sources
+   * and its own element value in the class file.
+   *
+   * The class file format limits arrays in annotations to 65535 elements, so larger payloads are always stored as
+   * [PACKED] instead.
+   */
+  BYTES,
+
+  /**
+   * Stores the payload in [CrumbIndex.packed] as numbered parts, with each part a string that holds six bits per
+   * char. The chars are those of URL-safe base64, which need no escaping in Java or Kotlin string literals and take
+   * a single byte each in class files. Strings are compiled to single constant pool entries, so this is several times
+   * smaller than [BYTES] in both generated sources and class files. Note that indices written in this encoding can't
+   * be read by versions of Crumb before its introduction.
+   */
+  PACKED;
+
+  /**
+   * @return the encoding to actually store a payload of [size] bytes with, which is [PACKED] if this is [BYTES] but
+   * the payload is too large to fit in a single annotation array.
+   */
+  internal fun forPayloadSize(size: Int): CrumbIndexEncoding {
+    return if (this == BYTES && size > MAX_ANNOTATION_ARRAY_LENGTH) PACKED else this
+  }
+}
+
+/** The maximum number of elements in an annotation array value, per the class file format. */
+internal const val MAX_ANNOTATION_ARRAY_LENGTH = 0xffff
+
+/** Payload bytes per packed string. A multiple of 3 so that every string packs to exactly 4 chars per 3 bytes. */
+private const val BYTES_PER_PACKED_STRING = 3 * 4096
+
+/** The chars of packed strings, indexed by the six bits that each holds. */
+private const val PACKED_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+
+/** The six bits held by each char of [PACKED_ALPHABET], indexed by the char, or -1 for other chars. */
+private val PACKED_VALUES = IntArray(128) { PACKED_ALPHABET.indexOf(it.toChar()) }
+
+/**
+ * Packs [bytes] into parts with six bits per char, for [CrumbIndexEncoding.PACKED]. Each part holds at most
+ * [BYTES_PER_PACKED_STRING] bytes, which keeps it well within the class file limit of 65535 bytes per constant.
+ */
+internal fun packIndex(bytes: ByteArray): List<String> {
+  return (bytes.indices step BYTES_PER_PACKED_STRING).map { start ->
+    val end = minOf(start + BYTES_PER_PACKED_STRING, bytes.size)
+    buildString((end - start) * 4 / 3 + 1) {
+      var bits = 0
+      var bitCount = 0
+      for (i in start until end) {
+        bits = (bits shl 8) or (bytes[i].toInt() and 0xff)
+        bitCount += 8
+        while (bitCount >= 6) {
+          bitCount -= 6
+          append(PACKED_ALPHABET[(bits ushr bitCount) and 0x3f])
+        }
+      }
+      if (bitCount > 0) {
+        append(PACKED_ALPHABET[(bits shl (6 - bitCount)) and 0x3f])
+      }
+    }
+  }
+}
+
+/**
+ * A [Source] over the parts written by [packIndex]. Parts are unpacked one at a time as they're read, so the full
+ * payload is never held in memory at once.
+ */
+internal class PackedIndexSource(private val parts: Array<String>) : Source {
+
+  private val unpacked = Buffer()
+  private var nextPart = 0
+
+  override fun read(sink: Buffer, byteCount: Long): Long {
+    require(byteCount >= 0) { "byteCount < 0: $byteCount" }
+    while (unpacked.size == 0L) {
+      if (nextPart == parts.size) return -1
+      unpackPart(parts[nextPart++])
+    }
+    return unpacked.read(sink, byteCount)
+  }
+
+  private fun unpackPart(part: String) {
+    var bits = 0
+    var bitCount = 0
+    part.forEach { char ->
+      val value = if (char.toInt() < PACKED_VALUES.size) PACKED_VALUES[char.toInt()] else -1
+      if (value < 0) throw IOException("Invalid packed char: $char")
+      bits = (bits shl 6) or value
+      bitCount += 6
+      if (bitCount >= 8) {
+        bitCount -= 8
+        unpacked.writeByte(bits ushr bitCount)
+      }
+    }
+  }
+
+  override fun timeout(): Timeout = Timeout.NONE
+
+  override fun close() {
+    unpacked.clear()
+    nextPart = parts.size
+  }
+}
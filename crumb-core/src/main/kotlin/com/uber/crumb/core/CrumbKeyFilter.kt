@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import okio.BufferedSink
+import okio.BufferedSource
+import java.io.EOFException
+import java.util.zip.CRC32
+
+/**
+ * A Bloom filter of the keys in an index payload, such as its extension keys, which allows rejecting payloads without
+ * decompressing them. False positives are possible, but false negatives are not.
+ *
+ * For gzip payloads, this is stored uncompressed in an extra field of the gzip header via [writeGzip]. Gzip readers
+ * skip unknown extra fields, so these payloads are still readable by anything that reads plain gzip payloads.
+ */
+class CrumbKeyFilter private constructor(private val bits: ByteArray, private val hashCount: Int) {
+
+  /**
+   * @param key the key to check.
+   * @return false if the given [key] is definitely not in the filtered payload, or true if it might be.
+   */
+  fun mightContain(key: String): Boolean {
+    return bitIndices(key).all { bits[it ushr 3].toInt() and (1 shl (it and 7)) != 0 }
+  }
+
+  private fun bitIndices(key: String): Sequence<Int> {
+    // Double hashing with two independent hashes, see Kirsch and Mitzenmacher's "Less Hashing, Same Performance".
+    val hash1 = key.hashCode()
+    val hash2 = fnv1a(key)
+    val bitCount = bits.size * 8
+    return (0 until hashCount).asSequence().map { i -> ((hash1 + i * hash2) and Int.MAX_VALUE) % bitCount }
+  }
+
+  companion object {
+    private const val BITS_PER_KEY = 10
+    private const val HASH_COUNT = 7
+    private const val MIN_BYTES = 8
+
+    // The gzip extra field's length is an unsigned short, which also covers the subfield header and hash count.
+    private const val MAX_BYTES = 0xffff - 4 - 1
+
+    private const val GZIP_MAGIC = 0x1f8b
+    private const val GZIP_DEFLATE = 8
+    private const val GZIP_FEXTRA = 4
+    private const val GZIP_HEADER_SIZE = 10L
+    private const val SUBFIELD_ID_1 = 'C'.toInt()
+    private const val SUBFIELD_ID_2 = 'K'.toInt()
+
+    /**
+     * @param keys the keys to add to the filter. Filters are capped at the size that fits into a gzip header, so very
+     *             large key sets get more false positives.
+     * @return a new [CrumbKeyFilter] containing the given [keys].
+     */
+    @JvmStatic
+    fun of(keys: Collection<String>): CrumbKeyFilter {
+      val byteCount = ((keys.size.toLong() * BITS_PER_KEY + 7) / 8).coerceIn(MIN_BYTES.toLong(), MAX_BYTES.toLong())
+      return CrumbKeyFilter(ByteArray(byteCount.toInt()), HASH_COUNT).apply {
+        keys.forEach { key ->
+          bitIndices(key).forEach { bits[it ushr 3] = (bits[it ushr 3].toInt() or (1 shl (it and 7))).toByte() }
+        }
+      }
+    }
+
+    /**
+     * Writes the given [payload] to the given [sink] as a gzip stream with a [CrumbKeyFilter] of the given [keys] in
+     * its header.
+     *
+     * @param sink the sink to write to. This is not closed.
+     * @param payload the uncompressed payload.
+     * @param keys the keys to add to the header's filter.
+     * @param deflate the raw deflate [CrumbCodec] to compress the payload with, such as one of a specific level.
+     */
+    @JvmStatic
+    fun writeGzip(
+        sink: BufferedSink,
+        payload: ByteArray,
+        keys: Collection<String>,
+        deflate: CrumbCodec = CrumbCodec.DEFLATE) {
+      require(deflate.id == CrumbCodec.DEFLATE.id) { "Gzip payloads must be compressed with raw deflate: $deflate" }
+      val filter = of(keys)
+      val deflated = deflate.encode(payload)
+      val crc = CRC32().apply { update(payload) }
+      sink.writeShort(GZIP_MAGIC)
+          .writeByte(GZIP_DEFLATE)
+          .writeByte(GZIP_FEXTRA)
+          .writeInt(0) // Modification time
+          .writeByte(0) // Extra flags
+          .writeByte(0) // Operating system
+          .writeShortLe(4 + 1 + filter.bits.size) // Extra field length
+          .writeByte(SUBFIELD_ID_1)
+          .writeByte(SUBFIELD_ID_2)
+          .writeShortLe(1 + filter.bits.size)
+          .writeByte(filter.hashCount)
+          .write(filter.bits)
+          .write(deflated)
+      sink.writeIntLe(crc.value.toInt())
+          .writeIntLe(payload.size)
+    }
+
+    /**
+     * Reads the [CrumbKeyFilter] from the header of the gzip payload in the given [source], without consuming it.
+     *
+     * @param source the payload to read the filter of.
+     * @return the [CrumbKeyFilter] of the payload, or null if it has none, such as for payloads written before filters
+     *         were introduced, that aren't gzip payloads, or whose header is truncated. These may contain any key, and
+     *         malformed ones fail once decoded instead.
+     */
+    @JvmStatic
+    fun readGzip(source: BufferedSource): CrumbKeyFilter? {
+      return try {
+        readGzipHeader(source.peek())
+      } catch (e: EOFException) {
+        null
+      }
+    }
+
+    private fun readGzipHeader(header: BufferedSource): CrumbKeyFilter? {
+      if (!header.request(GZIP_HEADER_SIZE + 2) ||
+          header.readShort().toInt() != GZIP_MAGIC ||
+          header.readByte().toInt() != GZIP_DEFLATE ||
+          header.readByte().toInt() and GZIP_FEXTRA == 0) {
+        return null
+      }
+      header.skip(6)
+      var remaining = header.readShortLe().toInt() and 0xffff
+      while (remaining >= 4) {
+        val id1 = header.readByte().toInt()
+        val id2 = header.readByte().toInt()
+        val length = header.readShortLe().toInt() and 0xffff
+        remaining -= 4 + length
+        if (id1 == SUBFIELD_ID_1 && id2 == SUBFIELD_ID_2 && length > 1) {
+          val hashCount = header.readByte().toInt()
+          return CrumbKeyFilter(header.readByteArray(length - 1L), hashCount)
+        }
+        header.skip(length.toLong())
+      }
+      return null
+    }
+
+    /** The 32-bit FNV-1a hash of the UTF-16 chars of [key], which is stable across JVMs like [String.hashCode]. */
+    private fun fnv1a(key: String): Int {
+      var hash = 0x811c9dc5.toInt()
+      key.forEach { char ->
+        hash = (hash xor char.toInt()) * 0x01000193
+      }
+      // Make sure the stride of double hashing is never zero.
+      return hash or 1
+    }
+  }
+}
@@ -19,14 +19,39 @@ import com.uber.crumb.annotations.internal.CrumbIndex
 import okio.Buffer
 import okio.BufferedSink
 import okio.BufferedSource
+import okio.buffer
+import okio.sink
+import okio.source
+import java.io.File
+import java.io.IOException
+import java.net.JarURLConnection
+import java.net.URL
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.zip.ZipFile
 import javax.annotation.processing.ProcessingEnvironment
 import javax.lang.model.element.Element
 import javax.lang.model.element.PackageElement
+import javax.lang.model.element.TypeElement
+import javax.tools.JavaFileManager
+import javax.tools.StandardJavaFileManager
+import javax.tools.StandardLocation
 
 /**
  * A utility class that helps with generating types to hold [CrumbIndexes][CrumbIndex] of metadata and reading them
  * later.
  *
+ * Holder types can also be read straight from their class files via [loadFromClasspath], which avoids javac's symbol
+ * completion of every holder type in large classpaths.
+ *
+ * Alternatively, metadata can be stored as plain resources via [storeResource] and read back via [loadResources]. This
+ * skips generating and compiling holder types entirely.
+ *
+ * Indices can also be split into partitions, such as one per extension, by storing them in the package or directory
+ * returned by [partitionPackage] or [partitionDirectory]. All loading functions accept the partitions to read in
+ * addition to the unpartitioned indices, so consumers only read the partitions they need.
+ *
  * @property env A given [ProcessingEnvironment] instance.
  * @property crumbLog A [CrumbLog] instance for logging information.
  */
@@ -37,27 +62,220 @@ class CrumbManager(private val env: ProcessingEnvironment,
    * This loads a given [Set]<String> from the available [CrumbIndex] instances in the given [packageName].
    *
    * @param packageName The target package to load types containing [CrumbIndex] annotations from.
+   * @param partitions Any partitions of [packageName] to load types from as well. See [partitionPackage].
    * @return the loaded [Set]<String>, or an empty set if none were found.
    */
-  fun load(packageName: String): Set<BufferedSource> {
-    // If this package is null, it means there are no classes with this package name. One way this
+  fun load(packageName: String, partitions: Set<String> = emptySet()): Set<BufferedSource> {
+    return loadSequence(packageName, partitions).toSet()
+  }
+
+  /**
+   * Like [load], but returns a lazy [Sequence] that only reads each [CrumbIndex] as it's iterated, so callers that
+   * process indices one at a time don't need to hold all of them at once. The sequence can be iterated more than once,
+   * reading the indices again each time.
+   *
+   * @param packageName The target package to load types containing [CrumbIndex] annotations from.
+   * @param partitions Any partitions of [packageName] to load types from as well. See [partitionPackage].
+   * @return the loaded [Sequence]<BufferedSource>, which is empty if none were found.
+   */
+  fun loadSequence(packageName: String, partitions: Set<String> = emptySet()): Sequence<BufferedSource> {
+    val readers = loadNamed(packageName, partitions).values
+    return readers.asSequence().mapNotNull { it() }
+  }
+
+  /**
+   * Like [load], but returns a reader for the [CrumbIndex] of each type in the given [packageName], keyed by the
+   * type's qualified name. Indices are only read when their reader is invoked, which allows callers to cache them and
+   * skip reading types they've already seen, such as in later processing rounds.
+   *
+   * @param packageName The target package to load types containing [CrumbIndex] annotations from.
+   * @param partitions Any partitions of [packageName] to load types from as well. See [partitionPackage].
+   * @return the loaded [Map] of qualified type names to readers, which return null for types without a [CrumbIndex].
+   *         This is empty if none were found.
+   */
+  fun loadNamed(packageName: String, partitions: Set<String> = emptySet()): Map<String, () -> BufferedSource?> {
+    // If no package is found, it means there are no classes with these package names. One way this
     // could happen is if we process an annotation and reach this point without writing something
     // to the package. We do not error check here because that shouldn't happen with the
-    // current implementation.
-    val crumbGenPackage: PackageElement? = env.elementUtils.getPackageElement(packageName)
+    // current implementation. Partitions are expected to be missing though, and so is the package
+    // itself if every index is partitioned.
+    val crumbGenPackages: List<PackageElement> = (listOf(packageName) +
+        partitions.map { partitionPackage(packageName, it) })
+        .mapNotNull(env.elementUtils::getPackageElement)
+
+    if (crumbGenPackages.isEmpty()) {
+      if (partitions.isEmpty()) {
+        crumbLog.e("No @CrumbIndex-annotated elements found in $packageName")
+      } else {
+        crumbLog.d("No @CrumbIndex-annotated elements found in $packageName or its partitions")
+      }
+      return emptyMap()
+    }
 
-    if (crumbGenPackage == null) {
-      crumbLog.e("No @CrumbIndex-annotated elements found in $packageName")
+    return crumbGenPackages
+        .flatMap { it.enclosedElements }
+        .filterIsInstance<TypeElement>()
+        .associate { element ->
+          element.qualifiedName.toString() to {
+            element.getAnnotation(CrumbIndex::class.java)?.run {
+              if (packed.isNotEmpty()) {
+                PackedIndexSource(packed).buffer()
+              } else {
+                Buffer().apply { write(value) }
+              }
+            }
+          }
+        }
+  }
+
+  /**
+   * Like [load], but reads the [CrumbIndex] annotations of holder types in the given [packageName] directly from their
+   * class files in the given [classpath] rather than going through javac's element APIs. Each jar or directory is
+   * scanned on its own thread, and only class files directly in [packageName] or its [partitions] are read.
+   *
+   * @param packageName The target package to load types containing [CrumbIndex] annotations from.
+   * @param classpath The jars and directories of the compile classpath, such as from [findCompileClasspath].
+   * @param parallelism The maximum number of classpath entries to scan concurrently. Default is the number of
+   *                    available processors.
+   * @param partitions Any partitions of [packageName] to load types from as well. See [partitionPackage].
+   * @return the loaded [Set]<BufferedSource>, or an empty set if none were found.
+   */
+  fun loadFromClasspath(
+      packageName: String,
+      classpath: Collection<File>,
+      parallelism: Int = Runtime.getRuntime().availableProcessors(),
+      partitions: Set<String> = emptySet()): Set<BufferedSource> {
+    val directories = (listOf(packageName) + partitions.map { partitionPackage(packageName, it) })
+        .mapTo(mutableSetOf()) { it.replace('.', '/') }
+    val entries = classpath.filter(File::exists)
+    if (entries.isEmpty()) {
       return emptySet()
     }
+    val executor = Executors.newFixedThreadPool(parallelism.coerceIn(1, entries.size))
+    try {
+      return executor.invokeAll(entries.map { entry -> Callable { readIndexClasses(entry, directories) } })
+          .flatMapTo(mutableSetOf()) { future ->
+            try {
+              future.get()
+            } catch (e: ExecutionException) {
+              throw e.cause ?: e
+            }
+          }
+    } finally {
+      executor.shutdown()
+    }
+  }
+
+  /**
+   * Like [loadFromClasspath], but returns a lazy [Sequence] that scans one classpath entry at a time as it's iterated,
+   * so only the indices of a single jar or directory are held at once. The sequence can be iterated more than once,
+   * scanning the classpath again each time.
+   *
+   * @param packageName The target package to load types containing [CrumbIndex] annotations from.
+   * @param classpath The jars and directories of the compile classpath, such as from [findCompileClasspath].
+   * @param partitions Any partitions of [packageName] to load types from as well. See [partitionPackage].
+   * @return the loaded [Sequence]<BufferedSource>, which is empty if none were found.
+   */
+  fun loadFromClasspathSequence(
+      packageName: String,
+      classpath: Collection<File>,
+      partitions: Set<String> = emptySet()): Sequence<BufferedSource> {
+    val directories = (listOf(packageName) + partitions.map { partitionPackage(packageName, it) })
+        .mapTo(mutableSetOf()) { it.replace('.', '/') }
+    return classpath.asSequence()
+        .filter(File::exists)
+        .flatMap { entry -> readIndexClasses(entry, directories).asSequence() }
+  }
 
-    return crumbGenPackage.enclosedElements.mapNotNullTo(mutableSetOf()) { element ->
-      element.getAnnotation(CrumbIndex::class.java)?.run {
-        Buffer().apply { write(value) }
+  private fun readIndexClasses(entry: File, directories: Set<String>): List<BufferedSource> {
+    val classFiles = if (entry.isDirectory) {
+      directories.flatMap { directory ->
+        File(entry, directory)
+            .listFiles { file -> file.isFile && file.name.endsWith(CLASS_EXTENSION) }
+            .orEmpty()
+            .mapNotNull { file ->
+              try {
+                file.source().buffer().use { it.readByteArray() }
+              } catch (e: IOException) {
+                crumbLog.d(e, "Skipping unreadable class file: %s", file)
+                null
+              }
+            }
+      }
+    } else {
+      try {
+        ZipFile(entry).use { zip ->
+          zip.entries()
+              .asSequence()
+              .filter { zipEntry ->
+                !zipEntry.isDirectory &&
+                    zipEntry.name.endsWith(CLASS_EXTENSION) &&
+                    zipEntry.name.substringBeforeLast('/', "") in directories
+              }
+              .map { zipEntry -> zip.getInputStream(zipEntry).source().buffer().use { it.readByteArray() } }
+              .toList()
+        }
+      } catch (e: IOException) {
+        crumbLog.d(e, "Skipping unreadable classpath entry: %s", entry)
+        emptyList<ByteArray>()
+      }
+    }
+    return classFiles.mapNotNull { classFile ->
+      try {
+        CrumbIndexClassReader.read(classFile)
+      } catch (e: IOException) {
+        crumbLog.d(e, "Skipping unreadable class file in classpath entry: %s", entry)
+        null
       }
     }
   }
 
+  /**
+   * Attempts to find the compile classpath of the current compilation for use with [loadFromClasspath]. This is best
+   * effort, as there is no public API for it: it reads the [StandardLocation.CLASS_PATH] location of javac's
+   * [JavaFileManager], which is only reachable through javac's internals. This only works when running in javac
+   * (including through kapt) on JDK 8 through 15. JDK 16 and later deny annotation processors access to javac's
+   * internals unless javac is run with `--add-exports jdk.compiler/com.sun.tools.javac.processing=ALL-UNNAMED` and
+   * `--add-exports jdk.compiler/com.sun.tools.javac.util=ALL-UNNAMED`, so this returns null there. Pass the compile
+   * classpath to [loadFromClasspath] explicitly where it's known instead.
+   *
+   * @return the compile classpath, or null if it couldn't be determined.
+   */
+  fun findCompileClasspath(): List<File>? {
+    return try {
+      val javacEnv = findJavacEnvironment(env, mutableSetOf()) ?: return null
+      val context = javacEnv.javaClass.getMethod("getContext").invoke(javacEnv)
+      val fileManager = context.javaClass.getMethod("get", Class::class.java)
+          .invoke(context, JavaFileManager::class.java)
+      (fileManager as? StandardJavaFileManager)?.getLocation(StandardLocation.CLASS_PATH)?.toList()
+    } catch (e: Exception) {
+      crumbLog.d(e, "Could not determine the compile classpath")
+      null
+    }
+  }
+
+  /**
+   * Build tools may wrap javac's [ProcessingEnvironment] (such as for incremental processing), so this digs through any
+   * wrapping [ProcessingEnvironment] fields to find it.
+   */
+  private fun findJavacEnvironment(env: ProcessingEnvironment,
+      visited: MutableSet<ProcessingEnvironment>): ProcessingEnvironment? {
+    if (!visited.add(env)) {
+      return null
+    }
+    if (env.javaClass.name == JAVAC_PROCESSING_ENVIRONMENT) {
+      return env
+    }
+    return generateSequence<Class<*>>(env.javaClass) { it.superclass }
+        .flatMap { it.declaredFields.asSequence() }
+        .filter { ProcessingEnvironment::class.java.isAssignableFrom(it.type) }
+        .mapNotNull { field ->
+          field.isAccessible = true
+          (field.get(env) as ProcessingEnvironment?)?.let { findJavacEnvironment(it, visited) }
+        }
+        .firstOrNull()
+  }
+
   /**
    * This facilitates writing data to a [CrumbIndex] type in the given [packageName].[fileName] with the contents
    * written to the returned [BufferedSink].
@@ -68,6 +286,7 @@ class CrumbManager(private val env: ProcessingEnvironment,
    * @param fileName The file name to use in writing.
    * @param outputLanguage The target output language.
    * @param originatingElements Any originating elements for the metadata.
+   * @param encoding The [CrumbIndexEncoding] to store the metadata with.
    * @return A [BufferedSink] to write metadata to. This will (only) be written to the eventual [CrumbIndex] once
    *         [BufferedSink.close] is called.
    */
@@ -75,7 +294,153 @@ class CrumbManager(private val env: ProcessingEnvironment,
       packageName: String,
       fileName: String,
       outputLanguage: CrumbOutputLanguage,
+      originatingElements: Set<Element> = emptySet(),
+      encoding: CrumbIndexEncoding = CrumbIndexEncoding.BYTES): BufferedSink {
+    return outputLanguage.writeTo(env.filer, packageName, fileName, originatingElements, encoding)
+  }
+
+  /**
+   * This loads all resources written by [storeResource] in the given [directory] that are visible to [classLoader].
+   *
+   * Note that resources can only be listed for directories that have an entry in their jar, which is the default for
+   * jars built by Gradle.
+   *
+   * @param directory The target resource directory to load resources from, such as `META-INF/crumb`.
+   * @param classLoader The [ClassLoader] to find resources with. Default is the [ClassLoader] of this class, which is
+   *                    usually the annotation processor's.
+   * @param partitions Any partitions of [directory] to load resources from as well. See [partitionDirectory].
+   * @return the loaded [Set]<BufferedSource>, or an empty set if none were found.
+   */
+  fun loadResources(directory: String,
+      classLoader: ClassLoader = CrumbManager::class.java.classLoader,
+      partitions: Set<String> = emptySet()): Set<BufferedSource> {
+    return loadResourcesSequence(directory, classLoader, partitions).toSet()
+  }
+
+  /**
+   * Like [loadResources], but returns a lazy [Sequence] that reads one resource directory at a time as it's iterated,
+   * so only the resources of a single jar or directory are held at once. The sequence can be iterated more than once,
+   * reading the resources again each time.
+   *
+   * @param directory The target resource directory to load resources from, such as `META-INF/crumb`.
+   * @param classLoader The [ClassLoader] to find resources with. Default is the [ClassLoader] of this class, which is
+   *                    usually the annotation processor's.
+   * @param partitions Any partitions of [directory] to load resources from as well. See [partitionDirectory].
+   * @return the loaded [Sequence]<BufferedSource>, which is empty if none were found.
+   */
+  fun loadResourcesSequence(directory: String,
+      classLoader: ClassLoader = CrumbManager::class.java.classLoader,
+      partitions: Set<String> = emptySet()): Sequence<BufferedSource> {
+    return (listOf(directory) + partitions.map { partitionDirectory(directory, it) })
+        .asSequence()
+        .flatMap { resourceDirectory ->
+          classLoader.getResources(resourceDirectory)
+              .asSequence()
+              .flatMap { readResources(it, resourceDirectory) }
+        }
+        .map { Buffer().apply { write(it) } }
+  }
+
+  private fun readResources(directoryUrl: URL, directory: String): Sequence<ByteArray> {
+    return when (directoryUrl.protocol) {
+      "file" -> {
+        File(directoryUrl.toURI())
+            .listFiles { file -> file.isFile && file.name.endsWith(RESOURCE_EXTENSION) }
+            .orEmpty()
+            .asSequence()
+            .map { file -> file.source().buffer().use { it.readByteArray() } }
+      }
+      "jar" -> {
+        val connection = directoryUrl.openConnection() as JarURLConnection
+        // Don't cache the jar, as it would otherwise stay open for the lifetime of a build daemon.
+        connection.useCaches = false
+        val prefix = "$directory/"
+        connection.jarFile.use { jar ->
+          jar.entries()
+              .asSequence()
+              .filter { entry ->
+                !entry.isDirectory &&
+                    entry.name.startsWith(prefix) &&
+                    entry.name.endsWith(RESOURCE_EXTENSION) &&
+                    entry.name.indexOf('/', prefix.length) == -1
+              }
+              .map { entry -> jar.getInputStream(entry).source().buffer().use { it.readByteArray() } }
+              .toList()
+              .asSequence()
+        }
+      }
+      else -> {
+        crumbLog.w("Unsupported resource location, skipping: $directoryUrl")
+        emptySequence()
+      }
+    }
+  }
+
+  /**
+   * This facilitates writing data to a resource at `[directory]/[fileName].crumb` with the contents written to the
+   * returned [BufferedSink]. These can later be read via [loadResources].
+   *
+   * @param directory The resource directory to write to. Note that this should be the directory that all metadata
+   *                  resources are written to, such as `META-INF/crumb`.
+   * @param fileName The file name to use in writing, without an extension. This should be unique across the classpath,
+   *                 such as the fully qualified name of the source element.
+   * @param originatingElements Any originating elements for the metadata.
+   * @return A [BufferedSink] to write metadata to.
+   */
+  fun storeResource(
+      directory: String,
+      fileName: String,
       originatingElements: Set<Element> = emptySet()): BufferedSink {
-    return outputLanguage.writeTo(env.filer, packageName, fileName, originatingElements)
+    return env.filer.createResource(StandardLocation.CLASS_OUTPUT,
+        "",
+        "$directory/$fileName$RESOURCE_EXTENSION",
+        *originatingElements.toTypedArray())
+        .openOutputStream()
+        .sink()
+        .buffer()
+  }
+
+  companion object {
+    private const val RESOURCE_EXTENSION = ".crumb"
+    private const val CLASS_EXTENSION = ".class"
+    private const val JAVAC_PROCESSING_ENVIRONMENT = "com.sun.tools.javac.processing.JavacProcessingEnvironment"
+    private const val PARTITION_PREFIX = "p_"
+
+    /**
+     * @param packageName The package that all metadata index-holder types are written to.
+     * @param partition The name of the partition, such as an extension key. This may be any string.
+     * @return the package to store and load index-holder types of the given [partition] in.
+     */
+    @JvmStatic
+    fun partitionPackage(packageName: String, partition: String): String {
+      return "$packageName.${partitionSegment(partition)}"
+    }
+
+    /**
+     * @param directory The directory that all metadata resources are written to.
+     * @param partition The name of the partition, such as an extension key. This may be any string.
+     * @return the directory to store and load resources of the given [partition] in.
+     */
+    @JvmStatic
+    fun partitionDirectory(directory: String, partition: String): String {
+      return "$directory/${partitionSegment(partition)}"
+    }
+
+    /**
+     * Converts a partition name to a valid package name segment, which is also a valid directory name. ASCII letters
+     * and digits are kept as they are, `_` is escaped as `__`, and any other character as `_` followed by its four hex
+     * digits. This keeps distinct partition names from sharing a segment.
+     */
+    private fun partitionSegment(partition: String): String {
+      val segment = StringBuilder(PARTITION_PREFIX)
+      partition.forEach { char ->
+        when (char) {
+          in 'a'..'z', in 'A'..'Z', in '0'..'9' -> segment.append(char)
+          '_' -> segment.append("__")
+          else -> segment.append('_').append(String.format("%04x", char.toInt()))
+        }
+      }
+      return segment.toString()
+    }
   }
 }
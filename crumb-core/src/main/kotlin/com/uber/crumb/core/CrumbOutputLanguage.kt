@@ -25,8 +25,13 @@ import com.squareup.kotlinpoet.FileSpec
 import com.squareup.kotlinpoet.FunSpec
 import com.squareup.kotlinpoet.KModifier
 import com.uber.crumb.annotations.internal.CrumbIndex
+import com.uber.crumb.core.CrumbIndexEncoding.BYTES
+import com.uber.crumb.core.CrumbIndexEncoding.PACKED
 import okio.Buffer
 import okio.BufferedSink
+import okio.ForwardingSink
+import okio.buffer
+import okio.sink
 import javax.annotation.processing.Filer
 import javax.lang.model.element.Element
 import javax.lang.model.element.Modifier.FINAL
@@ -38,7 +43,8 @@ private typealias KotlinAnnotationSpec = com.squareup.kotlinpoet.AnnotationSpec
 
 /**
  * Supported output languages for Crumb metadata. When [writeTo] is called, a simple empty class is generated to hold a
- * [CrumbIndex] annotation containing all the crumb metadata specified.
+ * [CrumbIndex] annotation containing all the crumb metadata specified. [JAVA] and [KOTLIN] generate source files, while
+ * [BYTECODE] writes the class file directly.
  */
 enum class CrumbOutputLanguage {
   JAVA {
@@ -46,15 +52,22 @@ enum class CrumbOutputLanguage {
         filer: Filer,
         packageName: String,
         fileName: String,
-        originatingElements: Set<Element>
+        originatingElements: Set<Element>,
+        encoding: CrumbIndexEncoding
     ): BufferedSink {
       val buffer = Buffer()
-      return object : BufferedSink by buffer {
+      return object : ForwardingSink(buffer) {
         override fun close() {
+          val payload = buffer.readByteArray()
           val typeSpec = TypeSpec.classBuilder(fileName)
               .addJavadoc(EXPLANATORY_COMMENT)
               .addAnnotation(AnnotationSpec.builder(CrumbIndex::class.java)
-                  .addMember("value", "\$L", buffer.readByteArray().joinToString(",", prefix = "{", postfix = "}"))
+                  .apply {
+                    when (encoding.forPayloadSize(payload.size)) {
+                      BYTES -> addMember("value", "\$L", payload.joinToString(",", prefix = "{", postfix = "}"))
+                      PACKED -> packIndex(payload).forEach { addMember("packed", "\$S", it) }
+                    }
+                  }
                   .build())
               .addModifiers(FINAL)
               .addMethod(MethodSpec.constructorBuilder().addModifiers(PRIVATE).build())
@@ -68,7 +81,7 @@ enum class CrumbOutputLanguage {
               .build()
               .writeTo(filer)
         }
-      }
+      }.buffer()
     }
   },
   KOTLIN {
@@ -76,15 +89,26 @@ enum class CrumbOutputLanguage {
         filer: Filer,
         packageName: String,
         fileName: String,
-        originatingElements: Set<Element>
+        originatingElements: Set<Element>,
+        encoding: CrumbIndexEncoding
     ): BufferedSink {
       val buffer = Buffer()
-      return object : BufferedSink by buffer {
+      return object : ForwardingSink(buffer) {
         override fun close() {
+          val payload = buffer.readByteArray()
           val typeSpec = KotlinTypeSpec.classBuilder(fileName)
               .addKdoc(EXPLANATORY_COMMENT)
               .addAnnotation(KotlinAnnotationSpec.builder(CrumbIndex::class)
-                  .addMember("value = %L", buffer.readByteArray().joinToString(",", prefix = "[", postfix = "]"))
+                  .apply {
+                    when (encoding.forPayloadSize(payload.size)) {
+                      BYTES -> addMember("value = %L", payload.joinToString(",", prefix = "[", postfix = "]"))
+                      PACKED -> {
+                        val strings = packIndex(payload)
+                        addMember(strings.joinToString(",", prefix = "packed = [", postfix = "]") { "%S" },
+                            *strings.toTypedArray())
+                      }
+                    }
+                  }
                   .build())
               .addModifiers(KModifier.PRIVATE)
               .primaryConstructor(FunSpec.constructorBuilder()
@@ -105,7 +129,34 @@ enum class CrumbOutputLanguage {
               .build()
               .writeTo(filer)
         }
-      }
+      }.buffer()
+    }
+  },
+  /**
+   * Writes the index holder directly as a class file via [Filer.createClassFile], skipping source generation (and
+   * the subsequent compilation of that source) entirely. Useful for modules with large numbers of producers.
+   */
+  BYTECODE {
+    override fun writeTo(
+        filer: Filer,
+        packageName: String,
+        fileName: String,
+        originatingElements: Set<Element>,
+        encoding: CrumbIndexEncoding
+    ): BufferedSink {
+      val buffer = Buffer()
+      return object : ForwardingSink(buffer) {
+        override fun close() {
+          val className = "$packageName.$fileName"
+          val payload = buffer.readByteArray()
+          val classFile = CrumbIndexClassWriter(className).write(payload, encoding.forPayloadSize(payload.size))
+          filer.createClassFile(className, *originatingElements.toTypedArray())
+              .openOutputStream()
+              .sink()
+              .buffer()
+              .use { it.write(classFile) }
+        }
+      }.buffer()
     }
   };
 
@@ -117,13 +168,15 @@ enum class CrumbOutputLanguage {
    *                    types are written to, and not necessarily the package name of the source element.
    * @param fileName The file name.
    * @param originatingElements Any originating elements for the metadata.
+   * @param encoding The [CrumbIndexEncoding] to store the payload with.
    * @return A [BufferedSink] to write metadata to. This will (only) be written to the eventual [CrumbIndex] once
    *         [BufferedSink.close] is called.
    */
   abstract fun writeTo(filer: Filer,
       packageName: String,
       fileName: String,
-      originatingElements: Set<Element> = emptySet()
+      originatingElements: Set<Element> = emptySet(),
+      encoding: CrumbIndexEncoding = BYTES
   ): BufferedSink
 
   companion object {
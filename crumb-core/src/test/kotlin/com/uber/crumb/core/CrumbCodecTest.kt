@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.random.Random
+
+class CrumbCodecTest {
+
+  private val data = ("{\"com.uber.crumb.Foo\":\"com.uber.crumb.FooAdapter\"}".repeat(100) +
+      Random(0).nextBytes(100).joinToString()).toByteArray()
+
+  private val codecs = listOf(CrumbCodec.STORED, CrumbCodec.DEFLATE, CrumbCodec.GZIP, CrumbCodec.DICTIONARY) +
+      (0..9).flatMap { listOf(CrumbCodec.deflate(it), CrumbCodec.gzip(it)) }
+
+  @Test
+  fun roundTrip() {
+    for (codec in codecs) {
+      assertWithMessage("$codec").that(codec.decode(codec.encode(data))).isEqualTo(data)
+      assertWithMessage("$codec").that(codec.decode(codec.encode(ByteArray(0)))).isEmpty()
+    }
+  }
+
+  @Test
+  fun decodeFromTheMiddleOfAnArray() {
+    for (codec in codecs) {
+      val encoded = codec.encode(data)
+      val padded = ByteArray(3) + encoded + ByteArray(5)
+
+      assertWithMessage("$codec").that(codec.decode(padded, 3, encoded.size)).isEqualTo(data)
+    }
+  }
+
+  @Test
+  fun levelsAreHonored() {
+    assertThat(CrumbCodec.deflate(9).encode(data).size).isLessThan(CrumbCodec.deflate(0).encode(data).size)
+    assertThat(CrumbCodec.gzip(9).encode(data).size).isLessThan(CrumbCodec.gzip(0).encode(data).size)
+    assertThat(CrumbCodec.gzip(0).encode(data).size).isGreaterThan(data.size)
+  }
+
+  @Test
+  fun invalidLevelsFail() {
+    val factories = listOf<(Int) -> CrumbCodec>(
+        CrumbCodec.Companion::deflate,
+        CrumbCodec.Companion::gzip,
+        { level -> CrumbCodec.dictionary(CrumbDictionary.DEFAULT, level) })
+    for (factory in factories) {
+      for (level in listOf(-1, 10)) {
+        try {
+          factory(level)
+          fail()
+        } catch (expected: IllegalArgumentException) {
+        }
+      }
+    }
+  }
+
+  @Test
+  fun gzipInteroperatesWithStandardGzip() {
+    for (level in 0..9) {
+      val encoded = CrumbCodec.gzip(level).encode(data)
+      assertThat(GZIPInputStream(encoded.inputStream()).readBytes()).isEqualTo(data)
+    }
+    val standard = ByteArrayOutputStream().also { bytes -> GZIPOutputStream(bytes).use { it.write(data) } }
+    assertThat(CrumbCodec.GZIP.decode(standard.toByteArray())).isEqualTo(data)
+  }
+
+  @Test
+  fun gzipDecodesOptionalHeaderFields() {
+    // FHCRC, FEXTRA, FNAME, and FCOMMENT are all set, in front of the body of a plain gzip payload.
+    val body = CrumbCodec.GZIP.encode(data).let { it.copyOfRange(10, it.size) }
+    val header = byteArrayOf(0x1f, 0x8b.toByte(), 8, 30, 0, 0, 0, 0, 0, 0)
+    val extra = byteArrayOf(3, 0, 1, 2, 3)
+    val name = "name".toByteArray() + 0.toByte()
+    val comment = "comment".toByteArray() + 0.toByte()
+    val headerCrc = byteArrayOf(0, 0)
+
+    assertThat(CrumbCodec.GZIP.decode(header + extra + name + comment + headerCrc + body)).isEqualTo(data)
+  }
+
+  @Test
+  fun lookups() {
+    for (codec in listOf(CrumbCodec.STORED, CrumbCodec.DEFLATE, CrumbCodec.GZIP, CrumbCodec.DICTIONARY)) {
+      assertThat(CrumbCodec.forId(codec.id)).isSameInstanceAs(codec)
+      assertThat(CrumbCodec.forName(codec.name.toUpperCase())).isSameInstanceAs(codec)
+      assertThat(codec.id).isAtMost(CrumbCodec.MAX_BUILT_IN_ID)
+    }
+    assertThat(CrumbCodec.deflate(6)).isSameInstanceAs(CrumbCodec.DEFLATE)
+    assertThat(CrumbCodec.gzip(6)).isSameInstanceAs(CrumbCodec.GZIP)
+    assertThat(CrumbCodec.forId(CrumbCodec.MAX_ID)).isNull()
+    assertThat(CrumbCodec.forName("brotli")).isNull()
+    assertThat(CrumbCodec.names()).containsExactly("stored", "deflate", "gzip", "dictionary").inOrder()
+  }
+
+  @Test
+  fun corruptDataFails() {
+    val notGzip = CrumbCodec.GZIP.encode(data).apply { this[0] = 0 }
+    val badGzipChecksum = CrumbCodec.GZIP.encode(data).apply { this[size - 8]++ }
+    val badGzipSize = CrumbCodec.GZIP.encode(data).apply { this[size - 1]++ }
+    val badDeflateBlock = CrumbCodec.DEFLATE.encode(data).apply { this[0] = 0xff.toByte() }
+    val failures = listOf(
+        CrumbCodec.GZIP to notGzip,
+        CrumbCodec.GZIP to badGzipChecksum,
+        CrumbCodec.GZIP to badGzipSize,
+        CrumbCodec.DEFLATE to badDeflateBlock)
+
+    for ((codec, corrupt) in failures) {
+      try {
+        codec.decode(corrupt)
+        fail("Decoded corrupt $codec data")
+      } catch (expected: IOException) {
+      }
+    }
+  }
+
+  @Test
+  fun truncatedDataFails() {
+    for (codec in listOf(CrumbCodec.DEFLATE, CrumbCodec.GZIP, CrumbCodec.DICTIONARY)) {
+      val encoded = codec.encode(data)
+      for (size in 0 until encoded.size) {
+        try {
+          codec.decode(encoded, 0, size)
+          fail("Decoded $codec data truncated to $size bytes")
+        } catch (expected: IOException) {
+        }
+      }
+    }
+  }
+
+  @Test
+  fun concurrentUseOfPooledCodecs() {
+    val encoded = CrumbCodec.DEFLATE.encode(data)
+    val threads = (0 until 8).map {
+      Thread {
+        repeat(100) {
+          assertThat(CrumbCodec.DEFLATE.encode(data)).isEqualTo(encoded)
+          assertThat(CrumbCodec.DEFLATE.decode(encoded)).isEqualTo(data)
+        }
+      }
+    }
+    val failures = mutableListOf<Throwable>()
+    threads.forEach { thread ->
+      thread.setUncaughtExceptionHandler { _, e -> synchronized(failures) { failures += e } }
+      thread.start()
+    }
+    threads.forEach(Thread::join)
+
+    assertThat(failures).isEmpty()
+  }
+}
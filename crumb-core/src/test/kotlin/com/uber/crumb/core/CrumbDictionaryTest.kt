@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import okio.Buffer
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.zip.Deflater
+import kotlin.random.Random
+
+class CrumbDictionaryTest {
+
+  private val payload = "{\"com.uber.crumb.Foo\":[\"com.squareup.moshi.JsonAdapter.Factory\"]}".toByteArray()
+
+  @Test
+  fun idIsTheZlibDictionaryId() {
+    // Zlib streams record the Adler-32 checksum of their preset dictionary right after their two byte header.
+    val zlib = ByteArray(1024)
+    val deflater = Deflater()
+    try {
+      deflater.setDictionary(CrumbDictionary.DEFAULT.bytes)
+      deflater.setInput(payload)
+      deflater.finish()
+      deflater.deflate(zlib)
+    } finally {
+      deflater.end()
+    }
+
+    assertThat(ByteBuffer.wrap(zlib, 2, 4).int).isEqualTo(CrumbDictionary.DEFAULT.id)
+  }
+
+  @Test
+  fun dictionaryCompressesBetterThanPlainDeflate() {
+    val codec = CrumbCodec.dictionary(CrumbDictionary.DEFAULT, 9)
+    val encoded = codec.encode(payload)
+
+    assertThat(encoded.size).isLessThan(CrumbCodec.deflate(9).encode(payload).size)
+    assertThat(ByteBuffer.wrap(encoded).int).isEqualTo(CrumbDictionary.DEFAULT.id)
+    assertThat(codec.decode(encoded)).isEqualTo(payload)
+    assertThat(CrumbCodec.DICTIONARY.decode(encoded)).isEqualTo(payload)
+  }
+
+  @Test
+  fun unregisteredDictionariesFail() {
+    val dictionary = CrumbDictionary(Random(1).nextBytes(100))
+    val encoded = CrumbCodec.DICTIONARY.encode(payload)
+    ByteBuffer.wrap(encoded).putInt(0, dictionary.id)
+
+    try {
+      CrumbCodec.DICTIONARY.decode(encoded)
+      fail()
+    } catch (expected: IOException) {
+      assertThat(expected).hasMessageThat().contains("Unknown Crumb dictionary id")
+    }
+  }
+
+  @Test
+  fun dictionariesAreRegisteredByTheirCodec() {
+    val dictionary = CrumbDictionary(Random(2).nextBytes(100))
+    assertThat(CrumbDictionary.forId(dictionary.id)).isNull()
+
+    val encoded = CrumbCodec.dictionary(dictionary, 6).encode(payload)
+    assertThat(CrumbDictionary.forId(dictionary.id)).isEqualTo(dictionary)
+    assertThat(CrumbCodec.DICTIONARY.decode(encoded)).isEqualTo(payload)
+  }
+
+  @Test
+  fun clashingIdsFailToRegister() {
+    // Adler-32 sums bytes and weighted bytes, which these have the same of.
+    val first = CrumbDictionary(byteArrayOf(1, 0, 1))
+    val second = CrumbDictionary(byteArrayOf(0, 2, 0))
+    assertThat(first.id).isEqualTo(second.id)
+
+    CrumbDictionary.register(first)
+    CrumbDictionary.register(CrumbDictionary(byteArrayOf(1, 0, 1)))
+    try {
+      CrumbDictionary.register(second)
+      fail()
+    } catch (expected: IllegalArgumentException) {
+      assertThat(expected).hasMessageThat().contains("already registered")
+    }
+  }
+
+  @Test
+  fun truncatedDictionaryIdsFail() {
+    val encoded = CrumbCodec.DICTIONARY.encode(payload)
+
+    for (size in 0 until 4) {
+      try {
+        CrumbCodec.DICTIONARY.decode(encoded, 0, size)
+        fail()
+      } catch (expected: IOException) {
+        assertThat(expected).hasMessageThat().contains("Truncated dictionary id")
+      }
+    }
+  }
+
+  @Test
+  fun fileRoundTrip() {
+    val file = Files.createTempFile("crumb", ".dictionary").toFile()
+    CrumbDictionary.DEFAULT.write(file)
+
+    assertThat(CrumbDictionary.read(file)).isEqualTo(CrumbDictionary.DEFAULT)
+  }
+
+  @Test
+  fun oversizedFilesFail() {
+    val file = Files.createTempFile("crumb", ".dictionary").toFile()
+    file.writeBytes(ByteArray(CrumbDictionary.MAX_SIZE + 1))
+
+    try {
+      CrumbDictionary.read(file)
+      fail()
+    } catch (expected: IOException) {
+      assertThat(expected).hasMessageThat().contains("larger than")
+    }
+  }
+
+  @Test
+  fun trainerPicksSharedTokens() {
+    val samples = (0 until 20).map { i ->
+      "{\"com.example.feature$i.Model\":[\"com.example.shared.JsonAdapterFactory\"]}".toByteArray()
+    }
+    val dictionary = CrumbDictionaryTrainer.train(samples)
+    val text = String(dictionary.bytes, Charsets.ISO_8859_1)
+
+    assertThat(text).contains("com.example.shared.JsonAdapterFactory")
+    assertThat(text).doesNotContain("feature1.")
+    // Substrings of selected tokens aren't selected again.
+    assertThat(text.split("com.example.shared.JsonAdapterFactory")).hasSize(2)
+    val codec = CrumbCodec.dictionary(dictionary, 9)
+    assertThat(codec.encode(samples[0]).size).isLessThan(CrumbCodec.deflate(9).encode(samples[0]).size)
+  }
+
+  @Test
+  fun trainerRespectsTheMaxSize() {
+    val random = Random(0)
+    val samples = (0 until 50).map {
+      (0 until 200).joinToString(",") { "com.example.Token${random.nextInt(500)}" }.toByteArray()
+    }
+
+    assertThat(CrumbDictionaryTrainer.train(samples, maxSize = 1000).bytes.size).isAtMost(1000)
+    assertThat(CrumbDictionaryTrainer.train(samples).bytes.size).isAtMost(CrumbDictionary.MAX_SIZE)
+  }
+
+  @Test
+  fun trainerReadsIndexResources() {
+    val directory = Files.createTempDirectory("crumb").toFile()
+    val indices = directory.resolve("META-INF/crumb").apply { mkdirs() }
+    indices.resolve("gzip").writeBytes(CrumbCodec.GZIP.encode(payload))
+    indices.resolve("container").writeBytes(Buffer().also {
+      CrumbIndexContainer.write(it, "Foo", mapOf("moshi" to payload, "gson" to payload))
+    }.readByteArray())
+    directory.resolve("unrelated.txt").writeText("Not an index")
+
+    val samples = CrumbDictionaryTrainer.readSamples(listOf(directory))
+    assertThat(samples).hasSize(3)
+    samples.forEach { assertThat(it).isEqualTo(payload) }
+  }
+}
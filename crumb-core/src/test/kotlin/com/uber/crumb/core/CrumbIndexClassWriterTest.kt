@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import kotlin.random.Random
+
+class CrumbIndexClassWriterTest {
+
+  @Test
+  fun bytesRoundTrip() {
+    val payload = ByteArray(256) { it.toByte() }
+    val classFile = CrumbIndexClassWriter(CLASS_NAME).write(payload, CrumbIndexEncoding.BYTES)
+
+    assertThat(CrumbIndexClassReader.read(classFile)!!.readByteArray()).isEqualTo(payload)
+    assertThat(defineClass(CLASS_NAME, classFile).name).isEqualTo(CLASS_NAME)
+  }
+
+  @Test
+  fun bytesUpToTheAnnotationArrayLimit() {
+    val payload = Random(0).nextBytes(MAX_ANNOTATION_ARRAY_LENGTH)
+    val classFile = CrumbIndexClassWriter(CLASS_NAME).write(payload, CrumbIndexEncoding.BYTES)
+
+    assertThat(CrumbIndexClassReader.read(classFile)!!.readByteArray()).isEqualTo(payload)
+    assertThat(CrumbIndexEncoding.BYTES.forPayloadSize(MAX_ANNOTATION_ARRAY_LENGTH))
+        .isEqualTo(CrumbIndexEncoding.BYTES)
+  }
+
+  @Test
+  fun bytesOverTheAnnotationArrayLimitFail() {
+    val payload = ByteArray(MAX_ANNOTATION_ARRAY_LENGTH + 1)
+    try {
+      CrumbIndexClassWriter(CLASS_NAME).write(payload, CrumbIndexEncoding.BYTES)
+      fail()
+    } catch (expected: IllegalArgumentException) {
+      assertThat(expected).hasMessageThat().contains("too large")
+    }
+    assertThat(CrumbIndexEncoding.BYTES.forPayloadSize(payload.size)).isEqualTo(CrumbIndexEncoding.PACKED)
+  }
+
+  @Test
+  fun packedRoundTrip() {
+    val payload = Random(0).nextBytes(3 * 3 * 4096 + 5)
+    val classFile = CrumbIndexClassWriter(CLASS_NAME).write(payload, CrumbIndexEncoding.PACKED)
+
+    assertThat(CrumbIndexClassReader.read(classFile)!!.readByteArray()).isEqualTo(payload)
+    assertThat(defineClass(CLASS_NAME, classFile).name).isEqualTo(CLASS_NAME)
+  }
+
+  @Test
+  fun packedCharsAreSingleBytesOfModifiedUtf8() {
+    // Even zero bytes pack to printable chars, rather than NULs that modified UTF-8 writes as two bytes.
+    val payload = ByteArray(3 * 4096 + 1)
+    val classFile = CrumbIndexClassWriter(CLASS_NAME).write(payload, CrumbIndexEncoding.PACKED)
+
+    assertThat(classFile.indexOf(byteArrayOf(0xc0.toByte(), 0x80.toByte()))).isEqualTo(-1)
+    assertThat(classFile.size).isLessThan(payload.size * 4 / 3 + 500)
+    assertThat(CrumbIndexClassReader.read(classFile)!!.readByteArray()).isEqualTo(payload)
+    assertThat(defineClass(CLASS_NAME, classFile).name).isEqualTo(CLASS_NAME)
+  }
+
+  @Test
+  fun supplementaryCharactersAreWrittenAsModifiedUtf8() {
+    // Supplementary characters are written as a surrogate pair of three bytes each, rather than as four bytes.
+    val className = "com.uber.crumb.indices.Café中😀CrumbIndex"
+    val payload = byteArrayOf(1, 2, 3)
+    val classFile = CrumbIndexClassWriter(className).write(payload, CrumbIndexEncoding.BYTES)
+
+    assertThat(CrumbIndexClassReader.read(classFile)!!.readByteArray()).isEqualTo(payload)
+    assertThat(defineClass(className, classFile).name).isEqualTo(className)
+  }
+
+  @Test
+  fun readerIgnoresClassesWithoutCrumbIndex() {
+    val classFile = javaClass.getResourceAsStream("${javaClass.simpleName}.class").use { it.readBytes() }
+
+    assertThat(CrumbIndexClassReader.read(classFile)).isNull()
+  }
+
+  @Test
+  fun readerRejectsCorruptClasses() {
+    val classFile = CrumbIndexClassWriter(CLASS_NAME).write(byteArrayOf(1, 2, 3), CrumbIndexEncoding.BYTES)
+
+    val notAClass = classFile.copyOf().apply { this[0] = 0 }
+    val unknownConstant = classFile.copyOf().apply { this[10] = 99 }
+    for (corrupt in listOf(notAClass, unknownConstant)) {
+      try {
+        CrumbIndexClassReader.read(corrupt)
+        fail()
+      } catch (expected: IOException) {
+      }
+    }
+  }
+
+  @Test
+  fun readerRejectsTruncatedClasses() {
+    for (encoding in CrumbIndexEncoding.values()) {
+      val classFile = CrumbIndexClassWriter(CLASS_NAME).write(Random(0).nextBytes(100), encoding)
+      for (size in 0 until classFile.size) {
+        try {
+          CrumbIndexClassReader.read(classFile.copyOf(size))
+          fail("Read a $encoding class truncated to $size bytes")
+        } catch (expected: IOException) {
+        }
+      }
+    }
+  }
+
+  private fun ByteArray.indexOf(bytes: ByteArray): Int {
+    return (0..size - bytes.size).firstOrNull { start -> bytes.indices.all { this[start + it] == bytes[it] } } ?: -1
+  }
+
+  /** Defines the given class, which fails if the JVM finds it malformed. */
+  private fun defineClass(className: String, classFile: ByteArray): Class<*> {
+    return object : ClassLoader(javaClass.classLoader) {
+      fun define(): Class<*> = defineClass(className, classFile, 0, classFile.size)
+    }.define()
+  }
+
+  private companion object {
+    const val CLASS_NAME = "com.uber.crumb.indices.FooCrumbIndex"
+  }
+}
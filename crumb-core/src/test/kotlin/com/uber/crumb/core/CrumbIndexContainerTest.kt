@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import okio.Buffer
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class CrumbIndexContainerTest {
+
+  private val compressible = "com.uber.crumb.Foo".repeat(50).toByteArray()
+  private val incompressible = Random(0).nextBytes(200)
+
+  @Test
+  fun roundTrip() {
+    val payload = write(mapOf("moshi" to compressible, "gson" to incompressible, "empty" to ByteArray(0)))
+    val container = CrumbIndexContainer.read(payload)
+
+    assertThat(container.name).isEqualTo(NAME)
+    assertThat(container.keys).containsExactly("moshi", "gson", "empty").inOrder()
+    assertThat(container.sectionBytes("moshi")).isEqualTo(compressible)
+    assertThat(container.sectionBytes("gson")).isEqualTo(incompressible)
+    assertThat(container.sectionBytes("empty")).isEmpty()
+    assertThat(container.section("moshi")!!.readByteArray()).isEqualTo(compressible)
+    assertThat(container.sectionBytes("missing")).isNull()
+    assertThat(container.section("missing")).isNull()
+  }
+
+  @Test
+  fun roundTripFromSource() {
+    val payload = write(mapOf("moshi" to compressible))
+    val source = Buffer().write(payload)
+
+    assertThat(CrumbIndexContainer.isContainer(source)).isTrue()
+    assertThat(CrumbIndexContainer.read(source).sectionBytes("moshi")).isEqualTo(compressible)
+    assertThat(source.exhausted()).isTrue()
+  }
+
+  @Test
+  fun sectionsThatDontShrinkAreStored() {
+    val payload = write(mapOf("moshi" to compressible, "gson" to incompressible))
+    val toc = Toc(payload)
+
+    assertThat(toc.codecId(0)).isEqualTo(CrumbCodec.DEFLATE.id)
+    assertThat(toc.codecId(1)).isEqualTo(CrumbCodec.STORED.id)
+    assertThat(payload.size).isLessThan(compressible.size + incompressible.size)
+  }
+
+  @Test
+  fun sectionsAreDecodedIndividually() {
+    val payload = write(mapOf("moshi" to compressible, "gson" to compressible))
+    val toc = Toc(payload)
+    // Corrupting the data of one section only fails reading that section.
+    payload[toc.dataOffset + toc.offset(1)] = 0xff.toByte()
+    val container = CrumbIndexContainer.read(payload)
+
+    assertThat(container.sectionBytes("moshi")).isEqualTo(compressible)
+    try {
+      container.sectionBytes("gson")
+      fail()
+    } catch (expected: IOException) {
+    }
+  }
+
+  @Test
+  fun customCodecsAreRecorded() {
+    val payload = write(mapOf("moshi" to compressible), CrumbCodec.GZIP)
+
+    assertThat(Toc(payload).codecId(0)).isEqualTo(CrumbCodec.GZIP.id)
+    assertThat(CrumbIndexContainer.read(payload).sectionBytes("moshi")).isEqualTo(compressible)
+  }
+
+  @Test
+  fun gzipPayloadsArentContainers() {
+    val gzip = CrumbCodec.GZIP.encode(compressible)
+
+    assertThat(CrumbIndexContainer.isContainer(gzip)).isFalse()
+    assertThat(CrumbIndexContainer.isContainer(Buffer().write(gzip))).isFalse()
+    assertThat(CrumbIndexContainer.isContainer(ByteArray(0))).isFalse()
+    assertThat(CrumbIndexContainer.isContainer("CRM".toByteArray())).isFalse()
+    try {
+      CrumbIndexContainer.read(gzip)
+      fail()
+    } catch (expected: IOException) {
+      assertThat(expected).hasMessageThat().contains("Not a Crumb index container")
+    }
+  }
+
+  @Test
+  fun unsupportedVersionFails() {
+    val payload = write(mapOf("moshi" to compressible)).apply { this[4] = 3 }
+
+    assertReadFails(payload, "Unsupported Crumb index container version: 3")
+  }
+
+  @Test
+  fun unknownCodecFails() {
+    val payload = write(mapOf("moshi" to compressible))
+    payload[Toc(payload).codecIdOffset(0)] = 0xfe.toByte()
+
+    assertReadFails(payload, "Unsupported Crumb index codec: 254")
+  }
+
+  @Test
+  fun outOfBoundsSectionsFail() {
+    val base = write(mapOf("moshi" to compressible, "gson" to incompressible))
+    val toc = Toc(base)
+    val pastTheEnd = base.copyOf().also { ByteBuffer.wrap(it).putInt(toc.offsetOffset(1), base.size) }
+    val negativeOffset = base.copyOf().also { ByteBuffer.wrap(it).putInt(toc.offsetOffset(1), -1) }
+    val negativeLength = base.copyOf().also { ByteBuffer.wrap(it).putInt(toc.offsetOffset(1) + 4, -1) }
+    val overflowing = base.copyOf().also {
+      ByteBuffer.wrap(it).putInt(toc.offsetOffset(1), Int.MAX_VALUE).putInt(toc.offsetOffset(1) + 4, Int.MAX_VALUE)
+    }
+
+    for (payload in listOf(pastTheEnd, negativeOffset, negativeLength, overflowing)) {
+      assertReadFails(payload, "Section gson is out of bounds in $NAME")
+    }
+  }
+
+  @Test
+  fun corruptSectionCountsFail() {
+    val base = write(mapOf("moshi" to compressible))
+    val countOffset = Toc(base).countOffset
+    val negative = base.copyOf().also { ByteBuffer.wrap(it).putInt(countOffset, -1) }
+    val huge = base.copyOf().also { ByteBuffer.wrap(it).putInt(countOffset, Int.MAX_VALUE) }
+
+    assertReadFails(negative, "Invalid section count")
+    assertReadFails(huge, "Truncated Crumb index container")
+  }
+
+  @Test
+  fun truncatedContainersFail() {
+    val payload = write(mapOf("moshi" to compressible, "gson" to incompressible))
+
+    for (size in 0 until payload.size) {
+      try {
+        CrumbIndexContainer.read(payload.copyOf(size))
+        fail("Read a container truncated to $size bytes")
+      } catch (expected: IOException) {
+      }
+    }
+  }
+
+  @Test
+  fun longKeysAreRejectedOnWrite() {
+    try {
+      write(mapOf("k".repeat(0x10000) to compressible))
+      fail()
+    } catch (expected: IllegalArgumentException) {
+      assertThat(expected).hasMessageThat().contains("too long")
+    }
+  }
+
+  private fun write(sections: Map<String, ByteArray>, codec: CrumbCodec = CrumbCodec.DEFLATE): ByteArray {
+    val buffer = Buffer()
+    CrumbIndexContainer.write(buffer, NAME, sections, codec)
+    return buffer.readByteArray()
+  }
+
+  private fun assertReadFails(payload: ByteArray, message: String) {
+    try {
+      CrumbIndexContainer.read(payload)
+      fail()
+    } catch (expected: IOException) {
+      assertThat(expected).hasMessageThat().contains(message)
+    }
+  }
+
+  /** Offsets into the table of contents of a well-formed container, for corrupting it in place. */
+  private class Toc(private val payload: ByteArray) {
+    val countOffset = 4 + 1 + 2 + shortAt(5)
+    private val entryOffsets = mutableListOf<Int>()
+    val dataOffset: Int
+
+    init {
+      var position = countOffset + 4
+      repeat(ByteBuffer.wrap(payload).getInt(countOffset)) {
+        entryOffsets += position
+        position += 2 + shortAt(position) + 1 + 4 + 4
+      }
+      dataOffset = position
+    }
+
+    fun codecIdOffset(index: Int) = entryOffsets[index] + 2 + shortAt(entryOffsets[index])
+    fun codecId(index: Int) = payload[codecIdOffset(index)].toInt() and 0xff
+    fun offsetOffset(index: Int) = codecIdOffset(index) + 1
+    fun offset(index: Int) = ByteBuffer.wrap(payload).getInt(offsetOffset(index))
+
+    private fun shortAt(position: Int) = ByteBuffer.wrap(payload).getShort(position).toInt() and 0xffff
+  }
+
+  private companion object {
+    const val NAME = "com.uber.crumb.Foo"
+  }
+}
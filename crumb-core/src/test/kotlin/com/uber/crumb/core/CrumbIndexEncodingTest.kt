@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import okio.Buffer
+import okio.buffer
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import java.io.StringWriter
+import java.lang.reflect.Proxy
+import java.net.URI
+import javax.annotation.processing.Filer
+import javax.tools.JavaFileObject
+import javax.tools.SimpleJavaFileObject
+import kotlin.random.Random
+
+class CrumbIndexEncodingTest {
+
+  @Test
+  fun packedPartsAroundTheirBoundary() {
+    for (size in listOf(0, 1, 2, 3, 4, PART_SIZE - 1, PART_SIZE, PART_SIZE + 1, 2 * PART_SIZE, 2 * PART_SIZE + 3)) {
+      val payload = Random(size).nextBytes(size)
+      val parts = packIndex(payload)
+
+      assertThat(parts).hasSize((size + PART_SIZE - 1) / PART_SIZE)
+      parts.forEachIndexed { index, part ->
+        val partSize = minOf(PART_SIZE, size - index * PART_SIZE)
+        assertThat(part.length).isEqualTo((partSize * 8 + 5) / 6)
+        assertThat(part.all { it in 'A'..'Z' || it in 'a'..'z' || it in '0'..'9' || it == '-' || it == '_' }).isTrue()
+      }
+      assertThat(PackedIndexSource(parts.toTypedArray()).buffer().readByteArray()).isEqualTo(payload)
+    }
+  }
+
+  @Test
+  fun packedPartsFitInAConstant() {
+    // Every char is a single byte of modified UTF-8.
+    val parts = packIndex(ByteArray(PART_SIZE))
+
+    assertThat(parts.single().length).isAtMost(0xffff)
+  }
+
+  @Test
+  fun packedSourceReadsAcrossParts() {
+    val payload = Random(0).nextBytes(2 * PART_SIZE + 3)
+    val source = PackedIndexSource(packIndex(payload).toTypedArray())
+
+    // Read in chunks that don't line up with parts.
+    val sink = Buffer()
+    while (source.read(sink, 1000) != -1L) {
+    }
+    assertThat(sink.readByteArray()).isEqualTo(payload)
+  }
+
+  @Test
+  fun packedSourceRejectsInvalidChars() {
+    val source = PackedIndexSource(arrayOf("AAAA", "AA\u0000A")).buffer()
+
+    assertThat(source.readByteArray(3)).isEqualTo(ByteArray(3))
+    try {
+      source.readByte()
+      fail()
+    } catch (expected: IOException) {
+      assertThat(expected).hasMessageThat().contains("Invalid packed char")
+    }
+  }
+
+  @Test
+  fun packedSourcesArentEscaped() {
+    val payload = Random(0).nextBytes(2 * PART_SIZE)
+    val packedLength = packIndex(payload).sumBy { it.length }
+
+    for (language in listOf(CrumbOutputLanguage.JAVA, CrumbOutputLanguage.KOTLIN)) {
+      val source = StringWriter()
+      language.writeTo(filerWritingTo(source), "test", "Index", encoding = CrumbIndexEncoding.PACKED)
+          .use { it.write(payload) }
+      // The parts are written as is, with only a little overhead for the rest of the file.
+      assertWithMessage("$language").that(source.toString().length).isLessThan(packedLength + 1000)
+    }
+  }
+
+  /** @return a [Filer] that writes its single source file to [writer]. */
+  private fun filerWritingTo(writer: StringWriter): Filer {
+    val file = object : SimpleJavaFileObject(URI.create("Index.java"), JavaFileObject.Kind.SOURCE) {
+      override fun openWriter() = writer
+    }
+    return Proxy.newProxyInstance(javaClass.classLoader, arrayOf(Filer::class.java)) { _, method, _ ->
+      when (method.name) {
+        "createSourceFile", "createResource" -> file
+        else -> throw UnsupportedOperationException(method.name)
+      }
+    } as Filer
+  }
+
+  private companion object {
+    const val PART_SIZE = 3 * 4096
+  }
+}
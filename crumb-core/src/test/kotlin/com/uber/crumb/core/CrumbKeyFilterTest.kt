@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import okio.Buffer
+import org.junit.Assert.fail
+import org.junit.Test
+import java.util.zip.GZIPInputStream
+
+class CrumbKeyFilterTest {
+
+  private val payload = "com.uber.crumb.Foo".repeat(20).toByteArray()
+
+  @Test
+  fun filterHasNoFalseNegatives() {
+    val keys = (0 until 100).map { "key$it" }
+    val filter = CrumbKeyFilter.of(keys)
+
+    assertThat(keys.all(filter::mightContain)).isTrue()
+    // About 1% false positives are expected with 10 bits per key.
+    assertThat((0 until 1000).count { filter.mightContain("absent$it") }).isLessThan(50)
+  }
+
+  @Test
+  fun emptyFilterContainsNothing() {
+    val filter = CrumbKeyFilter.of(emptyList())
+
+    assertThat(filter.mightContain("moshi")).isFalse()
+    assertThat(filter.mightContain("")).isFalse()
+  }
+
+  @Test
+  fun gzipRoundTrip() {
+    val gzip = writeGzip(listOf("moshi", "gson"))
+    val source = Buffer().write(gzip)
+    val filter = CrumbKeyFilter.readGzip(source)!!
+
+    assertThat(filter.mightContain("moshi")).isTrue()
+    assertThat(filter.mightContain("gson")).isTrue()
+    assertThat(source.size).isEqualTo(gzip.size.toLong())
+    assertThat(CrumbCodec.GZIP.decode(gzip)).isEqualTo(payload)
+    assertThat(GZIPInputStream(gzip.inputStream()).readBytes()).isEqualTo(payload)
+  }
+
+  @Test
+  fun largeKeySetsAreCappedToFitTheHeader() {
+    val keys = (0 until 100_000).map { "key$it" }
+    val gzip = writeGzip(keys)
+    val filter = CrumbKeyFilter.readGzip(Buffer().write(gzip))!!
+
+    assertThat(keys.all(filter::mightContain)).isTrue()
+    assertThat(CrumbCodec.GZIP.decode(gzip)).isEqualTo(payload)
+    assertThat(GZIPInputStream(gzip.inputStream()).readBytes()).isEqualTo(payload)
+  }
+
+  @Test
+  fun payloadsWithoutFiltersHaveNone() {
+    val plainGzip = CrumbCodec.GZIP.encode(payload)
+    val container = Buffer().also { CrumbIndexContainer.write(it, "Foo", mapOf("moshi" to payload)) }.readByteArray()
+
+    for (other in listOf(plainGzip, container, payload, ByteArray(0))) {
+      assertThat(CrumbKeyFilter.readGzip(Buffer().write(other))).isNull()
+    }
+  }
+
+  @Test
+  fun otherExtraSubfieldsAreIgnored() {
+    val gzip = writeGzip(listOf("moshi"))
+    // The subfield ids directly follow the 10 byte header and the 2 byte extra field length.
+    val unknownSubfield = gzip.copyOf().apply { this[12] = 'X'.toByte() }
+
+    assertThat(CrumbKeyFilter.readGzip(Buffer().write(unknownSubfield))).isNull()
+    assertThat(CrumbCodec.GZIP.decode(unknownSubfield)).isEqualTo(payload)
+  }
+
+  @Test
+  fun truncatedHeadersHaveNoFilter() {
+    val gzip = writeGzip(listOf("moshi"))
+    val filterEnd = gzip.size - CrumbCodec.DEFLATE.encode(payload).size - 8
+
+    for (size in 0 until filterEnd) {
+      assertThat(CrumbKeyFilter.readGzip(Buffer().write(gzip, 0, size))).isNull()
+    }
+    assertThat(CrumbKeyFilter.readGzip(Buffer().write(gzip, 0, filterEnd))).isNotNull()
+  }
+
+  @Test
+  fun gzipRequiresRawDeflate() {
+    try {
+      CrumbKeyFilter.writeGzip(Buffer(), payload, listOf("moshi"), CrumbCodec.GZIP)
+      fail()
+    } catch (expected: IllegalArgumentException) {
+      assertThat(expected).hasMessageThat().contains("raw deflate")
+    }
+  }
+
+  private fun writeGzip(keys: Collection<String>): ByteArray {
+    return Buffer().also { CrumbKeyFilter.writeGzip(it, payload, keys) }.readByteArray()
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.core
+
+import com.google.common.truth.Truth.assertThat
+import okio.BufferedSource
+import org.junit.Test
+import java.io.File
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.net.URLClassLoader
+import java.nio.file.Files
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.annotation.processing.Filer
+import javax.tools.JavaFileObject
+import javax.tools.SimpleJavaFileObject
+
+class CrumbManagerTest {
+
+  private val outputDirectory = Files.createTempDirectory("crumb").toFile()
+
+  // Resources are written to the output directory, which is the only use of the processing environment here.
+  private val filer = proxy<Filer> { method, args ->
+    if (method.name != "createResource") throw UnsupportedOperationException(method.name)
+    val file = File(outputDirectory, args[2].toString())
+    file.parentFile.mkdirs()
+    object : SimpleJavaFileObject(file.toURI(), JavaFileObject.Kind.OTHER) {
+      override fun openOutputStream() = file.outputStream()
+    }
+  }
+
+  private val crumbManager = CrumbManager(proxy { method, _ ->
+    if (method.name != "getFiler") throw UnsupportedOperationException(method.name)
+    filer
+  }, CrumbLog("CrumbManagerTest"))
+
+  @Test
+  fun resourcesRoundTrip() {
+    crumbManager.storeResource(DIRECTORY, "com.example.Foo").use { it.write(byteArrayOf(1)) }
+    crumbManager.storeResource(CrumbManager.partitionDirectory(DIRECTORY, "moshi"), "com.example.Foo")
+        .use { it.write(byteArrayOf(2)) }
+    crumbManager.storeResource(CrumbManager.partitionDirectory(DIRECTORY, "gson"), "com.example.Foo")
+        .use { it.write(byteArrayOf(3)) }
+    File(outputDirectory, "$DIRECTORY/unrelated.txt").writeText("Not an index")
+    assertThat(File(outputDirectory, "$DIRECTORY/com.example.Foo.crumb").readBytes()).isEqualTo(byteArrayOf(1))
+    val jar = jar(mapOf(
+        "$DIRECTORY/" to ByteArray(0),
+        "$DIRECTORY/com.example.Bar.crumb" to byteArrayOf(4),
+        "$DIRECTORY/unrelated.txt" to byteArrayOf(5),
+        "$DIRECTORY/nested/com.example.Baz.crumb" to byteArrayOf(6)))
+    val classLoader = URLClassLoader(arrayOf(outputDirectory.toURI().toURL(), jar.toURI().toURL()), null)
+
+    assertThat(payloads(crumbManager.loadResources(DIRECTORY, classLoader)))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(4))
+    assertThat(payloads(crumbManager.loadResources(DIRECTORY, classLoader, setOf("moshi", "absent"))))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(2), listOf<Byte>(4))
+    assertThat(payloads(crumbManager.loadResourcesSequence(DIRECTORY, classLoader, setOf("moshi")).toList()))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(4), listOf<Byte>(2)).inOrder()
+    assertThat(crumbManager.loadResources("META-INF/absent", classLoader)).isEmpty()
+  }
+
+  @Test
+  fun scansJarsAndDirectories() {
+    val jar = jar(mapOf(
+        "$PACKAGE_DIRECTORY/" to ByteArray(0),
+        "$PACKAGE_DIRECTORY/FooCrumbIndex.class" to holder("Foo", byteArrayOf(1)),
+        "$PACKAGE_DIRECTORY/Unrelated.txt" to byteArrayOf(2),
+        "$PACKAGE_DIRECTORY/nested/BarCrumbIndex.class" to holder("Bar", byteArrayOf(3), "$PACKAGE.nested"),
+        "com/example/BazCrumbIndex.class" to holder("Baz", byteArrayOf(4), "com.example")))
+    val directory = Files.createTempDirectory("crumb").toFile()
+    File(directory, PACKAGE_DIRECTORY).apply { mkdirs() }.resolve("QuxCrumbIndex.class")
+        .writeBytes(holder("Qux", byteArrayOf(5)))
+    val missing = File(directory, "missing.jar")
+
+    val classpath = listOf(jar, directory, missing)
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, classpath)))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(5))
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, classpath, parallelism = 1)))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(5))
+    assertThat(payloads(crumbManager.loadFromClasspathSequence(PACKAGE, classpath).toList()))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(5)).inOrder()
+    assertThat(crumbManager.loadFromClasspath(PACKAGE, listOf(missing))).isEmpty()
+  }
+
+  @Test
+  fun holdersWithoutAnIndexAreSkipped() {
+    val directory = Files.createTempDirectory("crumb").toFile()
+    File(directory, PACKAGE_DIRECTORY).apply { mkdirs() }.resolve("Empty.class")
+        .writeBytes(holder("Empty", ByteArray(0)))
+
+    assertThat(crumbManager.loadFromClasspath(PACKAGE, listOf(directory))).isEmpty()
+  }
+
+  @Test
+  fun unreadableJarsAreSkipped() {
+    val notAJar = Files.createTempFile("crumb", ".jar").toFile().apply { writeText("Not a jar") }
+    val jar = jar(mapOf("$PACKAGE_DIRECTORY/FooCrumbIndex.class" to holder("Foo", byteArrayOf(1))))
+
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, listOf(notAJar, jar))))
+        .containsExactly(listOf<Byte>(1))
+  }
+
+  @Test
+  fun compileClasspathIsntFoundOutsideJavac() {
+    assertThat(crumbManager.findCompileClasspath()).isNull()
+  }
+
+  @Test
+  fun partitionsAreOnlyScannedWhenRequested() {
+    val moshi = CrumbManager.partitionPackage(PACKAGE, "moshi")
+    val gson = CrumbManager.partitionPackage(PACKAGE, "gson")
+    val jar = jar(mapOf(
+        "$PACKAGE_DIRECTORY/FooCrumbIndex.class" to holder("Foo", byteArrayOf(1)),
+        "${moshi.replace('.', '/')}/FooCrumbIndex.class" to holder("Foo", byteArrayOf(2), moshi),
+        "${gson.replace('.', '/')}/FooCrumbIndex.class" to holder("Foo", byteArrayOf(3), gson)))
+    val partitions = setOf("moshi", "absent")
+
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, listOf(jar), partitions = partitions)))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(2))
+    assertThat(payloads(crumbManager.loadFromClasspathSequence(PACKAGE, listOf(jar), partitions).toList()))
+        .containsExactly(listOf<Byte>(1), listOf<Byte>(2))
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, listOf(jar))))
+        .containsExactly(listOf<Byte>(1))
+  }
+
+  @Test
+  fun partitionNamesAreValidPackagesAndDirectories() {
+    assertThat(CrumbManager.partitionPackage(PACKAGE, "moshi")).isEqualTo("$PACKAGE.p_moshi")
+    assertThat(CrumbManager.partitionPackage(PACKAGE, "com.example:gson-support"))
+        .isEqualTo("$PACKAGE.p_com_002eexample_003agson_002dsupport")
+    assertThat(CrumbManager.partitionDirectory("META-INF/crumb", "com.example/moshi"))
+        .isEqualTo("META-INF/crumb/p_com_002eexample_002fmoshi")
+    // Partitions that only differ in characters that aren't valid in package names stay separate.
+    assertThat(listOf("a_b", "a.b", "a-b", "a_002eb").map { CrumbManager.partitionPackage(PACKAGE, it) }.toSet())
+        .hasSize(4)
+  }
+
+  @Test
+  fun corruptClassFilesAreSkipped() {
+    val classFile = holder("Foo", byteArrayOf(1, 2, 3))
+    val jar = jar(mapOf(
+        "$PACKAGE_DIRECTORY/FooCrumbIndex.class" to classFile,
+        "$PACKAGE_DIRECTORY/TruncatedCrumbIndex.class" to classFile.copyOf(classFile.size / 2),
+        "$PACKAGE_DIRECTORY/NotAClass.class" to "Not a class".toByteArray(),
+        "$PACKAGE_DIRECTORY/Empty.class" to ByteArray(0)))
+
+    assertThat(payloads(crumbManager.loadFromClasspath(PACKAGE, listOf(jar))))
+        .containsExactly(listOf<Byte>(1, 2, 3))
+  }
+
+  private inline fun <reified T> proxy(crossinline handler: (Method, Array<out Any?>) -> Any?): T {
+    return Proxy.newProxyInstance(javaClass.classLoader, arrayOf(T::class.java)) { _, method, args ->
+      handler(method, args.orEmpty())
+    } as T
+  }
+
+  /** @return the class file of a holder type named [simpleName] in [PACKAGE] with the given [payload]. */
+  private fun holder(simpleName: String, payload: ByteArray, packageName: String = PACKAGE): ByteArray {
+    return CrumbIndexClassWriter("$packageName.${simpleName}CrumbIndex").write(payload, CrumbIndexEncoding.BYTES)
+  }
+
+  /** @return a jar with the given [entries], keyed by their paths. */
+  private fun jar(entries: Map<String, ByteArray>): File {
+    val jar = Files.createTempFile("crumb", ".jar").toFile()
+    ZipOutputStream(jar.outputStream()).use { zip ->
+      entries.forEach { (path, bytes) ->
+        zip.putNextEntry(ZipEntry(path))
+        zip.write(bytes)
+        zip.closeEntry()
+      }
+    }
+    return jar
+  }
+
+  /** @return the bytes of each of the given [sources], as lists so that they can be compared. */
+  private fun payloads(sources: Collection<BufferedSource>): List<List<Byte>> {
+    return sources.map { source -> source.use { it.readByteArray().toList() } }
+  }
+
+  private companion object {
+    const val PACKAGE = "com.uber.crumb.indices"
+    const val PACKAGE_DIRECTORY = "com/uber/crumb/indices"
+    const val DIRECTORY = "META-INF/crumb"
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2018. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+@file:JvmName("CrumbDictionaryTrainerCli")
+
+package com.uber.crumb.trainer
+
+import com.uber.crumb.core.CrumbDictionaryTrainer
+import java.io.File
+import kotlin.system.exitProcess
+
+/**
+ * Trains a dictionary with [CrumbDictionaryTrainer] from an output file and any number of jars, directories, or index
+ * files:
+ * ```
+ * ./gradlew :crumb-dictionary-trainer:run --args="dictionary.bin lib1.jar lib2.jar"
+ * ```
+ */
+fun main(args: Array<String>) {
+  if (args.size < 2) {
+    System.err.println("Usage: crumb-dictionary-trainer <output file> <jar, directory, or index file>...")
+    exitProcess(1)
+  }
+  val samples = CrumbDictionaryTrainer.readSamples(args.drop(1).map(::File))
+  val dictionary = CrumbDictionaryTrainer.train(samples)
+  dictionary.write(File(args[0]))
+  println("Trained $dictionary from ${samples.size} samples")
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.extension.processor
+
+import com.google.auto.service.AutoService
+import com.uber.crumb.annotations.CrumbConsumer
+import com.uber.crumb.annotations.CrumbProducer
+import com.uber.crumb.compiler.api.CRUMB_EXTENSION_DESCRIPTORS_RESOURCE
+import com.uber.crumb.compiler.api.CrumbConsumerExtension
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor
+import com.uber.crumb.compiler.api.CrumbProducerExtension
+import net.ltgt.gradle.incap.IncrementalAnnotationProcessor
+import net.ltgt.gradle.incap.IncrementalAnnotationProcessorType.AGGREGATING
+import java.io.IOException
+import javax.annotation.processing.AbstractProcessor
+import javax.annotation.processing.Processor
+import javax.annotation.processing.RoundEnvironment
+import javax.lang.model.SourceVersion
+import javax.lang.model.element.AnnotationMirror
+import javax.lang.model.element.AnnotationValue
+import javax.lang.model.element.TypeElement
+import javax.lang.model.element.VariableElement
+import javax.lang.model.type.DeclaredType
+import javax.tools.Diagnostic.Kind.ERROR
+import javax.tools.StandardLocation.CLASS_OUTPUT
+
+/**
+ * Writes the [CrumbExtensionDescriptor]s of the extensions in a compilation to the
+ * [CRUMB_EXTENSION_DESCRIPTORS_RESOURCE] resource. This is only needed on the annotation processor path of the
+ * extensions themselves, rather than of every module that uses Crumb.
+ *
+ * Each line of the resource describes one extension, as its binary class name followed by space-separated
+ * `name=value` attributes: comma-separated `producerAnnotations` and `consumerAnnotations`, and a
+ * `producerIncrementalType` and `consumerIncrementalType` for each kind of extension it is.
+ */
+@AutoService(Processor::class)
+@IncrementalAnnotationProcessor(AGGREGATING)
+class CrumbExtensionDescriptorProcessor : AbstractProcessor() {
+
+  private val descriptors = mutableListOf<String>()
+
+  override fun getSupportedAnnotationTypes(): Set<String> {
+    return setOf(CrumbExtensionDescriptor::class.java.name)
+  }
+
+  override fun getSupportedSourceVersion(): SourceVersion {
+    return SourceVersion.latestSupported()
+  }
+
+  override fun process(annotations: Set<TypeElement>, roundEnv: RoundEnvironment): Boolean {
+    roundEnv.getElementsAnnotatedWith(CrumbExtensionDescriptor::class.java)
+        .filterIsInstance<TypeElement>()
+        .mapNotNullTo(descriptors, ::describe)
+    if (roundEnv.processingOver() && descriptors.isNotEmpty()) {
+      try {
+        processingEnv.filer.createResource(CLASS_OUTPUT, "", CRUMB_EXTENSION_DESCRIPTORS_RESOURCE)
+            .openWriter()
+            .use { writer -> descriptors.forEach { writer.write(it + "\n") } }
+      } catch (e: IOException) {
+        processingEnv.messager.printMessage(ERROR,
+            "Could not write $CRUMB_EXTENSION_DESCRIPTORS_RESOURCE: ${e.message}")
+      }
+    }
+    return true
+  }
+
+  /** @return the descriptor line for the given extension [type], or null if it isn't a valid extension. */
+  private fun describe(type: TypeElement): String? {
+    val producer = type.isSubtypeOf(CrumbProducerExtension::class.java)
+    val consumer = type.isSubtypeOf(CrumbConsumerExtension::class.java)
+    if (!producer && !consumer) {
+      error(type, "@${CrumbExtensionDescriptor::class.java.simpleName} can only be applied to Crumb extensions")
+      return null
+    }
+    val mirror = type.annotationMirrors.first {
+      (it.annotationType.asElement() as TypeElement).qualifiedName
+          .contentEquals(CrumbExtensionDescriptor::class.java.name)
+    }
+    val producerAnnotations = mirror.typesValue("producerAnnotations")
+    val consumerAnnotations = mirror.typesValue("consumerAnnotations")
+    if (!producerAnnotations.all { it.isAnnotatedWith(CrumbProducer::class.java, type) } ||
+        !consumerAnnotations.all { it.isAnnotatedWith(CrumbConsumer::class.java, type) }) {
+      return null
+    }
+    return buildString {
+      append(processingEnv.elementUtils.getBinaryName(type))
+      append(" producerAnnotations=").append(producerAnnotations.joinToString(",") { it.qualifiedName })
+      append(" consumerAnnotations=").append(consumerAnnotations.joinToString(",") { it.qualifiedName })
+      if (producer) {
+        append(" producerIncrementalType=").append(mirror.enumValue("producerIncrementalType"))
+      }
+      if (consumer) {
+        append(" consumerIncrementalType=").append(mirror.enumValue("consumerIncrementalType"))
+      }
+    }
+  }
+
+  private fun TypeElement.isSubtypeOf(supertype: Class<*>): Boolean {
+    val supertypeElement = processingEnv.elementUtils.getTypeElement(supertype.name) ?: return false
+    val typeUtils = processingEnv.typeUtils
+    return typeUtils.isAssignable(typeUtils.erasure(asType()), typeUtils.erasure(supertypeElement.asType()))
+  }
+
+  private fun TypeElement.isAnnotatedWith(marker: Class<out Annotation>, extension: TypeElement): Boolean {
+    if (getAnnotation(marker) != null) {
+      return true
+    }
+    error(extension, "$qualifiedName must be annotated with @${marker.simpleName} to be described")
+    return false
+  }
+
+  private fun AnnotationMirror.value(name: String): AnnotationValue? {
+    // Unset values are taken from their defaults.
+    return processingEnv.elementUtils.getElementValuesWithDefaults(this)
+        .entries
+        .firstOrNull { it.key.simpleName.contentEquals(name) }
+        ?.value
+  }
+
+  private fun AnnotationMirror.typesValue(name: String): List<TypeElement> {
+    @Suppress("UNCHECKED_CAST")
+    val values = value(name)?.value as List<AnnotationValue>? ?: return emptyList()
+    return values.map { (it.value as DeclaredType).asElement() as TypeElement }
+  }
+
+  private fun AnnotationMirror.enumValue(name: String): String {
+    return (value(name)?.value as VariableElement).simpleName.toString()
+  }
+
+  private fun error(type: TypeElement, message: String) {
+    processingEnv.messager.printMessage(ERROR, message, type)
+  }
+}
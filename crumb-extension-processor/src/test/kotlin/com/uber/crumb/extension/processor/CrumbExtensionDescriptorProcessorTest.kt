@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019. Uber Technologies
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.uber.crumb.extension.processor
+
+import com.google.common.truth.Truth.assertWithMessage
+import com.google.testing.compile.CompilationSubject.assertThat
+import com.google.testing.compile.Compiler.javac
+import com.google.testing.compile.JavaFileObjects
+import com.uber.crumb.compiler.api.CRUMB_EXTENSION_DESCRIPTORS_RESOURCE
+import org.junit.Test
+import javax.tools.JavaFileObject
+import javax.tools.StandardLocation.CLASS_OUTPUT
+
+class CrumbExtensionDescriptorProcessorTest {
+
+  private val annotations = JavaFileObjects.forSourceString("test.Annotations", """
+package test;
+import com.uber.crumb.annotations.CrumbConsumer;
+import com.uber.crumb.annotations.CrumbProducer;
+public final class Annotations {
+  @CrumbProducer public @interface Produce {}
+  @CrumbConsumer public @interface Consume {}
+  public @interface Plain {}
+}""")
+
+  @Test
+  fun descriptorsAreWrittenInTheFinalRound() {
+    val producer = extension("Producer", "CrumbProducerExtension", """
+producerAnnotations = Annotations.Produce.class,
+producerIncrementalType = IncrementalExtensionType.AGGREGATING""")
+    val both = extension("Both", "CrumbProducerExtension, CrumbConsumerExtension", """
+producerAnnotations = Annotations.Produce.class,
+consumerAnnotations = Annotations.Consume.class,
+consumerIncrementalType = IncrementalExtensionType.ISOLATING""")
+
+    val compilation = javac()
+        .withProcessors(CrumbExtensionDescriptorProcessor())
+        .compile(annotations, producer, both)
+
+    assertThat(compilation).succeeded()
+    // Only the kinds of extension that the class is get an incremental type, which defaults to UNKNOWN.
+    assertThat(compilation)
+        .generatedFile(CLASS_OUTPUT, "", CRUMB_EXTENSION_DESCRIPTORS_RESOURCE)
+        .contentsAsUtf8String()
+        .isEqualTo(
+            "test.Producer producerAnnotations=test.Annotations.Produce consumerAnnotations= " +
+                "producerIncrementalType=AGGREGATING\n" +
+            "test.Both producerAnnotations=test.Annotations.Produce consumerAnnotations=test.Annotations.Consume " +
+                "producerIncrementalType=UNKNOWN consumerIncrementalType=ISOLATING\n")
+  }
+
+  @Test
+  fun nothingIsWrittenWithoutDescriptors() {
+    val compilation = javac()
+        .withProcessors(CrumbExtensionDescriptorProcessor())
+        .compile(annotations)
+
+    assertThat(compilation).succeeded()
+    val descriptorFiles = compilation.generatedFiles().filter { it.name.endsWith(CRUMB_EXTENSION_DESCRIPTORS_RESOURCE) }
+    assertWithMessage("Generated descriptor files").that(descriptorFiles).isEmpty()
+  }
+
+  @Test
+  fun annotationsMustBeCrumbAnnotations() {
+    val extension = extension("Producer", "CrumbProducerExtension", """
+producerAnnotations = Annotations.Plain.class""")
+
+    val compilation = javac()
+        .withProcessors(CrumbExtensionDescriptorProcessor())
+        .compile(annotations, extension)
+
+    assertThat(compilation).failed()
+    assertThat(compilation).hadErrorContaining("test.Annotations.Plain must be annotated with @CrumbProducer")
+  }
+
+  @Test
+  fun onlyExtensionsCanBeDescribed() {
+    val compilation = javac()
+        .withProcessors(CrumbExtensionDescriptorProcessor())
+        .compile(annotations, extension("NotAnExtension", "Runnable", ""))
+
+    assertThat(compilation).failed()
+    assertThat(compilation).hadErrorContaining("can only be applied to Crumb extensions")
+  }
+
+  /** @return an abstract extension class named [name] that implements [interfaces], described by [descriptor]. */
+  private fun extension(name: String, interfaces: String, descriptor: String): JavaFileObject {
+    return JavaFileObjects.forSourceString("test.$name", """
+package test;
+import com.uber.crumb.compiler.api.CrumbConsumerExtension;
+import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType;
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor;
+import com.uber.crumb.compiler.api.CrumbProducerExtension;
+@CrumbExtensionDescriptor($descriptor)
+public abstract class $name implements $interfaces {}""")
+  }
+}
@@ -47,6 +47,7 @@ import com.uber.crumb.compiler.api.CrumbContext
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.AGGREGATING
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.ISOLATING
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor
 import com.uber.crumb.compiler.api.CrumbProducerExtension
 import com.uber.crumb.compiler.api.ProducerMetadata
 import com.uber.crumb.integration.annotations.GsonFactory
@@ -74,6 +75,11 @@ typealias ModelName = String
  * Gson support for Crumb.
  */
 @AutoService(value = [CrumbConsumerExtension::class, CrumbProducerExtension::class])
+@CrumbExtensionDescriptor(
+    producerAnnotations = [GsonFactory::class],
+    consumerAnnotations = [GsonFactory::class],
+    producerIncrementalType = AGGREGATING,
+    consumerIncrementalType = ISOLATING)
 class GsonSupport : CrumbConsumerExtension, CrumbProducerExtension {
 
   companion object {
@@ -117,8 +123,8 @@ class GsonSupport : CrumbConsumerExtension, CrumbProducerExtension {
     return annotations.any {
       MoreTypes.equivalence()
           .equivalent(it.annotationType,
-              context.processingEnv.elementUtils.getTypeElement(
-                  GsonFactory::class.java.name).asType())
+              context.types.typeElement(
+                  GsonFactory::class.java.name)!!.asType())
     }
   }
 
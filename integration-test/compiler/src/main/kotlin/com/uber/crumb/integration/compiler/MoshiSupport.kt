@@ -43,6 +43,8 @@ import com.uber.crumb.compiler.api.CrumbContext
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.AGGREGATING
 import com.uber.crumb.compiler.api.CrumbExtension.IncrementalExtensionType.ISOLATING
+import com.uber.crumb.compiler.api.CrumbExtensionDescriptor
+import com.uber.crumb.compiler.api.CrumbGeneratedFile
 import com.uber.crumb.compiler.api.CrumbProducerExtension
 import com.uber.crumb.compiler.api.ProducerMetadata
 import com.uber.crumb.integration.annotations.MoshiFactory
@@ -51,6 +53,7 @@ import com.uber.crumb.integration.annotations.MoshiFactory.Type.PRODUCER
 import java.lang.reflect.ParameterizedType
 import java.lang.reflect.Type
 import javax.annotation.Nullable
+import javax.annotation.processing.Filer
 import javax.annotation.processing.ProcessingEnvironment
 import javax.lang.model.element.AnnotationMirror
 import javax.lang.model.element.Element
@@ -68,6 +71,11 @@ import kotlin.properties.Delegates
  * Moshi support for Crumb.
  */
 @AutoService(value = [CrumbConsumerExtension::class, CrumbProducerExtension::class])
+@CrumbExtensionDescriptor(
+    producerAnnotations = [MoshiFactory::class],
+    consumerAnnotations = [MoshiFactory::class],
+    producerIncrementalType = AGGREGATING,
+    consumerIncrementalType = ISOLATING)
 class MoshiSupport : CrumbConsumerExtension, CrumbProducerExtension {
 
   companion object {
@@ -168,8 +176,8 @@ class MoshiSupport : CrumbConsumerExtension, CrumbProducerExtension {
     return annotations.any {
       MoreTypes.equivalence()
           .equivalent(it.annotationType,
-              context.processingEnv.elementUtils.getTypeElement(
-                  MoshiFactory::class.java.name).asType())
+              context.types.typeElement(
+                  MoshiFactory::class.java.name)!!.asType())
     }
   }
 
@@ -317,10 +325,44 @@ class MoshiSupport : CrumbConsumerExtension, CrumbProducerExtension {
   override fun consumerIncrementalType(
       processingEnvironment: ProcessingEnvironment): IncrementalExtensionType = ISOLATING
 
+  override fun isPlanningConsumer() = true
+
   override fun consume(context: CrumbContext,
       type: TypeElement,
       annotations: Collection<AnnotationMirror>,
       metadata: Set<ConsumerMetadata>) {
+    planConsume(context, type, annotations, metadata).forEach {
+      it.build()
+      it.writeTo(context.processingEnv.filer)
+    }
+  }
+
+  override fun planConsume(context: CrumbContext,
+      type: TypeElement,
+      annotations: Collection<AnnotationMirror>,
+      metadata: Set<ConsumerMetadata>): List<CrumbGeneratedFile> {
+    // Only the consumer's names come from its element, so they're resolved here on the processing thread. The rest of
+    // the file is built from metadata alone.
+    val adapterName = type.classNameOf()
+    val consumerPackage = type.packageName()
+    return listOf(object : CrumbGeneratedFile {
+      private lateinit var javaFile: JavaFile
+
+      override fun build() {
+        javaFile = consumerFile(consumerPackage, adapterName, metadata)
+      }
+
+      override fun writeTo(filer: Filer) = javaFile.writeTo(filer)
+    })
+  }
+
+  /**
+   * Builds the consumer factory for the given consumer's [consumerPackage] and [adapterName] from the collected
+   * [metadata]. This doesn't read any elements, so it can run off the processing thread.
+   */
+  private fun consumerFile(consumerPackage: String,
+      adapterName: String,
+      metadata: Set<ConsumerMetadata>): JavaFile {
     // Get a mapping of model names -> GsonSupportMeta
     val metaMaps = metadata
         .filter { it.contains(EXTRAS_KEY) }
@@ -485,16 +527,13 @@ class MoshiSupport : CrumbConsumerExtension, CrumbProducerExtension {
     methods += jsonAdapterCreator
     methods += create.build()
 
-    val adapterName = type.classNameOf()
-    val packageName = type.packageName()
     val factorySpec = TypeSpec.classBuilder(
-        ClassName.get(packageName, CONSUMER_PREFIX + adapterName))
+        ClassName.get(consumerPackage, CONSUMER_PREFIX + adapterName))
         .addModifiers(FINAL)
         .addSuperinterface(TypeName.get(JsonAdapter.Factory::class.java))
         .addMethods(methods)
         .build()
-    JavaFile.builder(packageName, factorySpec).build()
-        .writeTo(context.processingEnv.filer)
+    return JavaFile.builder(consumerPackage, factorySpec).build()
   }
 
   /**
@@ -18,12 +18,35 @@ package com.uber.crumb.integration.compiler
 
 import com.google.common.collect.ImmutableSet
 import com.google.common.truth.Truth.assertAbout
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import com.google.testing.compile.Compilation
+import com.google.testing.compile.CompilationSubject
+import com.google.testing.compile.Compiler.javac
 import com.google.testing.compile.JavaFileObjects
 import com.google.testing.compile.JavaSourcesSubject
 import com.google.testing.compile.JavaSourcesSubjectFactory.javaSources
 import com.uber.crumb.CrumbProcessor
+import com.uber.crumb.compiler.api.ConsumerMetadata
+import com.uber.crumb.compiler.api.CrumbConsumerExtension
+import com.uber.crumb.compiler.api.CrumbContext
+import com.uber.crumb.compiler.api.CrumbGeneratedFile
+import com.uber.crumb.compiler.api.CrumbProducerExtension
+import com.uber.crumb.compiler.api.ProducerMetadata
+import com.uber.crumb.integration.annotations.MoshiFactory
 import org.junit.Test
+import java.io.File
+import java.nio.file.Files
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.annotation.processing.AbstractProcessor
+import javax.annotation.processing.Filer
+import javax.annotation.processing.RoundEnvironment
+import javax.lang.model.SourceVersion
+import javax.lang.model.element.AnnotationMirror
+import javax.lang.model.element.TypeElement
 import javax.tools.JavaFileObject
+import javax.tools.StandardLocation.CLASS_OUTPUT
 
 class CrumbProcessorTest {
 
@@ -61,4 +84,422 @@ public abstract class MyAdapterFactory {
         """.trimMargin())
   }
 
+  @Test
+  fun testBytecodeOutputLanguageWritesClassFileDirectly() {
+    val model = JavaFileObjects.forSourceString("test.Foo", """
+package test;
+import com.uber.crumb.annotations.CrumbConsumable;
+import com.squareup.moshi.JsonAdapter;
+@CrumbConsumable public abstract class Foo {
+  public static JsonAdapter<Foo> jsonAdapter() {
+    return null;
+  }
+}""")
+
+    val factory = JavaFileObjects.forSourceString("test.MyAdapterFactory", """
+package test;
+import com.squareup.moshi.JsonAdapter;
+import com.uber.crumb.integration.annotations.MoshiFactory;
+@MoshiFactory(MoshiFactory.Type.PRODUCER)
+public abstract class MyAdapterFactory {
+  public static JsonAdapter.Factory create() {
+    return new MoshiProducer_MyAdapterFactory();
+  }
+}""")
+
+    val compilation = javac()
+        .withProcessors(CrumbProcessor(listOf(MoshiSupport())))
+        .withOptions("-A${CrumbProcessor.OPTION_OUTPUT_LANGUAGE}=bytecode")
+        .compile(model, factory)
+
+    CompilationSubject.assertThat(compilation).succeeded()
+    CompilationSubject.assertThat(compilation)
+        .generatedFile(CLASS_OUTPUT, "com.uber.crumb.indices", "MyAdapterFactoryCrumbIndex.class")
+    assertThat(compilation.generatedSourceFiles().map { it.name })
+        .doesNotContain("/SOURCE_OUTPUT/com/uber/crumb/indices/MyAdapterFactoryCrumbIndex.java")
+
+    // The written index must be readable by a consumer in a downstream compilation.
+    val consumer = JavaFileObjects.forSourceString("test.MyConsumerFactory", """
+package test;
+import com.uber.crumb.integration.annotations.MoshiFactory;
+@MoshiFactory(MoshiFactory.Type.CONSUMER)
+public abstract class MyConsumerFactory {}""")
+    val consumerCompilation = javac()
+        .withProcessors(CrumbProcessor(listOf(MoshiSupport())))
+        .withClasspath(listOf(classOutput(compilation)) + System.getProperty("java.class.path")
+            .split(File.pathSeparator)
+            .map(::File))
+        .compile(consumer)
+    CompilationSubject.assertThat(consumerCompilation).succeeded()
+    CompilationSubject.assertThat(consumerCompilation)
+        .generatedSourceFile("test.MoshiConsumer_MyConsumerFactory")
+        .contentsAsUtf8String()
+        .contains("case \"Foo\":")
+  }
+
+  @Test
+  fun testEveryExtensionGetsTheMetadataOfASharedProducer() {
+    val producer = moshiFactory("Producer", "PRODUCER")
+    val localProducer = moshiFactory("LocalProducer", "PRODUCER")
+    val consumer = moshiFactory("Consumer", "CONSUMER")
+
+    for (partitioned in listOf(false, true)) {
+      val options = listOf("-A${CrumbProcessor.OPTION_PARTITION_INDICES}=$partitioned")
+      val dependency = javac()
+          .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"), RecordingExtension("second"))))
+          .withOptions(options)
+          .compile(producer)
+      CompilationSubject.assertThat(dependency).succeeded()
+
+      for (streaming in listOf(false, true)) {
+        val extensions = listOf(RecordingExtension("first", streaming), RecordingExtension("second", streaming))
+        val compilation = javac()
+            .withProcessors(CrumbProcessor(extensions))
+            .withOptions(options)
+            .withClasspath(listOf(classOutput(dependency)) + System.getProperty("java.class.path")
+                .split(File.pathSeparator)
+                .map(::File))
+            .compile(consumer, localProducer)
+        CompilationSubject.assertThat(compilation).succeeded()
+        extensions.forEach {
+          assertWithMessage("${it.key} with partitioned=$partitioned, streaming=$streaming")
+              .that(it.consumed)
+              .containsExactly(it.metadata("test.Producer"), it.metadata("test.LocalProducer"))
+        }
+      }
+    }
+  }
+
+  @Test
+  fun testPartitionedIndicesRoundTrip() {
+    val partitioned = javac()
+        .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"), RecordingExtension("second"))))
+        .withOptions("-A${CrumbProcessor.OPTION_PARTITION_INDICES}=true")
+        .compile(moshiFactory("Producer", "PRODUCER"))
+    CompilationSubject.assertThat(partitioned).succeeded()
+    for (partition in listOf("p_first", "p_second")) {
+      CompilationSubject.assertThat(partitioned)
+          .generatedFile(CLASS_OUTPUT, "com.uber.crumb.indices.$partition", "ProducerCrumbIndex.class")
+    }
+    assertThat(partitioned.generatedFiles().map { it.name })
+        .doesNotContain("/CLASS_OUTPUT/com/uber/crumb/indices/ProducerCrumbIndex.class")
+    val unpartitioned = javac()
+        .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"), RecordingExtension("second"))))
+        .compile(moshiFactory("UnpartitionedProducer", "PRODUCER"))
+    CompilationSubject.assertThat(unpartitioned).succeeded()
+
+    // Consumers read their extensions' partitions along with unpartitioned indices, through javac or not.
+    val classpath = listOf(classOutput(partitioned), classOutput(unpartitioned)) +
+        System.getProperty("java.class.path").split(File.pathSeparator).map(::File)
+    val loadingOptions = listOf(
+        emptyList(),
+        listOf("-A${CrumbProcessor.OPTION_CLASSPATH}=${classpath.joinToString(File.pathSeparator)}"))
+    for (options in loadingOptions) {
+      for (key in listOf("first", "second")) {
+        val extension = RecordingExtension(key)
+        val compilation = javac()
+            .withProcessors(CrumbProcessor(listOf(extension)))
+            .withOptions(options)
+            .withClasspath(classpath)
+            .compile(moshiFactory("Consumer", "CONSUMER"))
+        CompilationSubject.assertThat(compilation).succeeded()
+        assertWithMessage("$key with $options")
+            .that(extension.consumed)
+            .containsExactly(extension.metadata("test.Producer"), extension.metadata("test.UnpartitionedProducer"))
+      }
+    }
+  }
+
+  @Test
+  fun testDeferredConsumersSeeProducersFromLaterRounds() {
+    val dependency = javac()
+        .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"))))
+        .compile(moshiFactory("Producer", "PRODUCER"))
+    CompilationSubject.assertThat(dependency).succeeded()
+
+    for (deferred in listOf(false, true)) {
+      val extension = RecordingExtension("first")
+      val compilation = javac()
+          .withProcessors(LateProducerProcessor(), CrumbProcessor(listOf(extension)))
+          .withOptions("-A${CrumbProcessor.OPTION_DEFER_CONSUMERS}=$deferred")
+          .withClasspath(listOf(classOutput(dependency)) + System.getProperty("java.class.path")
+              .split(File.pathSeparator)
+              .map(::File))
+          .compile(moshiFactory("Consumer", "CONSUMER"), moshiFactory("LocalProducer", "PRODUCER"))
+      CompilationSubject.assertThat(compilation).succeeded()
+      val late = if (deferred) listOf("test.LateProducer") else emptyList()
+      val expected = listOf("test.Producer", "test.LocalProducer") + late
+      assertWithMessage("With deferred=$deferred")
+          .that(extension.consumed)
+          .containsExactlyElementsIn(expected.map(extension::metadata))
+    }
+  }
+
+  @Test
+  fun testClasspathScanningReadsJarsAndDirectories() {
+    for (outputLanguage in listOf("java", "bytecode")) {
+      val extension = RecordingExtension("first")
+      val dependencies = listOf("DirectoryProducer", "JarProducer").map { name ->
+        val dependency = javac()
+            .withProcessors(CrumbProcessor(listOf(extension)))
+            .withOptions("-A${CrumbProcessor.OPTION_OUTPUT_LANGUAGE}=$outputLanguage")
+            .compile(moshiFactory(name, "PRODUCER"))
+        CompilationSubject.assertThat(dependency).succeeded()
+        classOutput(dependency)
+      }
+      val indices = listOf(dependencies[0], jar(dependencies[1]))
+      val classpath = System.getProperty("java.class.path").split(File.pathSeparator).map(::File)
+
+      // The compile classpath is either looked up from javac or given explicitly, in which case it's the only place
+      // the indices can be found.
+      val scanningOptions = listOf(
+          listOf("-A${CrumbProcessor.OPTION_CLASSPATH_SCANNING}=true") to indices + classpath,
+          listOf("-A${CrumbProcessor.OPTION_CLASSPATH}=${indices.joinToString(File.pathSeparator)}") to classpath)
+      for ((options, javacClasspath) in scanningOptions) {
+        extension.consumed.clear()
+        val compilation = javac()
+            .withProcessors(CrumbProcessor(listOf(extension)))
+            .withOptions(options)
+            .withClasspath(javacClasspath)
+            .compile(moshiFactory("Consumer", "CONSUMER"))
+        CompilationSubject.assertThat(compilation).succeeded()
+        assertWithMessage("$outputLanguage with $options")
+            .that(extension.consumed)
+            .containsExactly(extension.metadata("test.DirectoryProducer"), extension.metadata("test.JarProducer"))
+      }
+    }
+  }
+
+  @Test
+  fun testPlannedFileFailuresAreReportedOnTheirConsumer() {
+    val producer = moshiFactory("Producer", "PRODUCER")
+    val dependency = javac()
+        .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"))))
+        .compile(producer)
+    CompilationSubject.assertThat(dependency).succeeded()
+
+    val failingPlanner = object : CrumbConsumerExtension {
+      override val key = "first"
+
+      override fun supportedConsumerAnnotations() = setOf(MoshiFactory::class.java)
+
+      override fun isConsumerApplicable(context: CrumbContext,
+          type: TypeElement,
+          annotations: Collection<AnnotationMirror>): Boolean {
+        return type.getAnnotation(MoshiFactory::class.java).value == MoshiFactory.Type.CONSUMER
+      }
+
+      override fun isPlanningConsumer() = true
+
+      override fun consume(context: CrumbContext,
+          type: TypeElement,
+          annotations: Collection<AnnotationMirror>,
+          metadata: Set<ConsumerMetadata>) {
+        throw AssertionError("Planning consumers should only be planned")
+      }
+
+      override fun planConsume(context: CrumbContext,
+          type: TypeElement,
+          annotations: Collection<AnnotationMirror>,
+          metadata: Set<ConsumerMetadata>): List<CrumbGeneratedFile> {
+        val name = type.simpleName.toString()
+        return listOf(object : CrumbGeneratedFile {
+          override fun build() {
+            throw IllegalStateException("Can't build $name")
+          }
+
+          override fun writeTo(filer: Filer) {
+            throw AssertionError("Files that failed to build shouldn't be written")
+          }
+        })
+      }
+    }
+    val compilation = javac()
+        .withProcessors(CrumbProcessor(listOf(failingPlanner)))
+        .withOptions("-A${CrumbProcessor.OPTION_THREADS}=2")
+        .withClasspath(listOf(classOutput(dependency)) + System.getProperty("java.class.path")
+            .split(File.pathSeparator)
+            .map(::File))
+        .compile(moshiFactory("FirstConsumer", "CONSUMER"), moshiFactory("SecondConsumer", "CONSUMER"))
+    CompilationSubject.assertThat(compilation).failed()
+    CompilationSubject.assertThat(compilation)
+        .hadErrorContaining("Can't build FirstConsumer")
+        .inFile(compilation.sourceFiles().first { it.name.endsWith("FirstConsumer.java") })
+    CompilationSubject.assertThat(compilation)
+        .hadErrorContaining("Can't build SecondConsumer")
+        .inFile(compilation.sourceFiles().first { it.name.endsWith("SecondConsumer.java") })
+  }
+
+  @Test
+  fun testExtensionsWithoutSupportedAnnotationsAreOfferedEveryType() {
+    val produced = mutableListOf<String>()
+    val undeclared = object : CrumbProducerExtension {
+      override val key = "undeclared"
+
+      override fun isProducerApplicable(context: CrumbContext,
+          type: TypeElement,
+          annotations: Collection<AnnotationMirror>) = true
+
+      override fun produce(context: CrumbContext,
+          type: TypeElement,
+          annotations: Collection<AnnotationMirror>): ProducerMetadata {
+        produced += type.qualifiedName.toString()
+        return emptyMap<String, String>() to emptySet()
+      }
+    }
+    val compilation = javac()
+        .withProcessors(CrumbProcessor(listOf(RecordingExtension("first"), undeclared)))
+        .compile(moshiFactory("Producer", "PRODUCER"))
+    CompilationSubject.assertThat(compilation).succeeded()
+    assertThat(produced).containsExactly("test.Producer")
+  }
+
+  @Test
+  fun testConsumersRunWhenTheClasspathOnlyHasOtherExtensionsMetadata() {
+    val model = JavaFileObjects.forSourceString("test.Foo", """
+package test;
+import com.uber.crumb.annotations.CrumbConsumable;
+import com.google.gson.TypeAdapter;
+import com.google.gson.Gson;
+@CrumbConsumable public abstract class Foo {
+  public static TypeAdapter<Foo> typeAdapter(Gson gson) {
+    return null;
+  }
+}""")
+    val producer = JavaFileObjects.forSourceString("test.GsonAdapterFactory", """
+package test;
+import com.google.gson.TypeAdapterFactory;
+import com.uber.crumb.integration.annotations.GsonFactory;
+@GsonFactory(GsonFactory.Type.PRODUCER)
+public abstract class GsonAdapterFactory {
+  public static TypeAdapterFactory create() {
+    return new GsonProducer_GsonAdapterFactory();
+  }
+}""")
+
+    for (keyFilters in listOf(false, true)) {
+      val options = listOf("-A${CrumbProcessor.OPTION_KEY_FILTERS}=$keyFilters")
+      val dependency = javac()
+          .withProcessors(CrumbProcessor(listOf(GsonSupport(), MoshiSupport())))
+          .withOptions(options)
+          .compile(model, producer)
+      CompilationSubject.assertThat(dependency).succeeded()
+
+      val compilation = javac()
+          .withProcessors(CrumbProcessor(listOf(GsonSupport(), MoshiSupport())))
+          .withOptions(options)
+          .withClasspath(listOf(classOutput(dependency)) + System.getProperty("java.class.path")
+              .split(File.pathSeparator)
+              .map(::File))
+          .compile(moshiFactory("MyConsumerFactory", "CONSUMER"))
+      CompilationSubject.assertThat(compilation).succeeded()
+      CompilationSubject.assertThat(compilation)
+          .generatedSourceFile("test.MoshiConsumer_MyConsumerFactory")
+      assertWithMessage("Warnings with keyFilters=$keyFilters")
+          .that(compilation.warnings().map { it.getMessage(null) })
+          .doesNotContain("No @CrumbProducer metadata found on the classpath.")
+    }
+  }
+
+  private fun moshiFactory(name: String, type: String): JavaFileObject {
+    return JavaFileObjects.forSourceString("test.$name", """
+package test;
+import com.uber.crumb.integration.annotations.MoshiFactory;
+@MoshiFactory(MoshiFactory.Type.$type)
+public abstract class $name {}""")
+  }
+
+  /** @return a directory with the class outputs of the given [compilation], for use on a classpath. */
+  private fun classOutput(compilation: Compilation): File {
+    val directory = Files.createTempDirectory("crumb").toFile()
+    compilation.generatedFiles()
+        .filter { it.kind == JavaFileObject.Kind.CLASS || it.kind == JavaFileObject.Kind.OTHER }
+        .forEach { file ->
+          val output = File(directory, file.toUri().path.substringAfter("/CLASS_OUTPUT/"))
+          output.parentFile.mkdirs()
+          file.openInputStream().use { input -> output.outputStream().use { input.copyTo(it) } }
+        }
+    return directory
+  }
+
+  /** @return a jar with the contents of the given [directory], for use on a classpath. */
+  private fun jar(directory: File): File {
+    val jar = Files.createTempFile("crumb", ".jar").toFile()
+    ZipOutputStream(jar.outputStream()).use { zip ->
+      directory.walkTopDown().filter { it != directory }.forEach { file ->
+        val path = file.relativeTo(directory).invariantSeparatorsPath
+        // Directories have entries as well, like in jars built by Gradle.
+        zip.putNextEntry(ZipEntry(if (file.isDirectory) "$path/" else path))
+        if (file.isFile) {
+          file.inputStream().use { it.copyTo(zip) }
+        }
+        zip.closeEntry()
+      }
+    }
+    return jar
+  }
+
+  /** Generates a @MoshiFactory producer for the second round, like other processors' generated producers. */
+  private class LateProducerProcessor : AbstractProcessor() {
+
+    private var round = 0
+
+    override fun getSupportedAnnotationTypes() = setOf("*")
+
+    override fun getSupportedSourceVersion(): SourceVersion = SourceVersion.latestSupported()
+
+    override fun process(annotations: Set<TypeElement>, roundEnv: RoundEnvironment): Boolean {
+      if (round++ == 0) {
+        processingEnv.filer.createSourceFile("test.LateProducer").openWriter().use {
+          it.write("""
+package test;
+import com.uber.crumb.integration.annotations.MoshiFactory;
+@MoshiFactory(MoshiFactory.Type.PRODUCER)
+public abstract class LateProducer {}""")
+        }
+      }
+      return false
+    }
+  }
+
+  /** Produces and records metadata for @MoshiFactory-annotated types under the given [key]. */
+  private class RecordingExtension(
+      override val key: String,
+      private val streaming: Boolean = false) : CrumbProducerExtension, CrumbConsumerExtension {
+
+    val consumed = mutableListOf<ConsumerMetadata>()
+
+    fun metadata(producer: String) = mapOf("producer" to producer, "key" to key)
+
+    override fun supportedProducerAnnotations() = setOf(MoshiFactory::class.java)
+
+    override fun supportedConsumerAnnotations() = setOf(MoshiFactory::class.java)
+
+    override fun isProducerApplicable(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>): Boolean {
+      return type.getAnnotation(MoshiFactory::class.java).value == MoshiFactory.Type.PRODUCER
+    }
+
+    override fun isConsumerApplicable(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>): Boolean {
+      return type.getAnnotation(MoshiFactory::class.java).value == MoshiFactory.Type.CONSUMER
+    }
+
+    override fun produce(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>): ProducerMetadata {
+      return metadata(type.qualifiedName.toString()) to emptySet()
+    }
+
+    override fun isStreamingConsumer() = streaming
+
+    override fun consume(context: CrumbContext,
+        type: TypeElement,
+        annotations: Collection<AnnotationMirror>,
+        metadata: Set<ConsumerMetadata>) {
+      consumed += metadata
+    }
+  }
 }
@@ -111,18 +111,21 @@ public final class ExperimentsCompiler implements CrumbProducerExtension, CrumbC
     }
 
     // Map of enum TypeElement to its members
+    List<String> enumNames =
+        metadata.stream().map(data -> data.get(METADATA_KEY)).collect(toList());
     Map<TypeElement, Set<String>> experimentClasses =
-        metadata
+        context
+            .getTypes()
+            .typeElements(enumNames)
+            .values()
             .stream()
-            .map(data -> data.get(METADATA_KEY))
-            .map(
-                enumClass -> context.getProcessingEnv().getElementUtils().getTypeElement(enumClass))
             .collect(
                 toMap(
                     typeElement -> typeElement,
                     typeElement ->
-                        typeElement
-                            .getEnclosedElements()
+                        context
+                            .getTypes()
+                            .enclosedElements(typeElement)
                             .stream()
                             .filter(e -> e.getKind() == ElementKind.ENUM_CONSTANT)
                             .map(Object::toString)
@@ -122,11 +122,10 @@ class ExperimentsCompiler : CrumbProducerExtension, CrumbConsumerExtension {
         .replace('/', '.')
 
     // Map of enum TypeElement to its members
-    val experimentClasses = metadata
-        .mapNotNull { it[METADATA_KEY] }
-        .map { enumClass -> context.processingEnv.elementUtils.getTypeElement(enumClass) }
+    val experimentClasses = context.types.typeElements(metadata.mapNotNull { it[METADATA_KEY] })
+        .values
         .associate {
-          it to it.enclosedElements
+          it to context.types.enclosedElements(it)
               .filter { it.kind == ENUM_CONSTANT }
               .map(Element::toString)
         }
@@ -35,6 +35,7 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.util.Collection;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -52,6 +53,7 @@ import kotlin.Pair;
 
 import static com.google.auto.common.MoreElements.isAnnotationPresent;
 import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static java.util.stream.Collectors.toList;
 import static javax.lang.model.element.Modifier.ABSTRACT;
 import static javax.lang.model.element.Modifier.FINAL;
 import static javax.lang.model.element.Modifier.PUBLIC;
@@ -116,19 +118,16 @@ public final class PluginsCompiler implements CrumbProducerExtension, CrumbConsu
     TypeMirror targetPlugin = getTargetPlugin(pluginPoint);
 
     // List of plugin TypeElements
+    List<String> pluginNames =
+        metadata.stream().map(data -> data.get(METADATA_KEY)).collect(toList());
     ImmutableSet<TypeElement> pluginClasses =
-        metadata
+        context
+            .getTypes()
+            .typeElements(pluginNames)
+            .values()
             .stream()
-            .map(data -> data.get(METADATA_KEY))
-            .map(
-                pluginClass ->
-                    context.getProcessingEnv().getElementUtils().getTypeElement(pluginClass))
             .filter(
-                pluginType ->
-                    context
-                        .getProcessingEnv()
-                        .getTypeUtils()
-                        .isAssignable(pluginType.asType(), targetPlugin))
+                pluginType -> context.getTypes().isAssignable(pluginType.asType(), targetPlugin))
             .collect(toImmutableSet());
 
     FieldSpec pluginsSetField =
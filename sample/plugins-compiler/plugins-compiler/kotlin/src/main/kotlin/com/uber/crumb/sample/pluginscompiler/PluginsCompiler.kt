@@ -147,15 +147,9 @@ class PluginsCompiler : CrumbProducerExtension, CrumbConsumerExtension {
     }
 
     // List of plugin TypeElements
-    val pluginClasses = metadata
-        .mapNotNull { it[METADATA_KEY] }
-        .map { pluginClass -> context.processingEnv.elementUtils.getTypeElement(pluginClass) }
-        .filter {
-          context
-              .processingEnv
-              .typeUtils
-              .isAssignable(it.asType(), targetPlugin)
-        }
+    val pluginClasses = context.types.typeElements(metadata.mapNotNull { it[METADATA_KEY] })
+        .values
+        .filter { context.types.isAssignable(it.asType(), targetPlugin) }
         .toSet()
 
     val initializerCode = "return setOf(${pluginClasses.joinToString { "%T()" }})"